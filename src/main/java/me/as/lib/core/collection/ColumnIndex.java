@@ -0,0 +1,255 @@
+/*
+ * Copyright 2019 Antonio Sorrentini
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package me.as.lib.core.collection;
+
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+
+/**
+ * A secondary index on a column of a RamTable (see RamTable.createIndex).
+ * Every distinct non null value has a chain of the rows holding it: the chains are doubly
+ * linked through the next/prev arrays (indexed by row), so a cell change costs a map lookup
+ * and a couple of array writes. A hash index keeps the chains in a HashMap, a sorted index
+ * in a TreeMap (that also answers range queries).
+ * Not synchronized, RamTable is.
+ */
+class ColumnIndex
+{
+ final int type;
+
+ private final Map<Object, Chain> chains;
+ private int next[]=new int[0];
+ private int prev[]=new int[0];
+
+ // when true the index must be rebuilt before being used
+ boolean stale=true;
+
+
+ static class Chain
+ {
+  int head=-1;
+  int size=0;
+ }
+
+
+ /**
+  * The order of the sorted indexes: Comparable values of the same class by their natural
+  * order, numbers of different classes by value, everything else by class name and toString.
+  * It never throws, whatever the table holds.
+  */
+ @SuppressWarnings("unchecked")
+ static final Comparator<Object> order=(a, b) ->
+ {
+  Class ca=a.getClass();
+  Class cb=b.getClass();
+
+  if (ca==cb && a instanceof Comparable) return ((Comparable)a).compareTo(b);
+
+  if (a instanceof Number && b instanceof Number)
+  {
+   int res=Double.compare(((Number)a).doubleValue(), ((Number)b).doubleValue());
+   if (res!=0) return res;
+  }
+
+  int res=ca.getName().compareTo(cb.getName());
+  return ((res!=0)?res:a.toString().compareTo(b.toString()));
+ };
+
+
+ ColumnIndex(int type)
+ {
+  this.type=type;
+  chains=((type==RamTable.INDEX_SORTED)?new TreeMap<>(order):new HashMap<>());
+ }
+
+
+ void clear()
+ {
+  chains.clear();
+  next=new int[0];
+  prev=new int[0];
+ }
+
+
+ private void grant(int rows)
+ {
+  if (rows>next.length)
+  {
+   int len=Math.max(rows, next.length+next.length/2+64);
+   next=Arrays.copyOf(next, len);
+   prev=Arrays.copyOf(prev, len);
+  }
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ void add(int row, Object key)
+ {
+  if (key==null) return;
+
+  grant(row+1);
+  Chain c=chains.get(key);
+
+  if (c==null)
+  {
+   c=new Chain();
+   chains.put(key, c);
+  }
+
+  next[row]=c.head;
+  prev[row]=-1;
+  if (c.head>=0) prev[c.head]=row;
+  c.head=row;
+  c.size++;
+ }
+
+
+ void remove(int row, Object key)
+ {
+  if (key==null) return;
+
+  Chain c=chains.get(key);
+  if (c==null) return;
+
+  int n=next[row];
+  int p=prev[row];
+
+  if (p>=0) next[p]=n;
+  else c.head=n;
+  if (n>=0) prev[n]=p;
+
+  if (--c.size==0) chains.remove(key);
+ }
+
+
+ void update(int row, Object oldKey, Object newKey)
+ {
+  if (oldKey!=newKey && (oldKey==null || !oldKey.equals(newKey)))
+  {
+   remove(row, oldKey);
+   add(row, newKey);
+  }
+ }
+
+
+ // the ids of the rows from 'at' on grow by count
+ void insertRows(int at, int count, int rows)
+ {
+  grant(rows+count);
+
+  if (at<rows) shift(at, at+count, rows-at, at, count);
+ }
+
+
+ // the rows from at to at+count-1 must have already been removed, the following ones move down
+ void cutRows(int at, int count, int rows)
+ {
+  // the arrays cover only up to the last row added, the rows after it hold nulls
+  grant(rows);
+
+  int from=at+count;
+  if (from<rows) shift(from, at, rows-from, from, -count);
+ }
+
+
+ private void shift(int from, int to, int len, int firstMoved, int delta)
+ {
+  System.arraycopy(next, from, next, to, len);
+  System.arraycopy(prev, from, prev, to, len);
+
+  int size=next.length;
+
+  for (int t=0;t<size;t++)
+  {
+   if (next[t]>=firstMoved) next[t]+=delta;
+   if (prev[t]>=firstMoved) prev[t]+=delta;
+  }
+
+  for (Chain c : chains.values())
+  {
+   if (c.head>=firstMoved) c.head+=delta;
+  }
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ int count(Object key)
+ {
+  Chain c=((key!=null)?chains.get(key):null);
+  return ((c!=null)?c.size:0);
+ }
+
+
+ // ascending
+ int[] rows(Object key)
+ {
+  Chain c=((key!=null)?chains.get(key):null);
+  if (c==null) return new int[0];
+
+  int res[]=new int[c.size];
+  int i=0;
+  for (int r=c.head;r>=0;r=next[r]) res[i++]=r;
+
+  Arrays.sort(res);
+  return res;
+ }
+
+
+ /**
+  * Only for sorted indexes, from or to null mean unbounded.
+  * The rows are ordered by value, equal values by row.
+  */
+ int[] rows(Object from, boolean fromInclusive, Object to, boolean toInclusive)
+ {
+  NavigableMap<Object, Chain> range=(NavigableMap<Object, Chain>)chains;
+
+  if (from!=null && to!=null)
+  {
+   if (order.compare(from, to)>0) return new int[0];
+   range=range.subMap(from, fromInclusive, to, toInclusive);
+  }
+  else if (from!=null) range=range.tailMap(from, fromInclusive);
+  else if (to!=null) range=range.headMap(to, toInclusive);
+
+  int size=0;
+  for (Chain c : range.values()) size+=c.size;
+
+  int res[]=new int[size];
+  int i=0;
+
+  for (Chain c : range.values())
+  {
+   int start=i;
+   for (int r=c.head;r>=0;r=next[r]) res[i++]=r;
+   Arrays.sort(res, start, i);
+  }
+
+  return res;
+ }
+
+
+}
@@ -0,0 +1,830 @@
+/*
+ * Copyright 2019 Antonio Sorrentini
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package me.as.lib.core.collection;
+
+
+import java.util.HashMap;
+
+
+/**
+ * The storage of one column of a columnar RamTable (see RamTable.setColumnar).
+ * Int, long and double vectors keep their values in a primitive array plus a bitmap of the
+ * non null cells (null cells hold 0), string vectors are dictionary encoded, everything else
+ * goes in an object vector. Cells past the capacity are null.
+ * Vectors are not synchronized, RamTable is.
+ */
+abstract class ColumnVector
+{
+ static final int dis=64;
+
+ final int type;
+
+
+ ColumnVector(int type)
+ {
+  this.type=type;
+ }
+
+
+ static ColumnVector create(int type, int capacity)
+ {
+  switch (type)
+  {
+   case RamTable.COLUMN_INT    :return new IntVector(capacity);
+   case RamTable.COLUMN_LONG   :return new LongVector(capacity);
+   case RamTable.COLUMN_DOUBLE :return new DoubleVector(capacity);
+   case RamTable.COLUMN_STRING :return new StringVector(capacity);
+   default                     :return new ObjectVector(capacity);
+  }
+ }
+
+
+ // the best type for a vector holding value
+ static int typeOf(Object value)
+ {
+  if (value instanceof Integer) return RamTable.COLUMN_INT;
+  if (value instanceof Long) return RamTable.COLUMN_LONG;
+  if (value instanceof Double) return RamTable.COLUMN_DOUBLE;
+  if (value instanceof String) return RamTable.COLUMN_STRING;
+  return RamTable.COLUMN_OBJECT;
+ }
+
+
+ abstract int capacity();
+
+ // sets the capacity, cells past it are lost
+ abstract void resize(int capacity);
+
+ // can value (not null) be stored without changing its class?
+ abstract boolean accepts(Object value);
+
+ // row<capacity(), value is null or accepted
+ abstract void set(int row, Object value);
+
+ // row<capacity()
+ abstract Object get(int row);
+
+ abstract boolean isNull(int row);
+
+ // like System.arraycopy inside the vector
+ abstract void copy(int from, int to, int count);
+
+ abstract void clear(int from, int count);
+
+ abstract void swap(int row1, int row2);
+
+ // an independent copy of the first rows cells
+ abstract ColumnVector copy(int rows);
+
+ // cell i becomes what cell perm[i] was, for i<perm.length (<=capacity())
+ abstract void permute(int perm[]);
+
+
+ // typed getters, with the same conversions of RamTable.getInt & C. (not used for object vectors)
+
+ int getInt(int row)
+ {
+  return 0;
+ }
+
+ long getLong(int row)
+ {
+  return 0;
+ }
+
+ double getDouble(int row)
+ {
+  return 0;
+ }
+
+ float getFloat(int row)
+ {
+  return 0;
+ }
+
+ String getString(int row)
+ {
+  Object o=get(row);
+  return ((o!=null)?o.toString():null);
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ void ensure(int rows)
+ {
+  int cap=capacity();
+  if (rows>cap) resize(Math.max(rows, cap+cap/2+dis));
+ }
+
+
+ // rows is how many rows the table has
+ void insert(int at, int count, int rows)
+ {
+  int used=Math.min(rows, capacity());
+
+  if (at<used)
+  {
+   ensure(used+count);
+   copy(at, at+count, used-at);
+   clear(at, count);
+  }
+ }
+
+
+ // rows is how many rows the table has
+ void cut(int at, int count, int rows)
+ {
+  int used=Math.min(rows, capacity());
+
+  if (at<used)
+  {
+   int moved=used-(at+count);
+
+   if (moved>0)
+   {
+    copy(at+count, at, moved);
+    clear(at+moved, used-(at+moved));
+   } else clear(at, used-at);
+  }
+ }
+
+
+ // everything from rows on is nulled, and the storage is trimmed to rows+extra
+ void truncate(int rows, int extra)
+ {
+  int cap=capacity();
+
+  if (cap>rows+extra) resize(rows+extra);
+  cap=capacity();
+  if (cap>rows) clear(rows, cap-rows);
+ }
+
+
+ void reverse(int rows)
+ {
+  ensure(rows);
+  for (int i=0, j=rows-1;i<j;i++, j--) swap(i, j);
+ }
+
+
+ // called by RamTable.compact()
+ void compact(int rows)
+ {
+ }
+
+
+ ColumnVector toObjects()
+ {
+  int cap=capacity();
+  ObjectVector res=new ObjectVector(cap);
+  for (int r=0;r<cap;r++) res.values[r]=get(r);
+  return res;
+ }
+
+
+ // =============================================================================
+
+
+ static class ObjectVector extends ColumnVector
+ {
+  Object values[];
+
+  ObjectVector(int capacity)
+  {
+   super(RamTable.COLUMN_OBJECT);
+   values=new Object[capacity];
+  }
+
+  int capacity()
+  {
+   return values.length;
+  }
+
+  void resize(int capacity)
+  {
+   Object nv[]=new Object[capacity];
+   System.arraycopy(values, 0, nv, 0, Math.min(capacity, values.length));
+   values=nv;
+  }
+
+  boolean accepts(Object value)
+  {
+   return true;
+  }
+
+  void set(int row, Object value)
+  {
+   values[row]=value;
+  }
+
+  Object get(int row)
+  {
+   return values[row];
+  }
+
+  boolean isNull(int row)
+  {
+   return (values[row]==null);
+  }
+
+  void copy(int from, int to, int count)
+  {
+   System.arraycopy(values, from, values, to, count);
+  }
+
+  void clear(int from, int count)
+  {
+   for (int t=from;t<from+count;t++) values[t]=null;
+  }
+
+  void swap(int row1, int row2)
+  {
+   Object o=values[row1];
+   values[row1]=values[row2];
+   values[row2]=o;
+  }
+
+  ColumnVector copy(int rows)
+  {
+   ObjectVector res=new ObjectVector(Math.min(rows, values.length)+dis);
+   System.arraycopy(values, 0, res.values, 0, Math.min(rows, values.length));
+   return res;
+  }
+
+  void permute(int perm[])
+  {
+   Object nv[]=values.clone();
+   for (int t=0;t<perm.length;t++) nv[t]=values[perm[t]];
+   values=nv;
+  }
+
+  ColumnVector toObjects()
+  {
+   return this;
+  }
+ }
+
+
+ // =============================================================================
+ // a bit set for each non null cell
+
+
+ static abstract class PrimitiveVector extends ColumnVector
+ {
+  long present[];
+
+  PrimitiveVector(int type, int capacity)
+  {
+   super(type);
+   present=new long[(capacity+63) >>> 6];
+  }
+
+  final boolean isNull(int row)
+  {
+   return ((present[row >>> 6] & (1L << row))==0);
+  }
+
+  final void mark(int row, boolean notNull)
+  {
+   if (notNull) present[row >>> 6]|=(1L << row);
+   else present[row >>> 6]&=~(1L << row);
+  }
+
+  final void resizeBits(int capacity)
+  {
+   long np[]=new long[(capacity+63) >>> 6];
+   System.arraycopy(present, 0, np, 0, Math.min(np.length, present.length));
+   present=np;
+   // bits past the new capacity inside the last word
+   for (int r=capacity;r<(np.length << 6);r++) mark(r, false);
+  }
+
+  final void copyBits(int from, int to, int count)
+  {
+   if (to<from) for (int t=0;t<count;t++) mark(to+t, !isNull(from+t));
+   else for (int t=count-1;t>=0;t--) mark(to+t, !isNull(from+t));
+  }
+
+  final void clearBits(int from, int count)
+  {
+   for (int t=from;t<from+count;t++) mark(t, false);
+  }
+
+  final void permuteBits(int perm[])
+  {
+   long np[]=present.clone();
+
+   for (int t=0;t<perm.length;t++)
+   {
+    if (isNull(perm[t])) np[t >>> 6]&=~(1L << t);
+    else np[t >>> 6]|=(1L << t);
+   }
+
+   present=np;
+  }
+
+  final void swapBits(int row1, int row2)
+  {
+   boolean n1=isNull(row1);
+   mark(row1, !isNull(row2));
+   mark(row2, !n1);
+  }
+
+  final Object get(int row)
+  {
+   return ((isNull(row))?null:getBoxed(row));
+  }
+
+  abstract Object getBoxed(int row);
+
+  String getString(int row)
+  {
+   return ((isNull(row))?null:getBoxed(row).toString());
+  }
+ }
+
+
+ static class IntVector extends PrimitiveVector
+ {
+  int values[];
+
+  IntVector(int capacity)
+  {
+   super(RamTable.COLUMN_INT, capacity);
+   values=new int[capacity];
+  }
+
+  int capacity()
+  {
+   return values.length;
+  }
+
+  void resize(int capacity)
+  {
+   int nv[]=new int[capacity];
+   System.arraycopy(values, 0, nv, 0, Math.min(capacity, values.length));
+   values=nv;
+   resizeBits(capacity);
+  }
+
+  boolean accepts(Object value)
+  {
+   return (value instanceof Integer);
+  }
+
+  void set(int row, Object value)
+  {
+   values[row]=((value!=null)?(Integer)value:0);
+   mark(row, value!=null);
+  }
+
+  Object getBoxed(int row)
+  {
+   return values[row];
+  }
+
+  void copy(int from, int to, int count)
+  {
+   System.arraycopy(values, from, values, to, count);
+   copyBits(from, to, count);
+  }
+
+  void clear(int from, int count)
+  {
+   for (int t=from;t<from+count;t++) values[t]=0;
+   clearBits(from, count);
+  }
+
+  void swap(int row1, int row2)
+  {
+   int v=values[row1];
+   values[row1]=values[row2];
+   values[row2]=v;
+   swapBits(row1, row2);
+  }
+
+  ColumnVector copy(int rows)
+  {
+   rows=Math.min(rows, values.length);
+   IntVector res=new IntVector(rows+dis);
+   System.arraycopy(values, 0, res.values, 0, rows);
+   for (int r=0;r<rows;r++) if (!isNull(r)) res.mark(r, true);
+   return res;
+  }
+
+  void permute(int perm[])
+  {
+   int nv[]=values.clone();
+   for (int t=0;t<perm.length;t++) nv[t]=values[perm[t]];
+   values=nv;
+   permuteBits(perm);
+  }
+
+  int getInt(int row)
+  {
+   return values[row];
+  }
+
+  long getLong(int row)
+  {
+   return values[row];
+  }
+
+  double getDouble(int row)
+  {
+   return values[row];
+  }
+
+  float getFloat(int row)
+  {
+   return values[row];
+  }
+ }
+
+
+ static class LongVector extends PrimitiveVector
+ {
+  long values[];
+
+  LongVector(int capacity)
+  {
+   super(RamTable.COLUMN_LONG, capacity);
+   values=new long[capacity];
+  }
+
+  int capacity()
+  {
+   return values.length;
+  }
+
+  void resize(int capacity)
+  {
+   long nv[]=new long[capacity];
+   System.arraycopy(values, 0, nv, 0, Math.min(capacity, values.length));
+   values=nv;
+   resizeBits(capacity);
+  }
+
+  boolean accepts(Object value)
+  {
+   return (value instanceof Long);
+  }
+
+  void set(int row, Object value)
+  {
+   values[row]=((value!=null)?(Long)value:0);
+   mark(row, value!=null);
+  }
+
+  Object getBoxed(int row)
+  {
+   return values[row];
+  }
+
+  void copy(int from, int to, int count)
+  {
+   System.arraycopy(values, from, values, to, count);
+   copyBits(from, to, count);
+  }
+
+  void clear(int from, int count)
+  {
+   for (int t=from;t<from+count;t++) values[t]=0;
+   clearBits(from, count);
+  }
+
+  void swap(int row1, int row2)
+  {
+   long v=values[row1];
+   values[row1]=values[row2];
+   values[row2]=v;
+   swapBits(row1, row2);
+  }
+
+  ColumnVector copy(int rows)
+  {
+   rows=Math.min(rows, values.length);
+   LongVector res=new LongVector(rows+dis);
+   System.arraycopy(values, 0, res.values, 0, rows);
+   for (int r=0;r<rows;r++) if (!isNull(r)) res.mark(r, true);
+   return res;
+  }
+
+  void permute(int perm[])
+  {
+   long nv[]=values.clone();
+   for (int t=0;t<perm.length;t++) nv[t]=values[perm[t]];
+   values=nv;
+   permuteBits(perm);
+  }
+
+  int getInt(int row)
+  {
+   return (int)values[row];
+  }
+
+  long getLong(int row)
+  {
+   return values[row];
+  }
+
+  double getDouble(int row)
+  {
+   return values[row];
+  }
+
+  float getFloat(int row)
+  {
+   return values[row];
+  }
+ }
+
+
+ static class DoubleVector extends PrimitiveVector
+ {
+  double values[];
+
+  DoubleVector(int capacity)
+  {
+   super(RamTable.COLUMN_DOUBLE, capacity);
+   values=new double[capacity];
+  }
+
+  int capacity()
+  {
+   return values.length;
+  }
+
+  void resize(int capacity)
+  {
+   double nv[]=new double[capacity];
+   System.arraycopy(values, 0, nv, 0, Math.min(capacity, values.length));
+   values=nv;
+   resizeBits(capacity);
+  }
+
+  boolean accepts(Object value)
+  {
+   return (value instanceof Double);
+  }
+
+  void set(int row, Object value)
+  {
+   values[row]=((value!=null)?(Double)value:0);
+   mark(row, value!=null);
+  }
+
+  Object getBoxed(int row)
+  {
+   return values[row];
+  }
+
+  void copy(int from, int to, int count)
+  {
+   System.arraycopy(values, from, values, to, count);
+   copyBits(from, to, count);
+  }
+
+  void clear(int from, int count)
+  {
+   for (int t=from;t<from+count;t++) values[t]=0;
+   clearBits(from, count);
+  }
+
+  void swap(int row1, int row2)
+  {
+   double v=values[row1];
+   values[row1]=values[row2];
+   values[row2]=v;
+   swapBits(row1, row2);
+  }
+
+  ColumnVector copy(int rows)
+  {
+   rows=Math.min(rows, values.length);
+   DoubleVector res=new DoubleVector(rows+dis);
+   System.arraycopy(values, 0, res.values, 0, rows);
+   for (int r=0;r<rows;r++) if (!isNull(r)) res.mark(r, true);
+   return res;
+  }
+
+  void permute(int perm[])
+  {
+   double nv[]=values.clone();
+   for (int t=0;t<perm.length;t++) nv[t]=values[perm[t]];
+   values=nv;
+   permuteBits(perm);
+  }
+
+  int getInt(int row)
+  {
+   return (int)values[row];
+  }
+
+  long getLong(int row)
+  {
+   return (long)values[row];
+  }
+
+  double getDouble(int row)
+  {
+   return values[row];
+  }
+
+  float getFloat(int row)
+  {
+   return (float)values[row];
+  }
+ }
+
+
+ // =============================================================================
+ // each cell is the index of its string in a dictionary of the distinct strings, -1 for null
+
+
+ static class StringVector extends ColumnVector
+ {
+  int codes[];
+  String dictionary[]=new String[16];
+  int dictionarySize=0;
+  HashMap<String, Integer> codesByString=new HashMap<>();
+
+  StringVector(int capacity)
+  {
+   super(RamTable.COLUMN_STRING);
+   codes=new int[capacity];
+   java.util.Arrays.fill(codes, -1);
+  }
+
+  int capacity()
+  {
+   return codes.length;
+  }
+
+  void resize(int capacity)
+  {
+   int nc[]=new int[capacity];
+   int kept=Math.min(capacity, codes.length);
+   System.arraycopy(codes, 0, nc, 0, kept);
+   java.util.Arrays.fill(nc, kept, capacity, -1);
+   codes=nc;
+  }
+
+  boolean accepts(Object value)
+  {
+   return (value instanceof String);
+  }
+
+  int encode(String s)
+  {
+   Integer code=codesByString.get(s);
+
+   if (code==null)
+   {
+    if (dictionarySize==dictionary.length)
+    {
+     String nd[]=new String[dictionarySize*2];
+     System.arraycopy(dictionary, 0, nd, 0, dictionarySize);
+     dictionary=nd;
+    }
+
+    code=dictionarySize;
+    dictionary[dictionarySize++]=s;
+    codesByString.put(s, code);
+   }
+
+   return code;
+  }
+
+  void set(int row, Object value)
+  {
+   codes[row]=((value!=null)?encode((String)value):-1);
+  }
+
+  Object get(int row)
+  {
+   int code=codes[row];
+   return ((code>=0)?dictionary[code]:null);
+  }
+
+  boolean isNull(int row)
+  {
+   return (codes[row]<0);
+  }
+
+  void copy(int from, int to, int count)
+  {
+   System.arraycopy(codes, from, codes, to, count);
+  }
+
+  void clear(int from, int count)
+  {
+   java.util.Arrays.fill(codes, from, from+count, -1);
+  }
+
+  void swap(int row1, int row2)
+  {
+   int c=codes[row1];
+   codes[row1]=codes[row2];
+   codes[row2]=c;
+  }
+
+  ColumnVector copy(int rows)
+  {
+   rows=Math.min(rows, codes.length);
+   StringVector res=new StringVector(rows+dis);
+   System.arraycopy(codes, 0, res.codes, 0, rows);
+   res.dictionary=dictionary.clone();
+   res.dictionarySize=dictionarySize;
+   res.codesByString=new HashMap<>(codesByString);
+   return res;
+  }
+
+  void permute(int perm[])
+  {
+   int nc[]=codes.clone();
+   for (int t=0;t<perm.length;t++) nc[t]=codes[perm[t]];
+   codes=nc;
+  }
+
+  String getString(int row)
+  {
+   return (String)get(row);
+  }
+
+  int getInt(int row)
+  {
+   String s=getString(row);
+   return ((s!=null)?Integer.parseInt(s):0);
+  }
+
+  long getLong(int row)
+  {
+   String s=getString(row);
+   return ((s!=null)?Long.parseLong(s):0);
+  }
+
+  double getDouble(int row)
+  {
+   String s=getString(row);
+   return ((s!=null)?Double.parseDouble(s):0);
+  }
+
+  float getFloat(int row)
+  {
+   String s=getString(row);
+   return ((s!=null)?Float.parseFloat(s):0);
+  }
+
+  // drops from the dictionary the strings no more used
+  void compact(int rows)
+  {
+   int used[]=new int[dictionarySize];
+   java.util.Arrays.fill(used, -1);
+
+   String nd[]=new String[Math.max(16, dictionarySize)];
+   HashMap<String, Integer> ncs=new HashMap<>();
+   int size=0, cap=Math.min(rows, codes.length);
+
+   for (int r=0;r<cap;r++)
+   {
+    int code=codes[r];
+
+    if (code>=0)
+    {
+     if (used[code]<0)
+     {
+      used[code]=size;
+      nd[size]=dictionary[code];
+      ncs.put(dictionary[code], size);
+      size++;
+     }
+
+     codes[r]=used[code];
+    }
+   }
+
+   dictionary=nd;
+   dictionarySize=size;
+   codesByString=ncs;
+  }
+ }
+
+
+}
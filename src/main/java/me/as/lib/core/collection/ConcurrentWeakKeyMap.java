@@ -0,0 +1,273 @@
+/*
+ * Copyright 2019 Antonio Sorrentini
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package me.as.lib.core.collection;
+
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+
+/**
+ * A thread safe map that holds its keys weakly, like WeakHashMap: the entry of a key that
+ * is no more referenced elsewhere goes away by itself. The entries are in a ConcurrentHashMap
+ * and the keys are registered with a ReferenceQueue, so removing the entries of the collected
+ * keys costs only their count, done by the next call that changes the map or asks its size.
+ * Keys are compared with equals, keys and values cannot be null.
+ *
+ * forEach walks a snapshot of the keys taken after the last change, without locks and,
+ * while the map does not change, without allocating anything.
+ */
+public class ConcurrentWeakKeyMap<K, V>
+{
+ private final ConcurrentHashMap<Object, V> map;
+ private final ReferenceQueue<K> collected=new ReferenceQueue<>();
+
+ private final AtomicInteger version=new AtomicInteger(0);
+ private volatile Snapshot<K> snapshot=null;
+
+
+ public ConcurrentWeakKeyMap()
+ {
+  this(16);
+ }
+
+
+ public ConcurrentWeakKeyMap(int initialCapacity)
+ {
+  map=new ConcurrentHashMap<>(initialCapacity);
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ public V put(K key, V value)
+ {
+  expungeCollected();
+
+  V res=map.put(new WeakKey<>(key, collected), value);
+  if (res==null) version.incrementAndGet();
+  return res;
+ }
+
+
+ // returns the value already there, or null if value has been put
+ public V putIfAbsent(K key, V value)
+ {
+  expungeCollected();
+
+  V res=map.putIfAbsent(new WeakKey<>(key, collected), value);
+  if (res==null) version.incrementAndGet();
+  return res;
+ }
+
+
+ public V get(Object key)
+ {
+  return map.get(new LookupKey(key));
+ }
+
+
+ public boolean containsKey(Object key)
+ {
+  return map.containsKey(new LookupKey(key));
+ }
+
+
+ public V remove(Object key)
+ {
+  expungeCollected();
+
+  V res=map.remove(new LookupKey(key));
+  if (res!=null) version.incrementAndGet();
+  return res;
+ }
+
+
+ public void clear()
+ {
+  map.clear();
+  while (collected.poll()!=null);
+  version.incrementAndGet();
+ }
+
+
+ // may count keys collected but not yet enqueued
+ public int size()
+ {
+  expungeCollected();
+  return map.size();
+ }
+
+
+ public boolean isEmpty()
+ {
+  return (size()==0);
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ // the keys not yet collected, in no particular order
+ public List<K> keys()
+ {
+  WeakKey<K> keys[]=snapshot();
+  ArrayList<K> res=new ArrayList<>(keys.length);
+
+  for (WeakKey<K> wk : keys)
+  {
+   K key=wk.get();
+   if (key!=null) res.add(key);
+  }
+
+  return res;
+ }
+
+
+ // the entries removed by others while walking are skipped, the ones added are not seen
+ public void forEach(BiConsumer<? super K, ? super V> action)
+ {
+  WeakKey<K> keys[]=snapshot();
+
+  for (WeakKey<K> wk : keys)
+  {
+   K key=wk.get();
+
+   if (key!=null)
+   {
+    V value=map.get(wk);
+    if (value!=null) action.accept(key, value);
+   }
+  }
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ // costs a poll when nothing has been collected
+ private void expungeCollected()
+ {
+  Reference<? extends K> r;
+
+  while ((r=collected.poll())!=null)
+  {
+   // only the WeakKey in the map is the same instance
+   if (map.remove(r)!=null) version.incrementAndGet();
+  }
+ }
+
+
+ @SuppressWarnings("unchecked")
+ private WeakKey<K>[] snapshot()
+ {
+  expungeCollected();
+
+  Snapshot<K> res=snapshot;
+  int v=version.get();
+
+  if (res==null || res.version!=v)
+  {
+   res=new Snapshot<>(v, map.keySet().toArray(new WeakKey[0]));
+   snapshot=res;
+  }
+
+  return res.keys;
+ }
+
+
+ // =============================================================================
+
+
+ private static class Snapshot<K>
+ {
+  final int version;
+  final WeakKey<K> keys[];
+
+  Snapshot(int version, WeakKey<K> keys[])
+  {
+   this.version=version;
+   this.keys=keys;
+  }
+ }
+
+
+ // the key in the map, equal to another with an equal referent, or only to itself once cleared
+ private static class WeakKey<K> extends WeakReference<K>
+ {
+  final int hash;
+
+  WeakKey(K key, ReferenceQueue<K> queue)
+  {
+   super(key, queue);
+   hash=key.hashCode();
+  }
+
+  public int hashCode()
+  {
+   return hash;
+  }
+
+  public boolean equals(Object o)
+  {
+   if (this==o) return true;
+   if (o instanceof LookupKey) return o.equals(this);
+
+   if (o instanceof WeakKey)
+   {
+    Object key=get();
+    return (key!=null && key.equals(((WeakKey)o).get()));
+   }
+
+   return false;
+  }
+ }
+
+
+ // what get, containsKey and remove look for
+ private static class LookupKey
+ {
+  final Object key;
+  final int hash;
+
+  LookupKey(Object key)
+  {
+   this.key=key;
+   hash=key.hashCode();
+  }
+
+  public int hashCode()
+  {
+   return hash;
+  }
+
+  public boolean equals(Object o)
+  {
+   if (o instanceof WeakKey) return key.equals(((WeakKey)o).get());
+   return ((o instanceof LookupKey) && key.equals(((LookupKey)o).key));
+  }
+ }
+
+
+}
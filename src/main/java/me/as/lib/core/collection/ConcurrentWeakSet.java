@@ -0,0 +1,117 @@
+/*
+ * Copyright 2019 Antonio Sorrentini
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package me.as.lib.core.collection;
+
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+
+/**
+ * A thread safe set that holds its elements weakly: the thread safe, constant time
+ * counterpart of SimpleWeakList, made of the keys of a ConcurrentWeakKeyMap. Elements are
+ * compared with equals and cannot be null.
+ *
+ * forEach and the iterator walk a snapshot taken after the last change, without locks;
+ * forEach allocates nothing while the set does not change, unlike elements().
+ */
+public class ConcurrentWeakSet<E> implements Iterable<E>
+{
+ private final ConcurrentWeakKeyMap<E, Boolean> map;
+
+
+ public ConcurrentWeakSet()
+ {
+  this(16);
+ }
+
+
+ public ConcurrentWeakSet(int initialCapacity)
+ {
+  map=new ConcurrentWeakKeyMap<>(initialCapacity);
+ }
+
+
+ // false if it was already there
+ public boolean add(E e)
+ {
+  return (map.putIfAbsent(e, Boolean.TRUE)==null);
+ }
+
+
+ public boolean remove(Object o)
+ {
+  return (map.remove(o)!=null);
+ }
+
+
+ public boolean contains(Object o)
+ {
+  return map.containsKey(o);
+ }
+
+
+ public void clear()
+ {
+  map.clear();
+ }
+
+
+ // may count elements collected but not yet enqueued
+ public int size()
+ {
+  return map.size();
+ }
+
+
+ public boolean isEmpty()
+ {
+  return map.isEmpty();
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ public void forEach(Consumer<? super E> action)
+ {
+  map.forEach((e, ignore) -> action.accept(e));
+ }
+
+
+ // the iterator does not support remove
+ public Iterator<E> iterator()
+ {
+  return map.keys().iterator();
+ }
+
+
+ public List<E> toList()
+ {
+  return map.keys();
+ }
+
+
+ // like SimpleWeakList.elements()
+ public Object[] elements()
+ {
+  return map.keys().toArray();
+ }
+
+
+}
@@ -0,0 +1,951 @@
+/*
+ * Copyright 2019 Antonio Sorrentini
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package me.as.lib.core.collection;
+
+
+import me.as.lib.core.io.IOException;
+import me.as.lib.core.io.extra.BinaryInput;
+import me.as.lib.core.io.extra.BinaryOutput;
+
+import java.io.Closeable;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import static me.as.lib.core.collection.RamTable.*;
+
+
+/**
+ * A read only RamTable whose cells stay in a memory mapped file: the heap holds only the
+ * header, a small cache of decoded strings per column and (after a sort) the order of the
+ * rows, the operating system pages in what is read. A file made by create() in a process
+ * opens in another one in the time of reading its header.
+ *
+ * Every column has a fixed width section, so any cell is read without scanning:
+ *   Integer, Long, Double  a bitmap of the non null cells and the values (4 or 8 bytes)
+ *   String                 an int code per cell (-1 for null), the offsets of the distinct
+ *                          strings and their UTF-8 bytes
+ *   anything else          the offsets of the cells and their BinaryOutput.writeObject bytes
+ *
+ * The getters, sortByXxx and findInCol work like the ones of RamTable. Sorting does not
+ * touch the file: it gives the table an order of its rows (an int per row in the heap).
+ */
+public class MappedRamTable implements Closeable
+{
+ private static final byte magic[]={'R', 'T', 'M', 1};
+ private static final int headerSize=16;
+ private static final int columnEntrySize=32;
+
+ // every segment is mapped separately, a multiple of 8 so no aligned number crosses two
+ private static final int segmentBits=30;
+ private static final long segmentSize=1L << segmentBits;
+
+ // decoded strings kept for every string or object column
+ private static final int cacheSize=1 << 12;
+
+ private final File file;
+ private FileChannel channel;
+ private MappedByteBuffer segments[];
+
+ private final int cols;
+ private final int rows;
+ private final Column columns[];
+
+ // the row of the file shown in each row, null for the order of the file
+ private volatile int order[]=null;
+
+
+ static class Column
+ {
+  int type;
+  int dictionarySize;
+  long data;
+  long aux;
+  long blob;
+
+  // code (or row for objects) -> value, a slot per code & (cacheSize-1)
+  final int cachedKeys[]=new int[cacheSize];
+  final Object cachedValues[]=new Object[cacheSize];
+  HashMap<String, Integer> codesByString;
+
+  Column()
+  {
+   java.util.Arrays.fill(cachedKeys, -1);
+  }
+ }
+
+
+ private MappedRamTable(File file)
+ {
+  this.file=file;
+
+  try
+  {
+   channel=FileChannel.open(file.toPath(), StandardOpenOption.READ);
+   long size=channel.size();
+   int count=(int)((size+segmentSize-1) >>> segmentBits);
+   segments=new MappedByteBuffer[count];
+
+   for (int s=0;s<count;s++)
+   {
+    long from=(long)s << segmentBits;
+    segments[s]=channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(segmentSize, size-from));
+   }
+
+   if (size<headerSize) throw new IOException("MappedRamTable: "+file+" is not a table");
+   for (int t=0;t<magic.length;t++)
+   {
+    if (getByte(t)!=magic[t]) throw new IOException("MappedRamTable: "+file+" is not a table");
+   }
+
+   cols=getInt(4);
+   rows=getInt(8);
+   columns=new Column[cols];
+
+   for (int c=0;c<cols;c++)
+   {
+    long e=headerSize+(long)c*columnEntrySize;
+    Column col=new Column();
+    col.type=getInt(e);
+    col.dictionarySize=getInt(e+4);
+    col.data=getLong(e+8);
+    col.aux=getLong(e+16);
+    col.blob=getLong(e+24);
+    columns[c]=col;
+   }
+  }
+  catch (java.io.IOException e)
+  {
+   close();
+   throw new IOException(e);
+  }
+  catch (RuntimeException e)
+  {
+   close();
+   throw e;
+  }
+ }
+
+
+ public static MappedRamTable open(File file)
+ {
+  return new MappedRamTable(file);
+ }
+
+
+ /**
+  * Writes rt in file (replacing it) and opens it. The column types are the ones of rt
+  * if it is columnar, otherwise the class of all the non null cells of a column if they
+  * are all Integer, Long, Double or String.
+  */
+ public static MappedRamTable create(File file, RamTable rt)
+ {
+  Writer.write(file, rt);
+  return open(file);
+ }
+
+
+ public File getFile()
+ {
+  return file;
+ }
+
+
+ public synchronized void close()
+ {
+  segments=null;
+
+  if (channel!=null)
+  {
+   try
+   {
+    channel.close();
+   } catch (Throwable ignore) {}
+
+   channel=null;
+  }
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+ // raw reads, big endian like BytesRoom
+
+
+ private ByteBuffer segment(long pos)
+ {
+  MappedByteBuffer s[]=segments;
+  if (s==null) throw new IOException("MappedRamTable: "+file+" is closed");
+  return s[(int)(pos >>> segmentBits)];
+ }
+
+
+ private byte getByte(long pos)
+ {
+  return segment(pos).get((int)(pos & (segmentSize-1)));
+ }
+
+
+ private int getInt(long pos)
+ {
+  return segment(pos).getInt((int)(pos & (segmentSize-1)));
+ }
+
+
+ private long getLong(long pos)
+ {
+  return segment(pos).getLong((int)(pos & (segmentSize-1)));
+ }
+
+
+ private double getDoubleAt(long pos)
+ {
+  return segment(pos).getDouble((int)(pos & (segmentSize-1)));
+ }
+
+
+ // the bytes may cross two segments
+ private byte[] getBytes(long pos, int len)
+ {
+  byte res[]=new byte[len];
+  int done=0;
+
+  while (done<len)
+  {
+   ByteBuffer s=segment(pos+done).duplicate();
+   int off=(int)((pos+done) & (segmentSize-1));
+   int n=Math.min(len-done, s.limit()-off);
+   s.position(off);
+   s.get(res, done, n);
+   done+=n;
+  }
+
+  return res;
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ public int getRowsCount()
+ {
+  return rows;
+ }
+
+
+ public int getColsCount()
+ {
+  return cols;
+ }
+
+
+ // one of the RamTable.COLUMN_XXX flags
+ public int getColumnType(int col)
+ {
+  return column(col).type;
+ }
+
+
+ private Column column(int col)
+ {
+  if (col<0 || col>=cols) throw new ArrayIndexOutOfBoundsException("Invalid column index: "+col);
+  return columns[col];
+ }
+
+
+ // the row of the file
+ private int fileRow(int row)
+ {
+  if (row<0 || row>=rows) throw new ArrayIndexOutOfBoundsException("Invalid row index: "+row);
+  int o[]=order;
+  return ((o!=null)?o[row]:row);
+ }
+
+
+ private boolean isNull(Column c, int fr)
+ {
+  switch (c.type)
+  {
+   case COLUMN_INT:
+   case COLUMN_LONG:
+   case COLUMN_DOUBLE: return ((getByte(c.aux+(fr >>> 3)) & (1 << (fr & 7)))==0);
+   case COLUMN_STRING: return (getInt(c.data+4L*fr)<0);
+   default           : return (getLong(c.aux+8L*fr)==getLong(c.aux+8L*fr+8));
+  }
+ }
+
+
+ public boolean isEmpty(int col, int row)
+ {
+  return isNull(column(col), fileRow(row));
+ }
+
+
+ public Object getObject(int col, int row)
+ {
+  Column c=column(col);
+  int fr=fileRow(row);
+
+  if (isNull(c, fr)) return null;
+
+  switch (c.type)
+  {
+   case COLUMN_INT    : return getInt(c.data+4L*fr);
+   case COLUMN_LONG   : return getLong(c.data+8L*fr);
+   case COLUMN_DOUBLE : return getDoubleAt(c.data+8L*fr);
+   case COLUMN_STRING : return string(c, getInt(c.data+4L*fr));
+   default            : return object(c, fr);
+  }
+ }
+
+
+ public String getString(int col, int row)
+ {
+  Column c=column(col);
+  if (c.type==COLUMN_STRING)
+  {
+   int code=getInt(c.data+4L*fileRow(row));
+   return ((code>=0)?string(c, code):null);
+  }
+
+  Object o=getObject(col, row);
+  return ((o!=null)?o.toString():null);
+ }
+
+
+ public int getInt(int col, int row)
+ {
+  Column c=column(col);
+  int fr=fileRow(row);
+
+  switch (c.type)
+  {
+   case COLUMN_INT    : return ((isNull(c, fr))?0:getInt(c.data+4L*fr));
+   case COLUMN_LONG   : return ((isNull(c, fr))?0:(int)getLong(c.data+8L*fr));
+   case COLUMN_DOUBLE : return ((isNull(c, fr))?0:(int)getDoubleAt(c.data+8L*fr));
+   default            :
+    Object o=getObject(col, row);
+    if (o instanceof Number) return ((Number)o).intValue();
+    return ((o instanceof String)?Integer.parseInt((String)o):0);
+  }
+ }
+
+
+ public long getLong(int col, int row)
+ {
+  Column c=column(col);
+  int fr=fileRow(row);
+
+  switch (c.type)
+  {
+   case COLUMN_INT    : return ((isNull(c, fr))?0:getInt(c.data+4L*fr));
+   case COLUMN_LONG   : return ((isNull(c, fr))?0:getLong(c.data+8L*fr));
+   case COLUMN_DOUBLE : return ((isNull(c, fr))?0:(long)getDoubleAt(c.data+8L*fr));
+   default            :
+    Object o=getObject(col, row);
+    if (o instanceof Number) return ((Number)o).longValue();
+    return ((o instanceof String)?Long.parseLong((String)o):0);
+  }
+ }
+
+
+ public double getDouble(int col, int row)
+ {
+  Column c=column(col);
+  int fr=fileRow(row);
+
+  switch (c.type)
+  {
+   case COLUMN_INT    : return ((isNull(c, fr))?0:getInt(c.data+4L*fr));
+   case COLUMN_LONG   : return ((isNull(c, fr))?0:getLong(c.data+8L*fr));
+   case COLUMN_DOUBLE : return ((isNull(c, fr))?0:getDoubleAt(c.data+8L*fr));
+   default            :
+    Object o=getObject(col, row);
+    if (o instanceof Number) return ((Number)o).doubleValue();
+    return ((o instanceof String)?Double.parseDouble((String)o):0);
+  }
+ }
+
+
+ public float getFloat(int col, int row)
+ {
+  return (float)getDouble(col, row);
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ private String string(Column c, int code)
+ {
+  int slot=code & (cacheSize-1);
+
+  synchronized (c)
+  {
+   if (c.cachedKeys[slot]==code) return (String)c.cachedValues[slot];
+  }
+
+  long from=getLong(c.aux+8L*code);
+  long to=getLong(c.aux+8L*code+8);
+  String res=new String(getBytes(c.blob+from, (int)(to-from)), StandardCharsets.UTF_8);
+
+  synchronized (c)
+  {
+   c.cachedKeys[slot]=code;
+   c.cachedValues[slot]=res;
+  }
+
+  return res;
+ }
+
+
+ private Object object(Column c, int fr)
+ {
+  int slot=fr & (cacheSize-1);
+
+  synchronized (c)
+  {
+   if (c.cachedKeys[slot]==fr) return c.cachedValues[slot];
+  }
+
+  long from=getLong(c.aux+8L*fr);
+  long to=getLong(c.aux+8L*fr+8);
+  Object res=new BinaryInput(getBytes(c.blob+from, (int)(to-from))).readObject();
+
+  synchronized (c)
+  {
+   c.cachedKeys[slot]=fr;
+   c.cachedValues[slot]=res;
+  }
+
+  return res;
+ }
+
+
+ // the code of s in the dictionary of c, -1 if it is not there
+ private int codeOf(Column c, String s)
+ {
+  synchronized (c)
+  {
+   if (c.codesByString==null)
+   {
+    HashMap<String, Integer> map=new HashMap<>();
+    for (int code=0;code<c.dictionarySize;code++) map.put(string(c, code), code);
+    c.codesByString=map;
+   }
+
+   Integer res=c.codesByString.get(s);
+   return ((res!=null)?res:-1);
+  }
+ }
+
+
+ // =============================================================================
+ // finding
+
+
+ public int findInCol(int col, String value, int startRow)
+ {
+  Column c=column(col);
+
+  if (c.type==COLUMN_STRING)
+  {
+   int code=((value!=null)?codeOf(c, value):-1);
+   if (value!=null && code<0) return -1;
+
+   for (int r=Math.max(0, startRow);r<rows;r++)
+   {
+    if (getInt(c.data+4L*fileRow(r))==code) return r;
+   }
+
+   return -1;
+  }
+
+  for (int r=Math.max(0, startRow);r<rows;r++)
+  {
+   String s=getString(col, r);
+   if ((value==null)?s==null:value.equals(s)) return r;
+  }
+
+  return -1;
+ }
+
+
+ public int findInCol(int col, int value, int startRow)
+ {
+  Column c=column(col);
+
+  for (int r=Math.max(0, startRow);r<rows;r++)
+  {
+   // null cells are written as 0, like getInt reads them
+   if (c.type==COLUMN_INT)
+   {
+    if (getInt(c.data+4L*fileRow(r))==value) return r;
+   }
+   else if (getInt(col, r)==value) return r;
+  }
+
+  return -1;
+ }
+
+
+ public int findInCol(int col, long value, int startRow)
+ {
+  for (int r=Math.max(0, startRow);r<rows;r++)
+  {
+   if (getLong(col, r)==value) return r;
+  }
+
+  return -1;
+ }
+
+
+ public int findInCol(int col, double value, int startRow)
+ {
+  for (int r=Math.max(0, startRow);r<rows;r++)
+  {
+   if (getDouble(col, r)==value) return r;
+  }
+
+  return -1;
+ }
+
+
+ public int findInCol(int col, float value, int startRow)
+ {
+  for (int r=Math.max(0, startRow);r<rows;r++)
+  {
+   if (getFloat(col, r)==value) return r;
+  }
+
+  return -1;
+ }
+
+
+ public int findInCol(int col, Object value, int startRow)
+ {
+  if (value instanceof String) return findInCol(col, (String)value, startRow);
+
+  for (int r=Math.max(0, startRow);r<rows;r++)
+  {
+   Object o=getObject(col, r);
+   if ((value==null)?o==null:value.equals(o)) return r;
+  }
+
+  return -1;
+ }
+
+
+ // =============================================================================
+ // sorting: the same orders of RamTable.sortByXxx
+
+
+ public void sortByInt(int col)            {sort(col, 0, false);}
+ public void sortByDouble(int col)         {sort(col, 1, false);}
+ public void sortByFloat(int col)          {sort(col, 2, false);}
+ public void sortByString(int col)         {sort(col, 3, false);}
+ public void sortByLong(int col)           {sort(col, 4, false);}
+ public void sortByComparable(int col)     {sort(col, -1, false);}
+
+ public void sortByIntDESC(int col)        {sort(col, 0, true);}
+ public void sortByDoubleDESC(int col)     {sort(col, 1, true);}
+ public void sortByFloatDESC(int col)      {sort(col, 2, true);}
+ public void sortByStringDESC(int col)     {sort(col, 3, true);}
+ public void sortByLongDESC(int col)       {sort(col, 4, true);}
+ public void sortByComparableDESC(int col) {sort(col, -1, true);}
+
+
+ // back to the order of the file
+ public synchronized void clearOrder()
+ {
+  order=null;
+ }
+
+
+ // the row of the file shown in row
+ public int getFileRow(int row)
+ {
+  return fileRow(row);
+ }
+
+
+ // stable: rows with equal keys keep their current order
+ private synchronized void sort(int col, int sortType, boolean desc)
+ {
+  if (rows<2) return;
+
+  Column c=column(col);
+  RamTableSort.Key key=new RamTableSort.Key(desc);
+  int r;
+
+  switch (sortType)
+  {
+   case 0:
+    key.ints=new int[rows];
+    for (r=0;r<rows;r++) key.ints[r]=getInt(col, r);
+    break;
+
+   case 1:
+   case 2:
+    key.doubles=new double[rows];
+    for (r=0;r<rows;r++) key.doubles[r]=((sortType==1)?getDouble(col, r):getFloat(col, r));
+    break;
+
+   case 3:
+    if (c.type==COLUMN_STRING)
+    {
+     // the dictionary is sorted once, then every row is its code's rank
+     String dict[]=new String[c.dictionarySize];
+     for (int code=0;code<dict.length;code++) dict[code]=string(c, code);
+     int rankOfCode[]=RamTableSort.ranks(dict);
+
+     key.ints=new int[rows];
+     for (r=0;r<rows;r++)
+     {
+      int code=getInt(c.data+4L*fileRow(r));
+      key.ints[r]=((code>=0)?rankOfCode[code]:-1);
+     }
+    }
+    else
+    {
+     String strings[]=new String[rows];
+     for (r=0;r<rows;r++) strings[r]=getString(col, r);
+     key.ints=RamTableSort.ranks(strings);
+    }
+    break;
+
+   case 4:
+    key.longs=new long[rows];
+    for (r=0;r<rows;r++) key.longs[r]=getLong(col, r);
+    break;
+
+   default:
+    key.objects=new Object[rows];
+    for (r=0;r<rows;r++) key.objects[r]=getObject(col, r);
+    break;
+  }
+
+  int perm[]=RamTableSort.sort(new RamTableSort.Key[]{key}, rows);
+  int newOrder[]=new int[rows];
+  for (r=0;r<rows;r++) newOrder[r]=fileRow(perm[r]);
+  order=newOrder;
+ }
+
+
+ // a heap copy, in the current order
+ public RamTable toRamTable()
+ {
+  RamTable res=new RamTable();
+  res.setColumnar(true);
+
+  for (int c=0;c<cols;c++)
+  {
+   if (columns[c].type!=COLUMN_OBJECT) res.setColumnType(c, columns[c].type);
+  }
+
+  if (rows>0 && cols>0) res.forceColsAndRows(cols, rows);
+
+  for (int c=0;c<cols;c++)
+  {
+   for (int r=0;r<rows;r++) res.setObject(c, r, getObject(c, r));
+  }
+
+  return res;
+ }
+
+
+ // =============================================================================
+ // writing
+
+
+ static class Writer
+ {
+  final FileChannel ch;
+  final ByteBuffer buf=ByteBuffer.allocate(1 << 16);
+  long position=0;
+
+  Writer(FileChannel ch)
+  {
+   this.ch=ch;
+  }
+
+
+  static void write(File file, RamTable rt)
+  {
+   synchronized (rt)
+   {
+    try (FileChannel ch=FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                         StandardOpenOption.TRUNCATE_EXISTING))
+    {
+     Writer w=new Writer(ch);
+     int cols=rt.getColsCount();
+     int rows=((cols>0)?rt.getRowsCount():0);
+
+     // the header is written at the end, when the offsets are known
+     w.skip(headerSize+(long)cols*columnEntrySize);
+     w.align();
+
+     Column entries[]=new Column[cols];
+     for (int c=0;c<cols;c++) entries[c]=w.writeColumn(rt, c, rows);
+
+     w.flush();
+
+     ByteBuffer head=ByteBuffer.allocate(headerSize+cols*columnEntrySize);
+     head.put(magic);
+     head.putInt(cols);
+     head.putInt(rows);
+     head.putInt(0);
+
+     for (Column e : entries)
+     {
+      head.putInt(e.type);
+      head.putInt(e.dictionarySize);
+      head.putLong(e.data);
+      head.putLong(e.aux);
+      head.putLong(e.blob);
+     }
+
+     head.flip();
+     long at=0;
+     while (head.hasRemaining()) at+=ch.write(head, at);
+     ch.force(false);
+    }
+    catch (java.io.IOException e)
+    {
+     throw new IOException(e);
+    }
+   }
+  }
+
+
+  private static int typeOf(RamTable rt, int col, int rows)
+  {
+   int res=rt.getColumnType(col);
+
+   if (res==COLUMN_OBJECT)
+   {
+    Class type=null;
+
+    for (int r=0;r<rows;r++)
+    {
+     Object o=rt.getObject(col, r);
+
+     if (o!=null)
+     {
+      if (type==null) type=o.getClass();
+      else if (type!=o.getClass()) return COLUMN_OBJECT;
+     }
+    }
+
+    if (type==Integer.class) res=COLUMN_INT;
+    else if (type==Long.class) res=COLUMN_LONG;
+    else if (type==Double.class) res=COLUMN_DOUBLE;
+    else if (type==String.class) res=COLUMN_STRING;
+    else res=COLUMN_OBJECT;
+   }
+
+   return res;
+  }
+
+
+  Column writeColumn(RamTable rt, int col, int rows) throws java.io.IOException
+  {
+   Column res=new Column();
+   res.type=typeOf(rt, col, rows);
+   int r;
+
+   switch (res.type)
+   {
+    case COLUMN_INT:
+    case COLUMN_LONG:
+    case COLUMN_DOUBLE:
+    {
+     res.aux=position;
+     int bits=0;
+
+     for (r=0;r<rows;r++)
+     {
+      if (rt.getObject(col, r)!=null) bits|=1 << (r & 7);
+
+      if ((r & 7)==7)
+      {
+       putByte(bits);
+       bits=0;
+      }
+     }
+
+     if ((rows & 7)!=0) putByte(bits);
+     align();
+
+     res.data=position;
+
+     for (r=0;r<rows;r++)
+     {
+      switch (res.type)
+      {
+       case COLUMN_INT  : putInt(rt.getInt(col, r));break;
+       case COLUMN_LONG : putLong(rt.getLong(col, r));break;
+       default          : putLong(Double.doubleToRawLongBits(rt.getDouble(col, r)));break;
+      }
+     }
+
+     align();
+    } break;
+
+    case COLUMN_STRING:
+    {
+     HashMap<String, Integer> codes=new HashMap<>();
+     ArrayList<String> dictionary=new ArrayList<>();
+     res.data=position;
+
+     for (r=0;r<rows;r++)
+     {
+      String s=(String)rt.getObject(col, r);
+
+      if (s==null) putInt(-1);
+      else
+      {
+       Integer code=codes.get(s);
+
+       if (code==null)
+       {
+        code=dictionary.size();
+        dictionary.add(s);
+        codes.put(s, code);
+       }
+
+       putInt(code);
+      }
+     }
+
+     align();
+
+     res.dictionarySize=dictionary.size();
+     res.blob=position;
+     long offsets[]=new long[dictionary.size()+1];
+
+     for (int t=0;t<dictionary.size();t++)
+     {
+      byte b[]=dictionary.get(t).getBytes(StandardCharsets.UTF_8);
+      putBytes(b);
+      offsets[t+1]=offsets[t]+b.length;
+     }
+
+     align();
+     res.aux=position;
+     for (long o : offsets) putLong(o);
+    } break;
+
+    default:
+    {
+     BinaryOutput bo=new BinaryOutput();
+     long offsets[]=new long[rows+1];
+     res.blob=position;
+
+     for (r=0;r<rows;r++)
+     {
+      Object o=rt.getObject(col, r);
+      bo.reset();
+      if (o!=null) bo.writeObject(o);
+      putBytes(bo.getBuffer(), bo.size());
+      offsets[r+1]=offsets[r]+bo.size();
+     }
+
+     align();
+     res.aux=position;
+     for (long o : offsets) putLong(o);
+    } break;
+   }
+
+   return res;
+  }
+
+
+  // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+  private void room(int len) throws java.io.IOException
+  {
+   if (buf.remaining()<len) flush();
+  }
+
+  void flush() throws java.io.IOException
+  {
+   buf.flip();
+   while (buf.hasRemaining()) ch.write(buf, position-buf.remaining());
+   buf.clear();
+  }
+
+  void putByte(int v) throws java.io.IOException
+  {
+   room(1);
+   buf.put((byte)v);
+   position++;
+  }
+
+  void putInt(int v) throws java.io.IOException
+  {
+   room(4);
+   buf.putInt(v);
+   position+=4;
+  }
+
+  void putLong(long v) throws java.io.IOException
+  {
+   room(8);
+   buf.putLong(v);
+   position+=8;
+  }
+
+  void putBytes(byte b[]) throws java.io.IOException
+  {
+   putBytes(b, b.length);
+  }
+
+  void putBytes(byte b[], int len) throws java.io.IOException
+  {
+   int off=0;
+
+   while (off<len)
+   {
+    room(1);
+    int n=Math.min(buf.remaining(), len-off);
+    buf.put(b, off, n);
+    off+=n;
+    position+=n;
+   }
+  }
+
+  void skip(long len) throws java.io.IOException
+  {
+   flush();
+   position+=len;
+  }
+
+  // the next section starts at a multiple of 8
+  void align() throws java.io.IOException
+  {
+   while ((position & 7)!=0) putByte(0);
+  }
+ }
+
+
+}
@@ -18,7 +18,6 @@ package me.as.lib.core.collection;
 
 
 import me.as.lib.core.extra.QSortable;
-import me.as.lib.core.extra.QuickSort;
 import me.as.lib.core.lang.StringExtras;
 import me.as.lib.core.lang.ArrayExtras;
 import me.as.lib.core.math.MathExtras;
@@ -26,6 +25,8 @@ import me.as.lib.core.lang.ObjectExtras;
 import me.as.lib.core.log.Logable;
 import me.as.lib.core.log.LogableHandler;
 
+import java.util.concurrent.locks.StampedLock;
+
 import static me.as.lib.core.lang.StringExtras.considerableFalse;
 import static me.as.lib.core.lang.StringExtras.considerableTrue;
 import static me.as.lib.core.lang.ArrayExtras.changeArrayType;
@@ -85,6 +86,10 @@ class OneRow
   }
   */
   if ((cels!=null && cels.length<cols) || cels==null) resizeCels(cols+dis);
+
+  // the cells cut out must not come back when the row grows again
+  if (cols<curCols) java.util.Arrays.fill(cels, cols, curCols, null);
+
   curCols=cols;
  }
 
@@ -183,6 +188,22 @@ public class RamTable implements QSortable
  public final static int SORT_BY_STRING_ASC   =  7;
  public final static int SORT_BY_STRING_DESC  =  8;
 
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+ // the column types of a columnar RamTable (see setColumnar)
+
+ public final static int COLUMN_OBJECT  =  0;
+ public final static int COLUMN_INT     =  1;  // Integer cells, stored as int[]
+ public final static int COLUMN_LONG    =  2;  // Long cells, stored as long[]
+ public final static int COLUMN_DOUBLE  =  3;  // Double cells, stored as double[]
+ public final static int COLUMN_STRING  =  4;  // String cells, dictionary encoded
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+ // the secondary indexes (see createIndex)
+
+ public final static int INDEX_NONE     =  0;
+ public final static int INDEX_HASH     =  1;  // equality lookups
+ public final static int INDEX_SORTED   =  2;  // equality and range lookups
+
  // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
 
  private int dis;
@@ -192,6 +213,18 @@ public class RamTable implements QSortable
 
  private OneRow rows[]=null;
 
+ // in columnar mode rows is null and every column is one of these
+ private boolean columnar=false;
+ private ColumnVector columns[]=null;
+
+ // by column, null if no column is indexed
+ private ColumnIndex indexes[]=null;
+
+ // held in write mode by the methods changing the cells, see getObject
+ private final StampedLock cellsLock=new StampedLock();
+ private long writeStamp;
+ private int writeDepth=0;
+
 
 
  public RamTable()
@@ -222,6 +255,388 @@ public class RamTable implements QSortable
  }
 
 
+ /**
+  * In columnar mode the cells of each column are kept together: Integer, Long and Double
+  * columns in primitive arrays (plus a bitmap of the null cells), String columns dictionary
+  * encoded. Big tables take several times less memory, getInt/getLong/getDouble/getString
+  * do no unboxing nor instanceof chains and column scans are cache friendly.
+  * The type of a column is given by the first value put in it (or by setColumnType), as
+  * soon as a value of another class is put in it the column falls back to plain objects,
+  * so all the cells API works the same way in both modes.
+  */
+ public synchronized void setColumnar(boolean columnar)
+ {
+  beginWrite();
+
+  try
+  {
+   if (this.columnar!=columnar)
+   {
+    if (columnar)
+    {
+     ColumnVector cols[]=new ColumnVector[curCols+OneRow.dis];
+     for (int c=0;c<curCols;c++) cols[c]=toColumnVector(c);
+
+     rows=null;
+     columns=cols;
+    }
+    else
+    {
+     OneRow rs[]=new OneRow[curRows+dis];
+
+     for (int r=0;r<curRows;r++)
+     {
+      rs[r]=new OneRow(curCols);
+      for (int c=0;c<curCols;c++) rs[r].cels[c]=getObject(c, r);
+     }
+
+     columns=null;
+     rows=rs;
+    }
+
+    this.columnar=columnar;
+   }
+  }
+  finally
+  {
+   endWrite();
+  }
+ }
+
+
+ public synchronized boolean isColumnar()
+ {
+  return columnar;
+ }
+
+
+ /**
+  * Turns on the columnar mode (if needed) and gives col the type 'type' (one of the
+  * COLUMN_XXX flags). The cells already in col must all be null or of the class of type.
+  */
+ public synchronized void setColumnType(int col, int type)
+ {
+  beginWrite();
+
+  try
+  {
+   if (col<0) throw new ArrayIndexOutOfBoundsException("Invalid column index: "+col);
+   if (type<COLUMN_OBJECT || type>COLUMN_STRING) throw new IllegalArgumentException("Invalid column type: "+type);
+
+   setColumnar(true);
+
+   ColumnVector cv=ColumnVector.create(type, curRows+dis);
+
+   for (int r=0;r<curRows;r++)
+   {
+    Object o=getObject(col, r);
+
+    if (o!=null)
+    {
+     if (!cv.accepts(o))
+      throw new IllegalArgumentException("Column "+col+" cannot be of type "+type+", row "+r+" holds a "+o.getClass().getName());
+
+     cv.set(r, o);
+    }
+   }
+
+   grantColumns(col+1);
+   columns[col]=cv;
+
+   if (col>=curCols) curCols=col+1;
+  }
+  finally
+  {
+   endWrite();
+  }
+ }
+
+
+ // one of the COLUMN_XXX flags (COLUMN_OBJECT when not in columnar mode)
+ public synchronized int getColumnType(int col)
+ {
+  ColumnVector cv=columnVector(col);
+  return ((cv!=null)?cv.type:COLUMN_OBJECT);
+ }
+
+
+ private ColumnVector toColumnVector(int col)
+ {
+  int type=-1;
+
+  for (int r=0;r<curRows && type!=COLUMN_OBJECT;r++)
+  {
+   Object o=getObject(col, r);
+
+   if (o!=null)
+   {
+    int t=ColumnVector.typeOf(o);
+    type=((type==-1 || type==t)?t:COLUMN_OBJECT);
+   }
+  }
+
+  ColumnVector res=null;
+
+  if (type!=-1)
+  {
+   res=ColumnVector.create(type, curRows+dis);
+
+   for (int r=0;r<curRows;r++)
+   {
+    Object o=getObject(col, r);
+    if (o!=null) res.set(r, o);
+   }
+  }
+
+  return res;
+ }
+
+
+ ColumnVector columnVector(int col)
+ {
+  return ((columns!=null && col>=0 && col<curCols && col<columns.length)?columns[col]:null);
+ }
+
+
+ // the vector of col if it is typed and row is inside it, otherwise null
+ private ColumnVector typedColumnVector(int col, int row)
+ {
+  ColumnVector res=columnVector(col);
+
+  if (res!=null && (res.type==COLUMN_OBJECT || row<0 || row>=curRows || row>=res.capacity())) res=null;
+
+  return res;
+ }
+
+
+ private void grantColumns(int cols)
+ {
+  if (columns==null) columns=new ColumnVector[cols+OneRow.dis];
+  else if (cols>columns.length)
+  {
+   ColumnVector tmp[]=new ColumnVector[cols+OneRow.dis];
+   System.arraycopy(columns, 0, tmp, 0, columns.length);
+   columns=tmp;
+  }
+ }
+
+
+ private void setColumnarObject(int col, int row, Object value)
+ {
+  if (col<0) throw new ArrayIndexOutOfBoundsException("Invalid column index: "+col);
+  if (row<0) throw new ArrayIndexOutOfBoundsException("Invalid row index: "+row);
+
+  ColumnVector cv=((columns!=null && col<columns.length)?columns[col]:null);
+
+  if (value!=null)
+  {
+   if (cv==null)
+   {
+    cv=ColumnVector.create(ColumnVector.typeOf(value), Math.max(curRows, row+1)+dis);
+    grantColumns(col+1);
+    columns[col]=cv;
+   }
+   else if (!cv.accepts(value))
+   {
+    cv=cv.toObjects();
+    columns[col]=cv;
+   }
+
+   cv.ensure(row+1);
+   cv.set(row, value);
+  }
+  else
+  {
+   if (cv!=null && row<cv.capacity()) cv.set(row, null);
+  }
+
+  if (col>=curCols) curCols=col+1;
+  if (row>=curRows) curRows=row+1;
+ }
+
+
+ /**
+  * Creates (or replaces) the secondary index of col: INDEX_HASH for findRows/countRows,
+  * INDEX_SORTED also for findRowsInRange. Cells are matched with equals(), nulls are not
+  * indexed. setObject, insertRows, cutRows, swapRows, append & C. keep the index up to
+  * date cell by cell, the operations moving many rows (sorts, reverseRows, forceXxx)
+  * mark it to be rebuilt at its next use.
+  */
+ public synchronized void createIndex(int col, int indexType)
+ {
+  if (col<0) throw new ArrayIndexOutOfBoundsException("Invalid column index: "+col);
+
+  if (indexType==INDEX_NONE) dropIndex(col);
+  else
+  {
+   if (indexType!=INDEX_HASH && indexType!=INDEX_SORTED) throw new IllegalArgumentException("Invalid index type: "+indexType);
+
+   if (indexes==null) indexes=new ColumnIndex[col+OneRow.dis];
+   else if (col>=indexes.length) indexes=java.util.Arrays.copyOf(indexes, col+OneRow.dis);
+
+   indexes[col]=new ColumnIndex(indexType);
+  }
+ }
+
+
+ public synchronized void dropIndex(int col)
+ {
+  if (index(col)!=null) indexes[col]=null;
+ }
+
+
+ public synchronized int getIndexType(int col)
+ {
+  ColumnIndex ci=index(col);
+  return ((ci!=null)?ci.type:INDEX_NONE);
+ }
+
+
+ /**
+  * The rows (ascending) whose cell in col equals value. Without an index of col this
+  * is a scan of the column.
+  */
+ public synchronized int[] findRows(int col, Object value)
+ {
+  ColumnIndex ci=freshIndex(col);
+
+  if (ci!=null && value!=null)
+  {
+   int res[]=ci.rows(value);
+   if (res.length==0 || res[res.length-1]<curRows) return res;
+
+   // an index out of step with the rows must never give a row that is not there: rebuilt
+   ci.stale=true;
+   return freshIndex(col).rows(value);
+  }
+
+  int count=0, res[]=new int[16];
+
+  for (int r=0;r<curRows;r++)
+  {
+   Object o=getObject(col, r);
+
+   if ((value==null)?o==null:value.equals(o))
+   {
+    if (count==res.length) res=java.util.Arrays.copyOf(res, count*2);
+    res[count++]=r;
+   }
+  }
+
+  return java.util.Arrays.copyOf(res, count);
+ }
+
+
+ public synchronized int countRows(int col, Object value)
+ {
+  ColumnIndex ci=freshIndex(col);
+  if (ci!=null && value!=null) return ci.count(value);
+  return findRows(col, value).length;
+ }
+
+
+ /**
+  * The rows whose cell in col is between from and to (a null bound means no bound), ordered
+  * by cell value and then by row. Without a sorted index of col this is a scan and a sort.
+  * Null cells are never returned. Values of different classes are ordered as documented in
+  * ColumnIndex.order (numbers by value, otherwise by class name).
+  */
+ public synchronized int[] findRowsInRange(int col, Object from, boolean fromInclusive, Object to, boolean toInclusive)
+ {
+  ColumnIndex ci=freshIndex(col);
+  if (ci!=null && ci.type==INDEX_SORTED) return ci.rows(from, fromInclusive, to, toInclusive);
+
+  ColumnIndex tmp=new ColumnIndex(INDEX_SORTED);
+  for (int r=0;r<curRows;r++) tmp.add(r, getObject(col, r));
+  return tmp.rows(from, fromInclusive, to, toInclusive);
+ }
+
+
+ private ColumnIndex index(int col)
+ {
+  return ((indexes!=null && col>=0 && col<indexes.length)?indexes[col]:null);
+ }
+
+
+ // the index of col, rebuilt if it's stale
+ ColumnIndex freshIndex(int col)
+ {
+  ColumnIndex res=index(col);
+
+  if (res!=null && res.stale)
+  {
+   res.clear();
+   for (int r=0;r<curRows;r++) res.add(r, getObject(col, r));
+   res.stale=false;
+  }
+
+  return res;
+ }
+
+
+ private void invalidateIndexes()
+ {
+  if (indexes!=null)
+  {
+   for (ColumnIndex ci : indexes)
+   {
+    if (ci!=null && !ci.stale)
+    {
+     ci.stale=true;
+     ci.clear();
+    }
+   }
+  }
+ }
+
+
+ // true if at least an index has to be kept up to date
+ private boolean hasLiveIndexes()
+ {
+  if (indexes!=null)
+  {
+   for (ColumnIndex ci : indexes)
+   {
+    if (ci!=null && !ci.stale) return true;
+   }
+  }
+
+  return false;
+ }
+
+
+ // every change of the cells (or of the shape) of the table happens between these two,
+ // always holding the monitor: only the outermost call takes the lock
+ private void beginWrite()
+ {
+  if (writeDepth++==0) writeStamp=cellsLock.writeLock();
+ }
+
+
+ private void endWrite()
+ {
+  if (--writeDepth==0) cellsLock.unlockWrite(writeStamp);
+ }
+
+
+ // see RamTableQuery
+ public RamTableQuery query()
+ {
+  return new RamTableQuery(this);
+ }
+
+
+ /**
+  * A table with a row for each distinct combination of the values of keyCols (in the order
+  * of their first row): the key columns, then a column for each aggregate (see RamTableGroupBy).
+  * With no key columns the whole table is a single group.
+  */
+ public synchronized RamTable groupBy(int keyCols[], RamTableGroupBy.Aggregate... aggregates)
+ {
+  return RamTableGroupBy.groupBy(this, keyCols.clone(), aggregates.clone());
+ }
+
+
  public synchronized void setMid(int mididx, Object params)
  {
   int sortColNo=((sortParams)params).sortColNo;
@@ -317,20 +732,66 @@ public class RamTable implements QSortable
 
  public synchronized void swapRows(int row1, int row2)
  {
-  int max=((row1>row2)?row1:row2);
+  beginWrite();
 
-  if (max>=curRows)
+  try
   {
-   // giusto per far creare la righa
-   setObject(0, max, 1);
-   setObject(0, max, null);
-  }
+   int max=((row1>row2)?row1:row2);
+
+   if (max>=curRows && columnar)
+   {
+    curRows=max+1;
+    if (curCols==0) curCols=1;
+   }
+   else if (max>=curRows)
+   {
+    // giusto per far creare la righa
+    setObject(0, max, 1);
+    setObject(0, max, null);
+   }
 
-  if (row1!=row2)
+   if (row1!=row2)
+   {
+    if (hasLiveIndexes())
+    {
+     for (int c=0;c<indexes.length;c++)
+     {
+      ColumnIndex ci=indexes[c];
+
+      if (ci!=null && !ci.stale)
+      {
+       Object o1=getObject(c, row1);
+       Object o2=getObject(c, row2);
+       ci.update(row1, o1, o2);
+       ci.update(row2, o2, o1);
+      }
+     }
+    }
+
+    if (columnar)
+    {
+     for (int c=0;c<curCols;c++)
+     {
+      ColumnVector cv=columnVector(c);
+
+      if (cv!=null)
+      {
+       cv.ensure(max+1);
+       cv.swap(row1, row2);
+      }
+     }
+    }
+    else
+    {
+     OneRow r1=rows[row1];
+     rows[row1]=rows[row2];
+     rows[row2]=r1;
+    }
+   }
+  }
+  finally
   {
-   OneRow r1=rows[row1];
-   rows[row1]=rows[row2];
-   rows[row2]=r1;
+   endWrite();
   }
  }
 
@@ -339,187 +800,212 @@ public class RamTable implements QSortable
  public synchronized void sortMoreColumns(final int cols[], final int sortTypes[])
  {
   if (curRows>0 && cols!=null && sortTypes!=null && cols.length==sortTypes.length && cols.length>0)
-    new QuickSort(
-       new QSortable()
-       {
-        int nuc=cols.length;
-        int ints[]=new int[nuc];
-        double doubles[]=new double[nuc];
-        float floats[]=new float[nuc];
-        String strings[]=new String[nuc];
+   applyRowsOrder(getSortedRowsOrder(cols, sortTypes));
+ }
 
-        public void setMid(int mididx, Object params)
-        {
-         int c;
 
-         for (c=0;c<nuc;c++)
-         {
-          switch (sortTypes[c])
-          {
-           case SORT_BY_INT_ASC:
-           case SORT_BY_INT_DESC:
-                {
-                 ints[c]=getInt(cols[c], mididx);
-                } break;
-
-           case SORT_BY_DOUBLE_ASC:
-           case SORT_BY_DOUBLE_DESC:
-                {
-                 doubles[c]=getDouble(cols[c], mididx);
-                } break;
-
-           case SORT_BY_FLOAT_ASC:
-           case SORT_BY_FLOAT_DESC:
-                {
-                 floats[c]=getFloat(cols[c], mididx);
-                } break;
-
-           case SORT_BY_STRING_ASC:
-           case SORT_BY_STRING_DESC:
-                {
-                 strings[c]=getString(cols[c], mididx);
-                } break;
-          }
-         }
-        }
+ /**
+  * The order sortMoreColumns(cols, sortTypes) would give to the rows, without moving them:
+  * res[i] is the row that would go in position i. Rows with equal keys keep their order.
+  */
+ public synchronized int[] getSortedRowsOrder(int cols[], int sortTypes[])
+ {
+  int len=((cols!=null && sortTypes!=null)?Math.min(cols.length, sortTypes.length):0);
+  RamTableSort.Key keys[]=new RamTableSort.Key[len];
+  int count=0;
 
-        // must return:
-        // <0 if elem1<mid
-        // 0 if elem1==mid
-        // >0 if elem1>mid
-        public int compareToMid(int elem1, Object params)
-        {
-         int res=0;
-         int c;
+  for (int t=0;t<len;t++)
+  {
+   switch (sortTypes[t])
+   {
+    case SORT_BY_INT_ASC     :
+    case SORT_BY_INT_DESC    :keys[count++]=sortKey(cols[t], 0, sortTypes[t]==SORT_BY_INT_DESC);break;
+    case SORT_BY_DOUBLE_ASC  :
+    case SORT_BY_DOUBLE_DESC :keys[count++]=sortKey(cols[t], 1, sortTypes[t]==SORT_BY_DOUBLE_DESC);break;
+    case SORT_BY_FLOAT_ASC   :
+    case SORT_BY_FLOAT_DESC  :keys[count++]=sortKey(cols[t], 2, sortTypes[t]==SORT_BY_FLOAT_DESC);break;
+    case SORT_BY_STRING_ASC  :
+    case SORT_BY_STRING_DESC :keys[count++]=sortKey(cols[t], 3, sortTypes[t]==SORT_BY_STRING_DESC);break;
+   }
+  }
 
-         for (c=0;c<nuc && res==0;c++)
-         {
-          switch (sortTypes[c])
-          {
-           case SORT_BY_INT_ASC:
-           case SORT_BY_INT_DESC:
-                {
-                 int e1=getInt(cols[c], elem1);
-                 int e2=ints[c];
-                 res=((e1<e2)?-1:((e1>e2)?1:0));
-                 if (sortTypes[c]==SORT_BY_INT_DESC) res*=-1;
-                } break;
-
-           case SORT_BY_DOUBLE_ASC:
-           case SORT_BY_DOUBLE_DESC:
-                {
-                 double e1=getDouble(cols[c], elem1);
-                 double e2=doubles[c];
-                 res=((e1<e2)?-1:((e1>e2)?1:0));
-                 if (sortTypes[c]==SORT_BY_DOUBLE_DESC) res*=-1;
-                } break;
-
-           case SORT_BY_FLOAT_ASC:
-           case SORT_BY_FLOAT_DESC:
-                {
-                 float e1=getFloat(cols[c], elem1);
-                 float e2=floats[c];
-                 res=((e1<e2)?-1:((e1>e2)?1:0));
-                 if (sortTypes[c]==SORT_BY_FLOAT_DESC) res*=-1;
-                } break;
-
-           case SORT_BY_STRING_ASC:
-           case SORT_BY_STRING_DESC:
-                {
-                 String e1=getString(cols[c], elem1);
-                 String e2=strings[c];
-
-                 if (e1==null && e2==null) res=0;
-                 else
-                 {
-                  if (e1==null) res=-1;
-                  else
-                  {
-                   if (e2==null) res=1;
-                   else res=e1.compareTo(e2);
-                  }
-                 }
-
-                 if (sortTypes[c]==SORT_BY_STRING_DESC) res*=-1;
-                } break;
-          }
-         }
+  if (count<len)
+  {
+   RamTableSort.Key tmp[]=new RamTableSort.Key[count];
+   System.arraycopy(keys, 0, tmp, 0, count);
+   keys=tmp;
+  }
 
-         return res;
-        }
+  return RamTableSort.sort(keys, curRows);
+ }
 
-        public boolean swap(int elem1, int elem2, Object params)
-        {
-         swapRows(elem1, elem2);
-         return true;
-        }
-       }, 0, curRows-1, null);
+
+ // sortType is as in sortParams
+ private void sortRows(int col, int sortType, boolean desc)
+ {
+  if (curRows>0) applyRowsOrder(RamTableSort.sort(new RamTableSort.Key[]{sortKey(col, sortType, desc)}, curRows));
+ }
+
+
+ // the keys are read once, in primitive arrays when possible. sortType is as in sortParams
+ private RamTableSort.Key sortKey(int col, int sortType, boolean desc)
+ {
+  RamTableSort.Key res=new RamTableSort.Key(desc);
+  ColumnVector cv=columnVector(col);
+  if (cv!=null && cv.type==COLUMN_OBJECT) cv=null;
+  int r, n=curRows, cap=((cv!=null)?Math.min(n, cv.capacity()):0);
+
+  switch (sortType)
+  {
+   case 0:
+   {
+    res.ints=new int[n];
+    if (cv!=null) for (r=0;r<cap;r++) res.ints[r]=cv.getInt(r);
+    else for (r=0;r<n;r++) res.ints[r]=getInt(col, r);
+   } break;
+
+   case 1:
+   {
+    res.doubles=new double[n];
+    if (cv!=null) for (r=0;r<cap;r++) res.doubles[r]=cv.getDouble(r);
+    else for (r=0;r<n;r++) res.doubles[r]=getDouble(col, r);
+   } break;
+
+   case 2:
+   {
+    res.doubles=new double[n];
+    if (cv!=null) for (r=0;r<cap;r++) res.doubles[r]=cv.getFloat(r);
+    else for (r=0;r<n;r++) res.doubles[r]=getFloat(col, r);
+   } break;
+
+   case 3:
+   {
+    if (cv instanceof ColumnVector.StringVector) res.ints=RamTableSort.ranks((ColumnVector.StringVector)cv, n);
+    else
+    {
+     String strings[]=new String[n];
+     for (r=0;r<n;r++) strings[r]=getString(col, r);
+     res.ints=RamTableSort.ranks(strings);
+    }
+   } break;
+
+   case 4:
+   {
+    res.longs=new long[n];
+    if (cv!=null) for (r=0;r<cap;r++) res.longs[r]=cv.getLong(r);
+    else for (r=0;r<n;r++) res.longs[r]=getLong(col, r);
+   } break;
+
+   default:
+   {
+    res.objects=new Object[n];
+    for (r=0;r<n;r++) res.objects[r]=getObject(col, r);
+   } break;
+  }
+
+  return res;
+ }
+
+
+ // moves every row once: row perm[i] goes in position i
+ private void applyRowsOrder(int perm[])
+ {
+  beginWrite();
+
+  try
+  {
+   invalidateIndexes();
+
+   if (columnar)
+   {
+    for (int c=0;c<curCols;c++)
+    {
+     ColumnVector cv=columnVector(c);
+
+     if (cv!=null)
+     {
+      cv.ensure(perm.length);
+      cv.permute(perm);
+     }
+    }
+   }
+   else
+   {
+    OneRow nr[]=rows.clone();
+    for (int t=0;t<perm.length;t++) nr[t]=rows[perm[t]];
+    rows=nr;
+   }
+  }
+  finally
+  {
+   endWrite();
+  }
  }
 
 
 
  public synchronized void sortByComparable(int col)
  {
-  if (curRows>0) new QuickSort(this, 0, curRows-1, new sortParams(-1, col, false));
+  sortRows(col, -1, false);
  }
 
 
  public synchronized void sortByInt(int col)
  {
-  if (curRows>0) new QuickSort(this, 0, curRows-1, new sortParams(0, col, false));
+  sortRows(col, 0, false);
  }
 
  public synchronized void sortByDouble(int col)
  {
-  if (curRows>0) new QuickSort(this, 0, curRows-1, new sortParams(1, col, false));
+  sortRows(col, 1, false);
  }
 
  public synchronized void sortByFloat(int col)
  {
-  if (curRows>0) new QuickSort(this, 0, curRows-1, new sortParams(2, col, false));
+  sortRows(col, 2, false);
  }
 
  public synchronized void sortByString(int col)
  {
-  if (curRows>0) new QuickSort(this, 0, curRows-1, new sortParams(3, col, false));
+  sortRows(col, 3, false);
  }
 
  public synchronized void sortByLong(int col)
  {
-  if (curRows>0) new QuickSort(this, 0, curRows-1, new sortParams(4, col, false));
+  sortRows(col, 4, false);
  }
 
 
 
  public synchronized void sortByComparableDESC(int col)
  {
-  if (curRows>0) new QuickSort(this, 0, curRows-1, new sortParams(-1, col, true));
+  sortRows(col, -1, true);
  }
 
 
  public synchronized void sortByIntDESC(int col)
  {
-  if (curRows>0) new QuickSort(this, 0, curRows-1, new sortParams(0, col, true));
+  sortRows(col, 0, true);
  }
 
  public synchronized void sortByDoubleDESC(int col)
  {
-  if (curRows>0) new QuickSort(this, 0, curRows-1, new sortParams(1, col, true));
+  sortRows(col, 1, true);
  }
 
  public synchronized void sortByFloatDESC(int col)
  {
-  if (curRows>0) new QuickSort(this, 0, curRows-1, new sortParams(2, col, true));
+  sortRows(col, 2, true);
  }
 
  public synchronized void sortByStringDESC(int col)
  {
-  if (curRows>0) new QuickSort(this, 0, curRows-1, new sortParams(3, col, true));
+  sortRows(col, 3, true);
  }
 
  public synchronized void sortByLongDESC(int col)
  {
-  if (curRows>0) new QuickSort(this, 0, curRows-1, new sortParams(4, col, true));
+  sortRows(col, 4, true);
  }
 
 
@@ -527,9 +1013,49 @@ public class RamTable implements QSortable
 
  public synchronized void clear()
  {
-  curCols=0;
-  curRows=0;
-  rows=null;
+  beginWrite();
+
+  try
+  {
+   invalidateIndexes();
+   curCols=0;
+   curRows=0;
+   rows=null;
+   columns=null;
+  }
+  finally
+  {
+   endWrite();
+  }
+ }
+
+
+ // replaces all the cells with the ones of cols (columnar mode), see RamTableCsvLoader
+ synchronized void setColumns(ColumnVector cols[], int rows)
+ {
+  beginWrite();
+
+  try
+  {
+   invalidateIndexes();
+   this.rows=null;
+   columns=null;
+   columnar=true;
+
+   grantColumns(cols.length);
+   for (int c=0;c<cols.length;c++)
+   {
+    if (cols[c]!=null) cols[c].ensure(rows);
+    columns[c]=cols[c];
+   }
+
+   curCols=cols.length;
+   curRows=rows;
+  }
+  finally
+  {
+   endWrite();
+  }
  }
 
  public boolean isEmpty()
@@ -624,74 +1150,170 @@ public class RamTable implements QSortable
 
  public synchronized void reverseRows()
  {
-  if (rows!=null && curRows>0)
+  beginWrite();
+
+  try
   {
-   int t, len=ArrayExtras.length(rows);
-   OneRow tmp[]=new OneRow[len];
+   invalidateIndexes();
 
-   for (t=0;t<curRows;t++)
+   if (columnar)
+   {
+    for (int c=0;c<curCols;c++)
+    {
+     ColumnVector cv=columnVector(c);
+     if (cv!=null) cv.reverse(curRows);
+    }
+   }
+   else if (rows!=null && curRows>0)
    {
-    tmp[t]=rows[curRows-1-t];
+    int t, len=ArrayExtras.length(rows);
+    OneRow tmp[]=new OneRow[len];
+
+    for (t=0;t<curRows;t++)
+    {
+     tmp[t]=rows[curRows-1-t];
+    }
+
+    rows=tmp;
    }
+  }
+  finally
+  {
+   endWrite();
+  }
+ }
+
+
+
 
-   rows=tmp;
+ public synchronized void compact()
+ {
+  beginWrite();
+
+  try
+  {
+   forceColsAndRows(curCols, curRows);
+
+   if (columnar)
+   {
+    for (int c=0;c<curCols;c++)
+    {
+     ColumnVector cv=columnVector(c);
+     if (cv!=null) cv.compact(curRows);
+    }
+   }
+  }
+  finally
+  {
+   endWrite();
   }
  }
 
 
 
+ public synchronized void forceColsAndRows(int cols, int rows)
+ {
+  forceRowsCount(rows);
+  forceColsCount(cols);
+ }
+
+ public synchronized void forceColsCount(int cols)
+ {
+  beginWrite();
+
+  try
+  {
+   if (cols<curCols) invalidateIndexes();
+
+   /*
+   if (curCols>cols)
+   {
+    int t;
+    for (t=0;t<curRows;t++)
+    {
+     if (rows[t]!=null) rows[t].forceColsCount(cols);
+    }
+   }
+   */
+
+   if (columnar)
+   {
+    if (columns!=null)
+    {
+     for (int c=cols;c<columns.length;c++) columns[c]=null;
+    }
+   }
+   else
+   {
+    int t;
+    for (t=0;t<curRows;t++)
+    {
+     if (rows[t]!=null) rows[t].forceColsCount(cols);
+     else rows[t]=new OneRow(cols);
+    }
+   }
 
- public synchronized void compact()
- {
-  forceColsAndRows(curCols, curRows);
+   curCols=cols;
+  }
+  finally
+  {
+   endWrite();
+  }
  }
 
-
-
- public synchronized void forceColsAndRows(int cols, int rows)
+ public synchronized void forceRowsCount(int rows)
  {
-  forceRowsCount(rows);
-  forceColsCount(cols);
- }
+  beginWrite();
 
- public synchronized void forceColsCount(int cols)
- {
-  /*
-  if (curCols>cols)
+  try
   {
-   int t;
-   for (t=0;t<curRows;t++)
+   if (rows<curRows) invalidateIndexes();
+
+   if (columnar)
    {
-    if (rows[t]!=null) rows[t].forceColsCount(cols);
+    for (int c=0;c<curCols;c++)
+    {
+     ColumnVector cv=columnVector(c);
+     if (cv!=null) cv.truncate(rows, dis);
+    }
+   }
+   else
+   {
+    //if (curRows>rows) resizeRows(rows+dis);
+    resizeRows(rows+dis);
+    for (int r=rows;r<curRows && r<this.rows.length;r++) this.rows[r]=null;
    }
-  }
-  */
 
-  int t;
-  for (t=0;t<curRows;t++)
+   curRows=rows;
+  }
+  finally
   {
-   if (rows[t]!=null) rows[t].forceColsCount(cols);
-   else rows[t]=new OneRow(cols);
+   endWrite();
   }
-
-  curCols=cols;
  }
 
- public synchronized void forceRowsCount(int rows)
+ public int getColsCount()
  {
-  //if (curRows>rows) resizeRows(rows+dis);
-  resizeRows(rows+dis);
-  curRows=rows;
- }
+  long stamp=cellsLock.tryOptimisticRead();
+  int res=curCols;
+  if (stamp!=0 && cellsLock.validate(stamp)) return res;
 
- public synchronized int getColsCount()
- {
-  return curCols;
+  synchronized (this)
+  {
+   return curCols;
+  }
  }
 
- public synchronized int getRowsCount()
+ public int getRowsCount()
  {
-  return curRows;
+  long stamp=cellsLock.tryOptimisticRead();
+  int res=curRows;
+  if (stamp!=0 && cellsLock.validate(stamp)) return res;
+
+  synchronized (this)
+  {
+   return curRows;
+  }
  }
 
 
@@ -843,33 +1465,61 @@ public class RamTable implements QSortable
 
  public synchronized void setObject(int col, int row, Object value)
  {
-  try
+  ColumnIndex ci=index(col);
+
+  if (ci!=null && !ci.stale)
   {
-   OneRow r=rows[row];
-   r.cels[col]=value;
-   if (col>=r.curCols) r.curCols=col+1;
-   if (col>=curCols) curCols=col+1;
-   if (row>=curRows) curRows=row+1;
-  }
-  catch (Throwable tr)
+   Object old=getObject(col, row);
+   storeObject(col, row, value);
+   ci.update(row, old, value);
+  } else storeObject(col, row, value);
+ }
+
+
+ private void storeObject(int col, int row, Object value)
+ {
+  beginWrite();
+
+  try
   {
-   if (col<0) throw new ArrayIndexOutOfBoundsException("Invalid column index: "+col);
-   if (row<0) throw new ArrayIndexOutOfBoundsException("Invalid row index: "+row);
+   if (columnar)
+   {
+    setColumnarObject(col, row, value);
+    return;
+   }
 
-   if (superSpeed)
+   try
    {
-    int r_curRows=curRows;
-    int r_curCols=curCols;
+    OneRow r=rows[row];
+    r.cels[col]=value;
+    if (col>=r.curCols) r.curCols=col+1;
+    if (col>=curCols) curCols=col+1;
+    if (row>=curRows) curRows=row+1;
+   }
+   catch (Throwable tr)
+   {
+    if (col<0) throw new ArrayIndexOutOfBoundsException("Invalid column index: "+col);
+    if (row<0) throw new ArrayIndexOutOfBoundsException("Invalid row index: "+row);
+
+    if (superSpeed)
+    {
+     int r_curRows=curRows;
+     int r_curCols=curCols;
 
-    int maxc=((curCols>col)?curCols:col);
-    int maxr=((curRows>row)?curRows:row);
+     int maxc=((curCols>col)?curCols:col);
+     int maxr=((curRows>row)?curRows:row);
 
-    forceColsAndRows(maxc+OneRow.dis, maxr+dis);
+     forceColsAndRows(maxc+OneRow.dis, maxr+dis);
 
-    curRows=r_curRows;
-    curCols=r_curCols;
-    setObject(col, row, value);
-   } else _slow_setObject(col, row, value);
+     curRows=r_curRows;
+     curCols=r_curCols;
+     storeObject(col, row, value);
+    } else _slow_setObject(col, row, value);
+   }
+  }
+  finally
+  {
+   endWrite();
   }
  }
 
@@ -982,10 +1632,162 @@ public class RamTable implements QSortable
 
 
 
- public synchronized String getString(int col, int row)
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+ // the readers of the cells are not synchronized: they read optimistically and check that
+ // no writer changed the table meanwhile (see beginWrite), otherwise they read again
+ // holding the monitor. Many threads reading the same table do not contend.
+
+
+ public Object getObject(int col, int row)
+ {
+  long stamp=cellsLock.tryOptimisticRead();
+
+  if (stamp!=0)
+  {
+   try
+   {
+    Object res=readObject(col, row);
+    if (cellsLock.validate(stamp)) return res;
+   } catch (RuntimeException ignore) {}
+  }
+
+  synchronized (this)
+  {
+   return readObject(col, row);
+  }
+ }
+
+
+ public String getString(int col, int row)
+ {
+  long stamp=cellsLock.tryOptimisticRead();
+
+  if (stamp!=0)
+  {
+   try
+   {
+    String res=readString(col, row);
+    if (cellsLock.validate(stamp)) return res;
+   } catch (RuntimeException ignore) {}
+  }
+
+  synchronized (this)
+  {
+   return readString(col, row);
+  }
+ }
+
+
+ public long getLong(int col, int row)
+ {
+  long stamp=cellsLock.tryOptimisticRead();
+
+  if (stamp!=0)
+  {
+   try
+   {
+    long res=readLong(col, row);
+    if (cellsLock.validate(stamp)) return res;
+   } catch (RuntimeException ignore) {}
+  }
+
+  synchronized (this)
+  {
+   return readLong(col, row);
+  }
+ }
+
+
+ public int getInt(int col, int row)
+ {
+  long stamp=cellsLock.tryOptimisticRead();
+
+  if (stamp!=0)
+  {
+   try
+   {
+    int res=readInt(col, row);
+    if (cellsLock.validate(stamp)) return res;
+   } catch (RuntimeException ignore) {}
+  }
+
+  synchronized (this)
+  {
+   return readInt(col, row);
+  }
+ }
+
+
+ public boolean getBoolean(int col, int row)
+ {
+  long stamp=cellsLock.tryOptimisticRead();
+
+  if (stamp!=0)
+  {
+   try
+   {
+    boolean res=readBoolean(col, row);
+    if (cellsLock.validate(stamp)) return res;
+   } catch (RuntimeException ignore) {}
+  }
+
+  synchronized (this)
+  {
+   return readBoolean(col, row);
+  }
+ }
+
+
+ public double getDouble(int col, int row)
+ {
+  long stamp=cellsLock.tryOptimisticRead();
+
+  if (stamp!=0)
+  {
+   try
+   {
+    double res=readDouble(col, row);
+    if (cellsLock.validate(stamp)) return res;
+   } catch (RuntimeException ignore) {}
+  }
+
+  synchronized (this)
+  {
+   return readDouble(col, row);
+  }
+ }
+
+
+ public float getFloat(int col, int row)
+ {
+  long stamp=cellsLock.tryOptimisticRead();
+
+  if (stamp!=0)
+  {
+   try
+   {
+    float res=readFloat(col, row);
+    if (cellsLock.validate(stamp)) return res;
+   } catch (RuntimeException ignore) {}
+  }
+
+  synchronized (this)
+  {
+   return readFloat(col, row);
+  }
+ }
+
+
+ private String readString(int col, int row)
  {
+  if (columnar)
+  {
+   ColumnVector cv=typedColumnVector(col, row);
+   if (cv!=null) return cv.getString(row);
+  }
+
   String res=null;
-  Object ores=getObject(col, row);
+  Object ores=readObject(col, row);
 
   if (ores!=null)
   {
@@ -995,10 +1797,16 @@ public class RamTable implements QSortable
   return res;
  }
 
- public synchronized long getLong(int col, int row)
+ private long readLong(int col, int row)
  {
+  if (columnar)
+  {
+   ColumnVector cv=typedColumnVector(col, row);
+   if (cv!=null) return cv.getLong(row);
+  }
+
   long res=0;
-  Object ores=getObject(col, row);
+  Object ores=readObject(col, row);
 
   if (ores!=null)
   {
@@ -1014,10 +1822,16 @@ public class RamTable implements QSortable
  }
 
 
- public synchronized int getInt(int col, int row)
+ private int readInt(int col, int row)
  {
+  if (columnar)
+  {
+   ColumnVector cv=typedColumnVector(col, row);
+   if (cv!=null) return cv.getInt(row);
+  }
+
   int res=0;
-  Object ores=getObject(col, row);
+  Object ores=readObject(col, row);
 
   if (ores!=null)
   {
@@ -1033,10 +1847,10 @@ public class RamTable implements QSortable
  }
 
 
- public synchronized boolean getBoolean(int col, int row)
+ private boolean readBoolean(int col, int row)
  {
   boolean res=false;
-  Object ores=getObject(col, row);
+  Object ores=readObject(col, row);
 
   if (ores!=null)
   {
@@ -1078,10 +1892,16 @@ public class RamTable implements QSortable
 
 
 
- public synchronized double getDouble(int col, int row)
+ private double readDouble(int col, int row)
  {
+  if (columnar)
+  {
+   ColumnVector cv=typedColumnVector(col, row);
+   if (cv!=null) return cv.getDouble(row);
+  }
+
   double res=0;
-  Object ores=getObject(col, row);
+  Object ores=readObject(col, row);
 
   if (ores!=null)
   {
@@ -1096,10 +1916,16 @@ public class RamTable implements QSortable
   return res;
  }
 
- public synchronized float getFloat(int col, int row)
+ private float readFloat(int col, int row)
  {
+  if (columnar)
+  {
+   ColumnVector cv=typedColumnVector(col, row);
+   if (cv!=null) return cv.getFloat(row);
+  }
+
   float res=0;
-  Object ores=getObject(col, row);
+  Object ores=readObject(col, row);
 
   if (ores!=null)
   {
@@ -1114,16 +1940,23 @@ public class RamTable implements QSortable
   return res;
  }
 
- public synchronized Object getObject(int col, int row)
+ // not synchronized, see getObject
+ Object readObject(int col, int row)
  {
   if (row>=0 && row<curRows)
   {
+   if (columnar)
+   {
+    ColumnVector cv=columnVector(col);
+    return ((cv!=null && row<cv.capacity())?cv.get(row):null);
+   }
+
    return ((rows[row]!=null)?rows[row].getObject(col):null);
   } else return null;
  }
 
 
- public synchronized boolean isEmpty(int col, int row)
+ public boolean isEmpty(int col, int row)
  {
   return (getObject(col, row)==null);
  }
@@ -1461,18 +2294,17 @@ public class RamTable implements QSortable
 
   if (colNo>0 && colNo<getColsCount())
   {
-   int r, count=getRowsCount();
+   // like in testLIKEOnCell a true CaseSensitive ignores the case
+   RamTableView found=query().where((sub!=null)
+                                    ?RamTableQuery.contains(colNo, sub, !CaseSensitive)
+                                    :RamTableQuery.equalTo(colNo, null)).execute();
+
+   int r, count=found.getRowsCount();
 
-   if (count>0)
+   for (r=0;r<count;r++)
    {
-    for (r=0;r<count;r++)
-    {
-     if (testLIKEOnCell(colNo, r, sub, CaseSensitive))
-     {
-      if (res==null) res=new RamTable();
-      res.appendRow(this, r);
-     }
-    }
+    if (res==null) res=new RamTable();
+    res.appendRow(this, found.getRowId(r));
    }
   }
 
@@ -1484,28 +2316,55 @@ public class RamTable implements QSortable
 
  public synchronized void insertRows(int rowsInsertPoint, int numOfRowsToBeInserted)
  {
-  int _rows=getRowsCount();
-  int _cols=getColsCount();
+  beginWrite();
 
-  if (_cols>0 && numOfRowsToBeInserted>0)
+  try
   {
-   if (rowsInsertPoint>=_rows) forceRowsCount(_rows+numOfRowsToBeInserted);
-   else
+   int _rows=getRowsCount();
+   int _cols=getColsCount();
+
+   if (_cols>0 && numOfRowsToBeInserted>0)
    {
-    if (rowsInsertPoint<_rows && rowsInsertPoint>=0)
+    if (rowsInsertPoint<_rows && rowsInsertPoint>=0 && indexes!=null)
     {
-     forceRowsCount(_rows+numOfRowsToBeInserted);
-     System.arraycopy(rows, rowsInsertPoint, rows, rowsInsertPoint+numOfRowsToBeInserted, _rows-rowsInsertPoint);
+     for (ColumnIndex ci : indexes)
+     {
+      if (ci!=null && !ci.stale) ci.insertRows(rowsInsertPoint, numOfRowsToBeInserted, _rows);
+     }
+    }
 
-     int r, c;
+    if (rowsInsertPoint>=_rows) forceRowsCount(_rows+numOfRowsToBeInserted);
+    else
+    {
+     if (rowsInsertPoint<_rows && rowsInsertPoint>=0 && columnar)
+     {
+      for (int c=0;c<_cols;c++)
+      {
+       ColumnVector cv=columnVector(c);
+       if (cv!=null) cv.insert(rowsInsertPoint, numOfRowsToBeInserted, _rows);
+      }
 
-     for (r=rowsInsertPoint;r<rowsInsertPoint+numOfRowsToBeInserted;r++)
+      curRows=_rows+numOfRowsToBeInserted;
+     }
+     else if (rowsInsertPoint<_rows && rowsInsertPoint>=0)
      {
-      rows[r]=null;
+      forceRowsCount(_rows+numOfRowsToBeInserted);
+      System.arraycopy(rows, rowsInsertPoint, rows, rowsInsertPoint+numOfRowsToBeInserted, _rows-rowsInsertPoint);
+
+      int r, c;
+
+      for (r=rowsInsertPoint;r<rowsInsertPoint+numOfRowsToBeInserted;r++)
+      {
+       rows[r]=null;
+      }
      }
     }
    }
   }
+  finally
+  {
+   endWrite();
+  }
  }
 
  public synchronized void copyRows(RamTable sourceRt, int sourceStartRow, int destStartRow, int numOfRowsToCopy)
@@ -1537,22 +2396,49 @@ public class RamTable implements QSortable
 
  public synchronized void cutRows(int rowIdx, int numOfRowsToCutOut)
  {
-  if (rowIdx<curRows)
+  beginWrite();
+
+  try
   {
-   if (numOfRowsToCutOut+rowIdx>curRows || numOfRowsToCutOut>curRows)
+   // the count is settled once here, the indexes and the rows of both storages use it as it is:
+   // cutting 0 rows cuts nothing, past the end cuts up to the last row
+   if (rowIdx>=curRows || numOfRowsToCutOut<=0) return;
+   if (numOfRowsToCutOut>curRows-rowIdx) numOfRowsToCutOut=curRows-rowIdx;
+
+   if (indexes!=null)
    {
-    numOfRowsToCutOut=curRows-rowIdx;
+    for (int c=0;c<indexes.length;c++)
+    {
+     ColumnIndex ci=indexes[c];
+
+     if (ci!=null && !ci.stale)
+     {
+      for (int r=rowIdx;r<rowIdx+numOfRowsToCutOut;r++) ci.remove(r, getObject(c, r));
+      ci.cutRows(rowIdx, numOfRowsToCutOut, curRows);
+     }
+    }
    }
 
-   if (rowIdx==curRows-1)
+   // both storages cut exactly the same rows, the last one included
+   if (columnar)
    {
-    curRows--;
+    for (int c=0;c<curCols;c++)
+    {
+     ColumnVector cv=columnVector(c);
+     if (cv!=null) cv.cut(rowIdx, numOfRowsToCutOut, curRows);
+    }
    }
    else
    {
     System.arraycopy(rows, rowIdx+numOfRowsToCutOut, rows, rowIdx, rows.length-(rowIdx+numOfRowsToCutOut));
-    curRows-=numOfRowsToCutOut;
+    for (int r=rows.length-numOfRowsToCutOut;r<rows.length;r++) rows[r]=null;
    }
+
+   curRows-=numOfRowsToCutOut;
+  }
+  finally
+  {
+   endWrite();
   }
  }
 
@@ -1561,57 +2447,111 @@ public class RamTable implements QSortable
 
  public synchronized void insertCols(int colsInsertPoint, int numOfColsToBeInserted)
  {
-  int _rows=getRowsCount();
-  int _cols=getColsCount();
+  beginWrite();
 
-  if (_cols>0 && numOfColsToBeInserted>0)
+  try
   {
-   if (colsInsertPoint>=_cols) forceColsCount(_cols+numOfColsToBeInserted);
-   else
+   int _rows=getRowsCount();
+   int _cols=getColsCount();
+
+   if (_cols>0 && numOfColsToBeInserted>0)
    {
-    if (colsInsertPoint<_cols && colsInsertPoint>=0)
+    if (colsInsertPoint>=_cols) forceColsCount(_cols+numOfColsToBeInserted);
+    else
     {
-     int r, c;
-     for (r=0;r<_rows;r++)
+     if (colsInsertPoint<_cols && colsInsertPoint>=0)
      {
-      rows[r].insertCols(colsInsertPoint, numOfColsToBeInserted);
-     }
+      if (columnar)
+      {
+       grantColumns(_cols+numOfColsToBeInserted);
+       System.arraycopy(columns, colsInsertPoint, columns, colsInsertPoint+numOfColsToBeInserted, _cols-colsInsertPoint);
+       for (int c=colsInsertPoint;c<colsInsertPoint+numOfColsToBeInserted;c++) columns[c]=null;
+      }
+      else
+      {
+       int r;
+       for (r=0;r<_rows;r++)
+       {
+        if (rows[r]!=null) rows[r].insertCols(colsInsertPoint, numOfColsToBeInserted);
+       }
+      }
+
+      if (indexes!=null && colsInsertPoint<indexes.length)
+      {
+       ColumnIndex moved[]=new ColumnIndex[indexes.length+numOfColsToBeInserted];
+       System.arraycopy(indexes, 0, moved, 0, colsInsertPoint);
+       System.arraycopy(indexes, colsInsertPoint, moved, colsInsertPoint+numOfColsToBeInserted, indexes.length-colsInsertPoint);
+       indexes=moved;
+      }
 
-     curCols=_cols+numOfColsToBeInserted;
+      curCols=_cols+numOfColsToBeInserted;
+     }
     }
    }
   }
+  finally
+  {
+   endWrite();
+  }
  }
 
 
  public synchronized void cutCols(int colIdx, int numOfColsToCutOut)
  {
-  int _rows=getRowsCount();
-  int _cols=getColsCount();
+  beginWrite();
 
-  if (_rows>0 && _cols>colIdx && colIdx>=0 && numOfColsToCutOut>0)
+  try
   {
-   // we really need this line of code even if it seems redundant.
-   // Infact if one passes numOfColsToCutOut=Integer.MAX_VALUE... you know!
-   if (numOfColsToCutOut>curCols) numOfColsToCutOut=curCols;
+   int _rows=getRowsCount();
+   int _cols=getColsCount();
 
-   if (numOfColsToCutOut+colIdx>curCols)
+   if (_rows>0 && _cols>colIdx && colIdx>=0 && numOfColsToCutOut>0)
    {
-    numOfColsToCutOut=curCols-colIdx;
-   }
+    // we really need this line of code even if it seems redundant.
+    // Infact if one passes numOfColsToCutOut=Integer.MAX_VALUE... you know!
+    if (numOfColsToCutOut>curCols) numOfColsToCutOut=curCols;
 
-   int r;
+    if (numOfColsToCutOut+colIdx>curCols)
+    {
+     numOfColsToCutOut=curCols-colIdx;
+    }
 
-   for (r=_rows-1;r>=0;r--)
-   {
-    if (rows[r]!=null)
+    if (columnar)
     {
-     rows[r].cutCols(colIdx, numOfColsToCutOut);
+     if (columns!=null && colIdx<columns.length)
+     {
+      int moved=Math.max(0, Math.min(columns.length, curCols)-(colIdx+numOfColsToCutOut));
+      System.arraycopy(columns, colIdx+numOfColsToCutOut, columns, colIdx, moved);
+      for (int c=colIdx+moved;c<columns.length;c++) columns[c]=null;
+     }
+    }
+    else
+    {
+     int r;
+
+     for (r=_rows-1;r>=0;r--)
+     {
+      if (rows[r]!=null)
+      {
+       rows[r].cutCols(colIdx, numOfColsToCutOut);
+      }
+     }
     }
-   }
 
-//   forceColsCount(curCols-numOfColsToCutOut);
-   curCols-=numOfColsToCutOut;
+    if (indexes!=null && colIdx<indexes.length)
+    {
+     int moved=Math.max(0, indexes.length-(colIdx+numOfColsToCutOut));
+     System.arraycopy(indexes, colIdx+numOfColsToCutOut, indexes, colIdx, moved);
+     for (int c=colIdx+moved;c<indexes.length;c++) indexes[c]=null;
+    }
+
+ //   forceColsCount(curCols-numOfColsToCutOut);
+    curCols-=numOfColsToCutOut;
+   }
+  }
+  finally
+  {
+   endWrite();
   }
  }
 
@@ -1731,7 +2671,25 @@ public class RamTable implements QSortable
   int _rows=getRowsCount();
   int _cols=getColsCount();
 
-  if (_rows>0 && _cols>0)
+  if (columnar)
+  {
+   res.columnar=true;
+
+   if (_rows>0 && _cols>0)
+   {
+    res.columns=new ColumnVector[_cols+OneRow.dis];
+
+    for (int c=0;c<_cols;c++)
+    {
+     ColumnVector cv=columnVector(c);
+     if (cv!=null) res.columns[c]=cv.copy(_rows);
+    }
+
+    res.curCols=curCols;
+    res.curRows=curRows;
+   }
+  }
+  else if (_rows>0 && _cols>0)
   {
    res.rows=new OneRow[_rows+dis];
    int r, c, cc;
@@ -1767,6 +2725,16 @@ public class RamTable implements QSortable
    res.curRows=curRows;
   }
 
+  if (indexes!=null)
+  {
+   // the clone rebuilds its indexes when it first uses them
+   res.indexes=new ColumnIndex[indexes.length];
+
+   for (int c=0;c<indexes.length;c++)
+   {
+    if (indexes[c]!=null) res.indexes[c]=new ColumnIndex(indexes[c].type);
+   }
+  }
 
   return res;
  }
@@ -0,0 +1,780 @@
+/*
+ * Copyright 2019 Antonio Sorrentini
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package me.as.lib.core.collection;
+
+
+import me.as.lib.core.io.IOException;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import static me.as.lib.core.collection.ColumnVector.*;
+import static me.as.lib.core.collection.RamTable.*;
+
+
+/**
+ * Loads CSV (or TSV) text in a columnar RamTable, for example
+ *
+ *   RamTable table=new RamTableCsvLoader().setHeader(true).load(new File("prices.csv"));
+ *
+ * The text is read once, char by char, by a small state machine (quoted fields, "" inside
+ * quotes, separators and new lines inside quotes, \n \r\n and \r line ends) and every field
+ * goes straight in the typed column of its cell, without strings for the numbers.
+ *
+ * Unless given with setColumnType, the type of a column is the one of its first value
+ * (Integer, Long, Double or String, integers with leading zeros or a + are Strings) and it
+ * is widened when a value does not fit: Integer to Long to Double, and to String when a
+ * value is not a number (the numbers already read become their toString()).
+ * Empty fields are null, "" is the empty String (null in the number columns).
+ *
+ * With setParallel(true) a file is cut in chunks at line ends (outside quotes), the chunks
+ * are parsed in parallel, each in its own columns, and then merged. Quotes are told apart
+ * by counting them, so in this case they must be used only around whole fields.
+ */
+public class RamTableCsvLoader
+{
+ // under this size a file is parsed by a single thread
+ private static final long parallelThreshold=1 << 22;
+ // chunks are decoded in memory, this limits their size
+ private static final long maxChunkSize=1 << 25;
+
+ private char separator=0;
+ private char quote='"';
+ private boolean header=false;
+ private boolean trim=true;
+ private boolean inferTypes=true;
+ private boolean parallel=false;
+ private Charset charset=StandardCharsets.UTF_8;
+ private final HashMap<Integer, Integer> columnTypes=new HashMap<>();
+
+ private String headerNames[]=null;
+ // the separator of the current load (separator or the detected one)
+ private char sep;
+
+
+ // 0 (the default) to use the one of ',' ';' and tab found more times in the first line
+ public RamTableCsvLoader setSeparator(char separator)
+ {
+  this.separator=separator;
+  return this;
+ }
+
+
+ public RamTableCsvLoader setQuote(char quote)
+ {
+  this.quote=quote;
+  return this;
+ }
+
+
+ // true if the first line holds the names of the columns, see getHeader
+ public RamTableCsvLoader setHeader(boolean header)
+ {
+  this.header=header;
+  return this;
+ }
+
+
+ // true (the default) to trim the spaces around the fields (not the ones inside quotes)
+ public RamTableCsvLoader setTrim(boolean trim)
+ {
+  this.trim=trim;
+  return this;
+ }
+
+
+ // false to load every column as Strings
+ public RamTableCsvLoader setInferTypes(boolean inferTypes)
+ {
+  this.inferTypes=inferTypes;
+  return this;
+ }
+
+
+ public RamTableCsvLoader setParallel(boolean parallel)
+ {
+  this.parallel=parallel;
+  return this;
+ }
+
+
+ // used for InputStreams and files, UTF-8 by default
+ public RamTableCsvLoader setCharset(Charset charset)
+ {
+  this.charset=charset;
+  return this;
+ }
+
+
+ /**
+  * Gives col one of RamTable.COLUMN_INT, COLUMN_LONG, COLUMN_DOUBLE or COLUMN_STRING: no
+  * inference is made and a field that cannot be of that type is an error.
+  */
+ public RamTableCsvLoader setColumnType(int col, int type)
+ {
+  if (type<COLUMN_INT || type>COLUMN_STRING) throw new IllegalArgumentException("Invalid column type: "+type);
+  columnTypes.put(col, type);
+  return this;
+ }
+
+
+ // the fields of the first line of the last load (when setHeader(true))
+ public String[] getHeader()
+ {
+  return headerNames;
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ public RamTable load(String csvText)
+ {
+  return load(new StringReader(csvText));
+ }
+
+
+ public RamTable load(InputStream is)
+ {
+  return load(new InputStreamReader(is, charset));
+ }
+
+
+ public RamTable load(Reader reader)
+ {
+  Parser p=new Parser(this, header);
+  sep=separator;
+  char buf[]=new char[1 << 16];
+
+  try
+  {
+   int len;
+   while ((len=reader.read(buf))>=0) p.parse(buf, 0, len);
+  }
+  catch (java.io.IOException e)
+  {
+   throw new IOException(e);
+  }
+
+  p.finish();
+  return result(new Parser[]{p});
+ }
+
+
+ public RamTable load(File file)
+ {
+  try (FileChannel ch=FileChannel.open(file.toPath(), StandardOpenOption.READ))
+  {
+   long size=ch.size();
+
+   if (!parallel || size<parallelThreshold || !asciiCompatible(charset))
+    return load(Channels.newReader(ch, charset.newDecoder(), 1 << 16));
+
+   sep=separator;
+
+   if (sep==0)
+   {
+    ByteBuffer head=ByteBuffer.allocate((int)Math.min(size, 1 << 16));
+    while (head.hasRemaining() && ch.read(head, head.position())>0);
+    head.flip();
+    CharBuffer chars=charset.decode(head);
+    sep=detectSeparator(chars.array(), chars.arrayOffset(), chars.remaining());
+   }
+
+   long bounds[]=chunks(ch, size);
+   Parser parts[]=new Parser[bounds.length-1];
+   ArrayList<ForkJoinTask<?>> tasks=new ArrayList<>();
+
+   for (int t=0;t<parts.length;t++)
+   {
+    Parser p=new Parser(this, header && t==0);
+    ByteBuffer bytes=ch.map(FileChannel.MapMode.READ_ONLY, bounds[t], bounds[t+1]-bounds[t]);
+    parts[t]=p;
+
+    tasks.add(ForkJoinTask.adapt(() ->
+    {
+     CharBuffer chars=charset.decode(bytes);
+     p.parse(chars.array(), chars.arrayOffset()+chars.position(), chars.remaining());
+     p.finish();
+    }));
+   }
+
+   ForkJoinTask.invokeAll(tasks);
+   return result(parts);
+  }
+  catch (java.io.IOException e)
+  {
+   throw new IOException(e);
+  }
+ }
+
+
+ // the charsets where separators, quotes and line ends are single bytes that cannot be part of other chars
+ private static boolean asciiCompatible(Charset charset)
+ {
+  return (charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.ISO_8859_1) ||
+          charset.equals(StandardCharsets.US_ASCII));
+ }
+
+
+ // the offsets where the chunks begin, plus the size: each chunk begins after a \n outside quotes
+ private long[] chunks(FileChannel ch, long size) throws java.io.IOException
+ {
+  int count=(int)Math.max(ForkJoinPool.commonPool().getParallelism()*2, (size+maxChunkSize-1)/maxChunkSize);
+  ArrayList<Long> res=new ArrayList<>();
+  res.add(0L);
+
+  ByteBuffer buf=ByteBuffer.allocate(1 << 16);
+  long pos=0;
+  long next=size/count;
+  boolean inQuotes=false;
+
+  while (pos<size)
+  {
+   buf.clear();
+   int len=ch.read(buf, pos);
+   if (len<=0) break;
+
+   for (int t=0;t<len;t++)
+   {
+    byte b=buf.get(t);
+
+    if (b==quote) inQuotes=!inQuotes;
+    else if (b=='\n' && !inQuotes && pos+t>=next)
+    {
+     res.add(pos+t+1);
+     next=pos+t+1+size/count;
+    }
+   }
+
+   pos+=len;
+  }
+
+  if (res.get(res.size()-1)<size) res.add(size);
+
+  long bounds[]=new long[res.size()];
+  for (int t=0;t<bounds.length;t++) bounds[t]=res.get(t);
+  return bounds;
+ }
+
+
+ private static char detectSeparator(char buf[], int off, int len)
+ {
+  int comma=0, semicolon=0, tab=0;
+
+  for (int t=off;t<off+len && buf[t]!='\n' && buf[t]!='\r';t++)
+  {
+   switch (buf[t])
+   {
+    case ',' : comma++;break;
+    case ';' : semicolon++;break;
+    case '\t': tab++;break;
+   }
+  }
+
+  if (tab>comma && tab>semicolon) return '\t';
+  return ((semicolon>comma)?';':',');
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+ // merge
+
+
+ private RamTable result(Parser parts[])
+ {
+  headerNames=((header)?parts[0].headerNames():null);
+
+  int cols=0;
+  int rows=0;
+
+  for (Parser p : parts)
+  {
+   cols=Math.max(cols, p.colsCount);
+   rows+=p.rows;
+  }
+
+  ColumnVector res[];
+
+  if (parts.length==1)
+  {
+   res=new ColumnVector[cols];
+   System.arraycopy(parts[0].columns, 0, res, 0, cols);
+  }
+  else
+  {
+   res=new ColumnVector[cols];
+
+   for (int c=0;c<cols;c++)
+   {
+    int type=-1;
+
+    for (Parser p : parts)
+    {
+     ColumnVector cv=((c<p.colsCount)?p.columns[c]:null);
+     if (cv!=null) type=((type==COLUMN_STRING || cv.type==COLUMN_STRING)?COLUMN_STRING:Math.max(type, cv.type));
+    }
+
+    if (type>=0)
+    {
+     res[c]=ColumnVector.create(type, rows+dis);
+     int offset=0;
+
+     for (Parser p : parts)
+     {
+      ColumnVector cv=((c<p.colsCount)?p.columns[c]:null);
+      if (cv!=null) append(res[c], widen(cv, type, p.rows), offset, p.rows);
+      offset+=p.rows;
+     }
+    }
+   }
+  }
+
+  RamTable table=new RamTable();
+  table.setColumns(res, rows);
+  return table;
+ }
+
+
+ // copies count cells of src (of the type of dst) in dst from offset
+ private static void append(ColumnVector dst, ColumnVector src, int offset, int count)
+ {
+  // the rows after the last value of a chunk may be past the capacity of its vector
+  count=Math.min(count, src.capacity());
+
+  switch (dst.type)
+  {
+   case COLUMN_INT:
+    System.arraycopy(((IntVector)src).values, 0, ((IntVector)dst).values, offset, count);
+    break;
+
+   case COLUMN_LONG:
+    System.arraycopy(((LongVector)src).values, 0, ((LongVector)dst).values, offset, count);
+    break;
+
+   case COLUMN_DOUBLE:
+    System.arraycopy(((DoubleVector)src).values, 0, ((DoubleVector)dst).values, offset, count);
+    break;
+
+   default:
+   {
+    StringVector s=(StringVector)src;
+    StringVector d=(StringVector)dst;
+    int codes[]=new int[s.dictionarySize];
+    for (int t=0;t<codes.length;t++) codes[t]=d.encode(s.dictionary[t]);
+    for (int r=0;r<count;r++) d.codes[offset+r]=((s.codes[r]>=0)?codes[s.codes[r]]:-1);
+   } return;
+  }
+
+  PrimitiveVector s=(PrimitiveVector)src;
+  PrimitiveVector d=(PrimitiveVector)dst;
+  for (int r=0;r<count;r++) if (!s.isNull(r)) d.mark(offset+r, true);
+ }
+
+
+ // cv with the cells of type 'type', the same vector if it is already of that type
+ static ColumnVector widen(ColumnVector cv, int type, int rows)
+ {
+  if (cv.type==type) return cv;
+
+  int cap=cv.capacity();
+  rows=Math.min(rows, cap);
+
+  switch (type)
+  {
+   case COLUMN_LONG:
+   {
+    LongVector res=new LongVector(cap);
+    int values[]=((IntVector)cv).values;
+    for (int r=0;r<rows;r++) res.values[r]=values[r];
+    res.present=((IntVector)cv).present.clone();
+    return res;
+   }
+
+   case COLUMN_DOUBLE:
+   {
+    DoubleVector res=new DoubleVector(cap);
+    if (cv.type==COLUMN_INT) {int values[]=((IntVector)cv).values;for (int r=0;r<rows;r++) res.values[r]=values[r];}
+    else {long values[]=((LongVector)cv).values;for (int r=0;r<rows;r++) res.values[r]=values[r];}
+    res.present=((PrimitiveVector)cv).present.clone();
+    return res;
+   }
+
+   default:
+   {
+    StringVector res=new StringVector(cap);
+
+    for (int r=0;r<rows;r++)
+    {
+     Object o=cv.get(r);
+     if (o!=null) res.set(r, o.toString());
+    }
+
+    return res;
+   }
+  }
+ }
+
+
+ // =============================================================================
+ // the tokenizer
+
+
+ static class Parser
+ {
+  private static final int fieldStart=0;   // at the beginning of a field (spaces skipped if trimming)
+  private static final int plain=1;        // inside a field without quotes
+  private static final int quoted=2;       // inside quotes
+  private static final int quoteInQuoted=3;// after a quote inside quotes: "" or the end of the quotes
+
+  private final RamTableCsvLoader loader;
+  private boolean skipFirstRow;
+  private ArrayList<String> firstRow=null;
+
+  private int state=fieldStart;
+  private boolean afterCR=false;
+  private boolean begun=false;
+  private boolean wasQuoted=false;
+
+  private char field[]=new char[256];
+  private int fieldLen=0;
+  // the length of field up to its last char that is not a trimmed space
+  private int fieldKept=0;
+
+  private int col=0;
+  int rows=0;
+
+  ColumnVector columns[]=new ColumnVector[16];
+  int colsCount=0;
+
+
+  Parser(RamTableCsvLoader loader, boolean skipFirstRow)
+  {
+   this.loader=loader;
+   this.skipFirstRow=skipFirstRow;
+   if (skipFirstRow) firstRow=new ArrayList<>();
+  }
+
+
+  String[] headerNames()
+  {
+   return ((firstRow!=null)?firstRow.toArray(new String[0]):null);
+  }
+
+
+  void parse(char buf[], int off, int len)
+  {
+   int end=off+len;
+
+   if (!begun && len>0)
+   {
+    begun=true;
+    if (buf[off]=='\uFEFF') off++;
+    if (loader.sep==0) loader.sep=detectSeparator(buf, off, end-off);
+   }
+
+   final char sep=loader.sep;
+   final char quo=loader.quote;
+   final boolean trim=loader.trim;
+
+   for (int t=off;t<end;t++)
+   {
+    char c=buf[t];
+
+    if (afterCR)
+    {
+     afterCR=false;
+     if (c=='\n') continue;
+    }
+
+    switch (state)
+    {
+     case fieldStart:
+      if (c==quo) {state=quoted;wasQuoted=true;}
+      else if (c==sep) endField();
+      else if (c=='\n' || c=='\r') {endLine();afterCR=(c=='\r');}
+      else if (trim && isSpace(c, sep)) {}
+      else {append(c, false);state=plain;}
+      break;
+
+     case plain:
+      if (c==sep) endField();
+      else if (c=='\n' || c=='\r') {endLine();afterCR=(c=='\r');}
+      else append(c, trim && isSpace(c, sep));
+      break;
+
+     case quoted:
+      if (c==quo) state=quoteInQuoted;
+      else append(c, false);
+      break;
+
+     default:
+      if (c==quo) {append(c, false);state=quoted;}
+      else if (c==sep) endField();
+      else if (c=='\n' || c=='\r') {endLine();afterCR=(c=='\r');}
+      else if (trim && isSpace(c, sep)) {}
+      else {append(c, false);state=plain;}
+      break;
+    }
+   }
+  }
+
+
+  void finish()
+  {
+   if (state==quoted) throw new IOException("Unterminated quotes at row "+rows+", column "+col);
+   endLine();
+  }
+
+
+  private static boolean isSpace(char c, char sep)
+  {
+   return (c==' ' || (c=='\t' && sep!='\t'));
+  }
+
+
+  private void append(char c, boolean space)
+  {
+   if (fieldLen==field.length)
+   {
+    char nf[]=new char[fieldLen*2];
+    System.arraycopy(field, 0, nf, 0, fieldLen);
+    field=nf;
+   }
+
+   field[fieldLen++]=c;
+   if (!space) fieldKept=fieldLen;
+  }
+
+
+  // a line without fields is skipped
+  private void endLine()
+  {
+   if (col>0 || fieldLen>0 || wasQuoted)
+   {
+    endField();
+
+    // the columns are the fields of the longest line, empty ones at its end included
+    if (col>colsCount) grantColumns(col);
+    col=0;
+
+    if (skipFirstRow) skipFirstRow=false;
+    else rows++;
+   }
+  }
+
+
+  private void endField()
+  {
+   int len=((wasQuoted)?fieldLen:fieldKept);
+
+   if (skipFirstRow) firstRow.add(new String(field, 0, len));
+   else if (len>0 || wasQuoted) store(col, len);
+
+   col++;
+   fieldLen=0;
+   fieldKept=0;
+   wasQuoted=false;
+   state=fieldStart;
+  }
+
+
+  // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+  private void grantColumns(int count)
+  {
+   if (count>columns.length)
+   {
+    ColumnVector nc[]=new ColumnVector[Math.max(count, columns.length*2)];
+    System.arraycopy(columns, 0, nc, 0, colsCount);
+    columns=nc;
+   }
+
+   if (count>colsCount) colsCount=count;
+  }
+
+
+  private void store(int c, int len)
+  {
+   grantColumns(c+1);
+
+   ColumnVector cv=columns[c];
+   Integer forced=loader.columnTypes.get(c);
+
+   if (cv==null)
+   {
+    int type=((forced!=null)?forced:(loader.inferTypes)?typeOf(len):COLUMN_STRING);
+    if (type<0) return;  // "" in a column of unknown type
+    cv=ColumnVector.create(type, rows+dis);
+    columns[c]=cv;
+   }
+
+   cv.ensure(rows+1);
+
+   switch (cv.type)
+   {
+    case COLUMN_INT:
+    {
+     long v=parseInteger(len);
+
+     if (v!=noInteger && v>=Integer.MIN_VALUE && v<=Integer.MAX_VALUE)
+     {
+      ((IntVector)cv).values[rows]=(int)v;
+      ((IntVector)cv).mark(rows, true);
+      return;
+     }
+    } break;
+
+    case COLUMN_LONG:
+    {
+     long v=parseInteger(len);
+
+     if (v!=noInteger)
+     {
+      ((LongVector)cv).values[rows]=v;
+      ((LongVector)cv).mark(rows, true);
+      return;
+     }
+    } break;
+
+    case COLUMN_DOUBLE:
+    {
+     double v=parseDouble(len);
+
+     if (v==v)
+     {
+      ((DoubleVector)cv).values[rows]=v;
+      ((DoubleVector)cv).mark(rows, true);
+      return;
+     }
+    } break;
+
+    default:
+     ((StringVector)cv).codes[rows]=((StringVector)cv).encode(new String(field, 0, len));
+     return;
+   }
+
+   // the field does not fit the column: "" is null in a number column
+   if (len==0) return;
+
+   if (forced!=null)
+    throw new IOException("Row "+rows+", column "+c+": '"+new String(field, 0, len)+"' is not of type "+forced);
+
+   int type=typeOf(len);
+   if (type!=COLUMN_STRING) type=Math.max(type, cv.type);
+
+   columns[c]=widen(cv, type, rows);
+   store(c, len);
+  }
+
+
+  // the type of the text in field, -1 for the empty string
+  private int typeOf(int len)
+  {
+   if (len==0) return -1;
+
+   long v=parseInteger(len);
+   if (v!=noInteger) return ((v>=Integer.MIN_VALUE && v<=Integer.MAX_VALUE)?COLUMN_INT:COLUMN_LONG);
+   if (!canonicalDigits(len)) return COLUMN_STRING;
+   return ((parseDouble(len)==parseDouble(len))?COLUMN_DOUBLE:COLUMN_STRING);
+  }
+
+
+  private static final long noInteger=Long.MIN_VALUE;
+
+  // the integer written in field as Long.toString would, noInteger if it is not
+  private long parseInteger(int len)
+  {
+   int t=0;
+   boolean negative=false;
+
+   if (len>0 && field[0]=='-')
+   {
+    negative=true;
+    t=1;
+   }
+
+   int digits=len-t;
+   if (digits==0 || digits>19 || (field[t]=='0' && (digits>1 || negative))) return noInteger;
+
+   long res=0;
+
+   for (;t<len;t++)
+   {
+    int d=field[t]-'0';
+    if (d<0 || d>9) return noInteger;
+    // accumulated as a negative number, Long.MIN_VALUE has no positive counterpart
+    if (res<(Long.MIN_VALUE+d)/10) return noInteger;
+    res=res*10-d;
+   }
+
+   if (negative) return ((res==Long.MIN_VALUE)?noInteger:res);
+   return ((res==Long.MIN_VALUE)?noInteger:-res);
+  }
+
+
+  // false for numbers with a + or leading zeros (codes rather than numbers)
+  private boolean canonicalDigits(int len)
+  {
+   int t=((len>0 && field[0]=='-')?1:0);
+   if (t<len && field[t]=='+') return false;
+   return !(t+1<len && field[t]=='0' && field[t+1]>='0' && field[t+1]<='9');
+  }
+
+
+  // NaN if field is not a decimal number
+  private double parseDouble(int len)
+  {
+   boolean digit=false;
+
+   for (int t=0;t<len;t++)
+   {
+    char c=field[t];
+    if (c>='0' && c<='9') digit=true;
+    else if (c!='.' && c!='-' && c!='+' && c!='e' && c!='E') return Double.NaN;
+   }
+
+   if (!digit) return Double.NaN;
+
+   try
+   {
+    return Double.parseDouble(new String(field, 0, len));
+   }
+   catch (NumberFormatException e)
+   {
+    return Double.NaN;
+   }
+  }
+ }
+
+
+}
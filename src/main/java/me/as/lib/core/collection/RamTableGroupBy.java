@@ -0,0 +1,817 @@
+/*
+ * Copyright 2019 Antonio Sorrentini
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package me.as.lib.core.collection;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import static me.as.lib.core.collection.ColumnVector.*;
+
+
+/**
+ * The aggregates of RamTable.groupBy, for example
+ *
+ *   RamTable totals=table.groupBy(new int[]{0, 1}, RamTableGroupBy.count(),
+ *                                                   RamTableGroupBy.sum(3),
+ *                                                   RamTableGroupBy.avg(4));
+ *
+ * The rows are read once: each row finds its group and goes in the accumulators of every
+ * aggregate, kept in primitive arrays indexed by group (long sums and min/max for Integer
+ * and Long columns of a columnar table, double for Double columns). Big tables are split in
+ * chunks aggregated in parallel and then merged.
+ *
+ * sum/min/max/avg skip the null cells and the cells that are not numbers (min/max of an
+ * untyped column compare any cell, like RamTable.findRowsInRange), distinctCount skips nulls.
+ */
+public class RamTableGroupBy
+{
+ // under this count of rows per chunk a table is not split
+ private static final int parallelThreshold=1 << 16;
+
+
+ public static Aggregate count()
+ {
+  return new Aggregate(Aggregate.count, -1);
+ }
+
+
+ // the non null cells of col
+ public static Aggregate count(int col)
+ {
+  return new Aggregate(Aggregate.countCells, col);
+ }
+
+
+ // Long for integer values (Integer, Long, Short, Byte), Double if there are other numbers
+ public static Aggregate sum(int col)
+ {
+  return new Aggregate(Aggregate.sum, col);
+ }
+
+
+ public static Aggregate min(int col)
+ {
+  return new Aggregate(Aggregate.min, col);
+ }
+
+
+ public static Aggregate max(int col)
+ {
+  return new Aggregate(Aggregate.max, col);
+ }
+
+
+ // a Double, null when the group has no numbers in col
+ public static Aggregate avg(int col)
+ {
+  return new Aggregate(Aggregate.avg, col);
+ }
+
+
+ public static Aggregate distinctCount(int col)
+ {
+  return new Aggregate(Aggregate.distinct, col);
+ }
+
+
+ public static class Aggregate
+ {
+  static final int count=0;
+  static final int countCells=1;
+  static final int sum=2;
+  static final int min=3;
+  static final int max=4;
+  static final int avg=5;
+  static final int distinct=6;
+
+  final int kind;
+  final int col;
+
+  Aggregate(int kind, int col)
+  {
+   if (kind!=count && col<0) throw new ArrayIndexOutOfBoundsException("Invalid column index: "+col);
+   this.kind=kind;
+   this.col=col;
+  }
+
+
+  Accumulator newAccumulator(RamTable table)
+  {
+   ColumnVector cv=((col>=0)?table.columnVector(col):null);
+
+   switch (kind)
+   {
+    case count      : return new CountRows();
+    case countCells : return new CountCells(table, col);
+    case sum        :
+     if (cv instanceof IntVector || cv instanceof LongVector) return new LongSum(table, col);
+     if (cv instanceof DoubleVector) return new DoubleSum((DoubleVector)cv);
+     return new NumberSum(table, col);
+    case min        :
+    case max        :
+     if (cv instanceof IntVector || cv instanceof LongVector) return new LongMinMax(table, col, kind==max, cv instanceof IntVector);
+     if (cv instanceof DoubleVector) return new DoubleMinMax((DoubleVector)cv, kind==max);
+     return new ObjectMinMax(table, col, kind==max);
+    case avg        : return new Avg(table, col);
+    default         :
+     if (cv instanceof StringVector) return new DistinctCodes((StringVector)cv);
+     return new DistinctObjects(table, col);
+   }
+  }
+ }
+
+
+ // =============================================================================
+
+
+ // RamTable.groupBy, the table is locked by the caller
+ static RamTable groupBy(RamTable table, int keyCols[], Aggregate aggregates[])
+ {
+  int rows=table.getRowsCount();
+  int chunks=1;
+
+  if (rows>=2*parallelThreshold)
+   chunks=Math.max(1, Math.min(ForkJoinPool.commonPool().getParallelism()*2, rows/parallelThreshold));
+
+  Partial parts[]=new Partial[chunks];
+
+  for (int t=0;t<chunks;t++)
+  {
+   parts[t]=new Partial(table, keyCols, aggregates, (int)((long)rows*t/chunks), (int)((long)rows*(t+1)/chunks));
+  }
+
+  if (chunks==1) parts[0].run();
+  else
+  {
+   ArrayList<ForkJoinTask<?>> tasks=new ArrayList<>();
+   for (Partial p : parts) tasks.add(ForkJoinTask.adapt(p));
+   ForkJoinTask.invokeAll(tasks);
+  }
+
+  // the groups keep the order of their first row
+  Partial res=parts[0];
+
+  for (int t=1;t<chunks;t++) res.merge(parts[t]);
+
+  return res.toRamTable(table.isColumnar());
+ }
+
+
+ static class Partial implements Runnable
+ {
+  final RamTable table;
+  final int keyCols[];
+  final int from;
+  final int to;
+
+  final HashMap<Object, Integer> groupsByKey=new HashMap<>();
+  final ArrayList<Object> keys=new ArrayList<>();
+  final Accumulator accumulators[];
+  int groups=0;
+
+  Partial(RamTable table, int keyCols[], Aggregate aggregates[], int from, int to)
+  {
+   this.table=table;
+   this.keyCols=keyCols;
+   this.from=from;
+   this.to=to;
+
+   accumulators=new Accumulator[aggregates.length];
+   for (int t=0;t<aggregates.length;t++) accumulators[t]=aggregates[t].newAccumulator(table);
+  }
+
+
+  public void run()
+  {
+   ColumnVector single=((keyCols.length==1)?table.columnVector(keyCols[0]):null);
+
+   if (single instanceof StringVector) runByCodes((StringVector)single);
+   else
+   {
+    for (int r=from;r<to;r++) add(groupOf(key(r)), r);
+   }
+  }
+
+
+  // a single dictionary encoded key column: the group of every code is found once
+  private void runByCodes(StringVector sv)
+  {
+   int groupOfCode[]=new int[sv.dictionarySize];
+   Arrays.fill(groupOfCode, -1);
+   int nullGroup=-1;
+   int cap=sv.capacity();
+
+   for (int r=from;r<to;r++)
+   {
+    int code=((r<cap)?sv.codes[r]:-1);
+    int g;
+
+    if (code<0)
+    {
+     if (nullGroup<0) nullGroup=groupOf(null);
+     g=nullGroup;
+    }
+    else
+    {
+     g=groupOfCode[code];
+     if (g<0) g=groupOfCode[code]=groupOf(sv.dictionary[code]);
+    }
+
+    add(g, r);
+   }
+  }
+
+
+  private Object key(int row)
+  {
+   if (keyCols.length==1) return table.readObject(keyCols[0], row);
+
+   Object res[]=new Object[keyCols.length];
+   for (int c=0;c<res.length;c++) res[c]=table.readObject(keyCols[c], row);
+   return Arrays.asList(res);
+  }
+
+
+  private int groupOf(Object key)
+  {
+   Integer res=groupsByKey.get(key);
+
+   if (res==null)
+   {
+    res=groups++;
+    groupsByKey.put(key, res);
+    keys.add(key);
+    for (Accumulator a : accumulators) a.grant(groups);
+   }
+
+   return res;
+  }
+
+
+  private void add(int group, int row)
+  {
+   for (Accumulator a : accumulators) a.add(group, row);
+  }
+
+
+  void merge(Partial other)
+  {
+   for (int g=0;g<other.groups;g++)
+   {
+    int mine=groupOf(other.keys.get(g));
+    for (int a=0;a<accumulators.length;a++) accumulators[a].merge(mine, other.accumulators[a], g);
+   }
+  }
+
+
+  RamTable toRamTable(boolean columnar)
+  {
+   RamTable res=new RamTable();
+   res.setColumnar(columnar);
+
+   int kc=keyCols.length;
+
+   for (int g=groups-1;g>=0;g--)
+   {
+    Object key=keys.get(g);
+
+    if (kc==1) res.setObject(0, g, key);
+    else
+    {
+     List k=(List)key;
+     for (int c=0;c<kc;c++) res.setObject(c, g, k.get(c));
+    }
+
+    for (int a=0;a<accumulators.length;a++) res.setObject(kc+a, g, accumulators[a].result(g));
+   }
+
+   return res;
+  }
+ }
+
+
+ // =============================================================================
+ // accumulators, the values of each group are in arrays indexed by group
+
+
+ static abstract class Accumulator
+ {
+  // there are 'groups' groups now
+  abstract void grant(int groups);
+
+  abstract void add(int group, int row);
+
+  // adds the group og of other to the group g
+  abstract void merge(int g, Accumulator other, int og);
+
+  abstract Object result(int group);
+
+
+  static int newLength(int length, int groups)
+  {
+   return ((groups<=length)?length:Math.max(groups, length+length/2+16));
+  }
+ }
+
+
+ static class CountRows extends Accumulator
+ {
+  long counts[]=new long[0];
+
+  void grant(int groups)
+  {
+   counts=Arrays.copyOf(counts, newLength(counts.length, groups));
+  }
+
+  void add(int group, int row)
+  {
+   counts[group]++;
+  }
+
+  void merge(int g, Accumulator other, int og)
+  {
+   counts[g]+=((CountRows)other).counts[og];
+  }
+
+  Object result(int group)
+  {
+   return counts[group];
+  }
+ }
+
+
+ static class CountCells extends CountRows
+ {
+  final RamTable table;
+  final int col;
+
+  CountCells(RamTable table, int col)
+  {
+   this.table=table;
+   this.col=col;
+  }
+
+  void add(int group, int row)
+  {
+   if (table.readObject(col, row)!=null) counts[group]++;
+  }
+ }
+
+
+ // Integer or Long columns
+ static class LongSum extends Accumulator
+ {
+  final PrimitiveVector pv;
+  final IntVector iv;
+  final LongVector lv;
+  long sums[]=new long[0];
+  long counts[]=new long[0];
+
+  LongSum(RamTable table, int col)
+  {
+   ColumnVector cv=table.columnVector(col);
+   pv=(PrimitiveVector)cv;
+   iv=((cv instanceof IntVector)?(IntVector)cv:null);
+   lv=((cv instanceof LongVector)?(LongVector)cv:null);
+  }
+
+  void grant(int groups)
+  {
+   int len=newLength(sums.length, groups);
+   sums=Arrays.copyOf(sums, len);
+   counts=Arrays.copyOf(counts, len);
+  }
+
+  void add(int group, int row)
+  {
+   if (row<pv.capacity() && !pv.isNull(row))
+   {
+    sums[group]+=((iv!=null)?iv.values[row]:lv.values[row]);
+    counts[group]++;
+   }
+  }
+
+  void merge(int g, Accumulator other, int og)
+  {
+   LongSum o=(LongSum)other;
+   sums[g]+=o.sums[og];
+   counts[g]+=o.counts[og];
+  }
+
+  Object result(int group)
+  {
+   return ((counts[group]>0)?(Object)sums[group]:null);
+  }
+ }
+
+
+ static class DoubleSum extends Accumulator
+ {
+  final DoubleVector dv;
+  double sums[]=new double[0];
+  long counts[]=new long[0];
+
+  DoubleSum(DoubleVector dv)
+  {
+   this.dv=dv;
+  }
+
+  void grant(int groups)
+  {
+   int len=newLength(sums.length, groups);
+   sums=Arrays.copyOf(sums, len);
+   counts=Arrays.copyOf(counts, len);
+  }
+
+  void add(int group, int row)
+  {
+   if (row<dv.capacity() && !dv.isNull(row))
+   {
+    sums[group]+=dv.values[row];
+    counts[group]++;
+   }
+  }
+
+  void merge(int g, Accumulator other, int og)
+  {
+   DoubleSum o=(DoubleSum)other;
+   sums[g]+=o.sums[og];
+   counts[g]+=o.counts[og];
+  }
+
+  Object result(int group)
+  {
+   return ((counts[group]>0)?(Object)sums[group]:null);
+  }
+ }
+
+
+ // any column: integers are summed as longs, the other numbers as doubles
+ static class NumberSum extends Accumulator
+ {
+  final RamTable table;
+  final int col;
+  long longSums[]=new long[0];
+  double doubleSums[]=new double[0];
+  byte state[]=new byte[0]; // 0 no numbers, 1 only integers, 2 also other numbers
+
+  NumberSum(RamTable table, int col)
+  {
+   this.table=table;
+   this.col=col;
+  }
+
+  void grant(int groups)
+  {
+   int len=newLength(state.length, groups);
+   longSums=Arrays.copyOf(longSums, len);
+   doubleSums=Arrays.copyOf(doubleSums, len);
+   state=Arrays.copyOf(state, len);
+  }
+
+  void add(int group, int row)
+  {
+   Object o=table.readObject(col, row);
+
+   if (o instanceof Number)
+   {
+    if (isInteger(o))
+    {
+     longSums[group]+=((Number)o).longValue();
+     if (state[group]==0) state[group]=1;
+    }
+    else
+    {
+     doubleSums[group]+=((Number)o).doubleValue();
+     state[group]=2;
+    }
+   }
+  }
+
+  void merge(int g, Accumulator other, int og)
+  {
+   NumberSum o=(NumberSum)other;
+   longSums[g]+=o.longSums[og];
+   doubleSums[g]+=o.doubleSums[og];
+   state[g]=(byte)Math.max(state[g], o.state[og]);
+  }
+
+  Object result(int group)
+  {
+   switch (state[group])
+   {
+    case 0  : return null;
+    case 1  : return longSums[group];
+    default : return longSums[group]+doubleSums[group];
+   }
+  }
+ }
+
+
+ static boolean isInteger(Object o)
+ {
+  return (o instanceof Integer || o instanceof Long || o instanceof Short || o instanceof Byte);
+ }
+
+
+ static class LongMinMax extends Accumulator
+ {
+  final PrimitiveVector pv;
+  final IntVector iv;
+  final LongVector lv;
+  final boolean max;
+  final boolean ints;
+  long values[]=new long[0];
+  boolean found[]=new boolean[0];
+
+  LongMinMax(RamTable table, int col, boolean max, boolean ints)
+  {
+   ColumnVector cv=table.columnVector(col);
+   pv=(PrimitiveVector)cv;
+   iv=((cv instanceof IntVector)?(IntVector)cv:null);
+   lv=((cv instanceof LongVector)?(LongVector)cv:null);
+   this.max=max;
+   this.ints=ints;
+  }
+
+  void grant(int groups)
+  {
+   int len=newLength(values.length, groups);
+   values=Arrays.copyOf(values, len);
+   found=Arrays.copyOf(found, len);
+  }
+
+  void add(int group, int row)
+  {
+   if (row<pv.capacity() && !pv.isNull(row)) put(group, (iv!=null)?iv.values[row]:lv.values[row]);
+  }
+
+  private void put(int group, long v)
+  {
+   if (!found[group] || ((max)?v>values[group]:v<values[group]))
+   {
+    values[group]=v;
+    found[group]=true;
+   }
+  }
+
+  void merge(int g, Accumulator other, int og)
+  {
+   LongMinMax o=(LongMinMax)other;
+   if (o.found[og]) put(g, o.values[og]);
+  }
+
+  Object result(int group)
+  {
+   if (!found[group]) return null;
+   return ((ints)?(Object)(int)values[group]:(Object)values[group]);
+  }
+ }
+
+
+ static class DoubleMinMax extends Accumulator
+ {
+  final DoubleVector dv;
+  final boolean max;
+  double values[]=new double[0];
+  boolean found[]=new boolean[0];
+
+  DoubleMinMax(DoubleVector dv, boolean max)
+  {
+   this.dv=dv;
+   this.max=max;
+  }
+
+  void grant(int groups)
+  {
+   int len=newLength(values.length, groups);
+   values=Arrays.copyOf(values, len);
+   found=Arrays.copyOf(found, len);
+  }
+
+  void add(int group, int row)
+  {
+   if (row<dv.capacity() && !dv.isNull(row)) put(group, dv.values[row]);
+  }
+
+  // like Double.compareTo, so NaN is the biggest
+  private void put(int group, double v)
+  {
+   if (!found[group] || ((max)?Double.compare(v, values[group])>0:Double.compare(v, values[group])<0))
+   {
+    values[group]=v;
+    found[group]=true;
+   }
+  }
+
+  void merge(int g, Accumulator other, int og)
+  {
+   DoubleMinMax o=(DoubleMinMax)other;
+   if (o.found[og]) put(g, o.values[og]);
+  }
+
+  Object result(int group)
+  {
+   return ((found[group])?(Object)values[group]:null);
+  }
+ }
+
+
+ static class ObjectMinMax extends Accumulator
+ {
+  final RamTable table;
+  final int col;
+  final boolean max;
+  Object values[]=new Object[0];
+
+  ObjectMinMax(RamTable table, int col, boolean max)
+  {
+   this.table=table;
+   this.col=col;
+   this.max=max;
+  }
+
+  void grant(int groups)
+  {
+   values=Arrays.copyOf(values, newLength(values.length, groups));
+  }
+
+  void add(int group, int row)
+  {
+   put(group, table.readObject(col, row));
+  }
+
+  private void put(int group, Object v)
+  {
+   if (v!=null)
+   {
+    Object cur=values[group];
+    if (cur==null || ((max)?ColumnIndex.order.compare(v, cur)>0:ColumnIndex.order.compare(v, cur)<0)) values[group]=v;
+   }
+  }
+
+  void merge(int g, Accumulator other, int og)
+  {
+   put(g, ((ObjectMinMax)other).values[og]);
+  }
+
+  Object result(int group)
+  {
+   return values[group];
+  }
+ }
+
+
+ static class Avg extends Accumulator
+ {
+  final RamTable table;
+  final int col;
+  final ColumnVector cv;
+  double sums[]=new double[0];
+  long counts[]=new long[0];
+
+  Avg(RamTable table, int col)
+  {
+   this.table=table;
+   this.col=col;
+   ColumnVector v=table.columnVector(col);
+   cv=((v instanceof PrimitiveVector)?v:null);
+  }
+
+  void grant(int groups)
+  {
+   int len=newLength(sums.length, groups);
+   sums=Arrays.copyOf(sums, len);
+   counts=Arrays.copyOf(counts, len);
+  }
+
+  void add(int group, int row)
+  {
+   if (cv!=null)
+   {
+    if (row<cv.capacity() && !cv.isNull(row))
+    {
+     sums[group]+=cv.getDouble(row);
+     counts[group]++;
+    }
+   }
+   else
+   {
+    Object o=table.readObject(col, row);
+
+    if (o instanceof Number)
+    {
+     sums[group]+=((Number)o).doubleValue();
+     counts[group]++;
+    }
+   }
+  }
+
+  void merge(int g, Accumulator other, int og)
+  {
+   Avg o=(Avg)other;
+   sums[g]+=o.sums[og];
+   counts[g]+=o.counts[og];
+  }
+
+  Object result(int group)
+  {
+   return ((counts[group]>0)?(Object)(sums[group]/counts[group]):null);
+  }
+ }
+
+
+ // dictionary encoded columns: a bit set of the codes for each group
+ static class DistinctCodes extends Accumulator
+ {
+  final StringVector sv;
+  BitSet codes[]=new BitSet[0];
+
+  DistinctCodes(StringVector sv)
+  {
+   this.sv=sv;
+  }
+
+  void grant(int groups)
+  {
+   int len=codes.length;
+   codes=Arrays.copyOf(codes, newLength(len, groups));
+   for (int g=len;g<codes.length;g++) codes[g]=new BitSet();
+  }
+
+  void add(int group, int row)
+  {
+   int code=((row<sv.capacity())?sv.codes[row]:-1);
+   if (code>=0) codes[group].set(code);
+  }
+
+  // both use the dictionary of the same column
+  void merge(int g, Accumulator other, int og)
+  {
+   codes[g].or(((DistinctCodes)other).codes[og]);
+  }
+
+  Object result(int group)
+  {
+   return (long)codes[group].cardinality();
+  }
+ }
+
+
+ static class DistinctObjects extends Accumulator
+ {
+  final RamTable table;
+  final int col;
+  ArrayList<HashSet<Object>> values=new ArrayList<>();
+
+  DistinctObjects(RamTable table, int col)
+  {
+   this.table=table;
+   this.col=col;
+  }
+
+  void grant(int groups)
+  {
+   while (values.size()<groups) values.add(new HashSet<>());
+  }
+
+  void add(int group, int row)
+  {
+   Object o=table.readObject(col, row);
+   if (o!=null) values.get(group).add(o);
+  }
+
+  void merge(int g, Accumulator other, int og)
+  {
+   values.get(g).addAll(((DistinctObjects)other).values.get(og));
+  }
+
+  Object result(int group)
+  {
+   return (long)values.get(group).size();
+  }
+ }
+
+
+}
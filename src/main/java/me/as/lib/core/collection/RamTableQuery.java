@@ -0,0 +1,750 @@
+/*
+ * Copyright 2019 Antonio Sorrentini
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package me.as.lib.core.collection;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+
+import static me.as.lib.core.collection.ColumnVector.*;
+
+
+/**
+ * A filter over a RamTable, for example
+ *
+ *   RamTableView v=table.query()
+ *                       .where(RamTableQuery.equalTo(2, "IT"))
+ *                       .where(RamTableQuery.or(RamTableQuery.like(1, "mar%", false),
+ *                                               RamTableQuery.in(3, 10, 20, 30)))
+ *                       .select(0, 1)
+ *                       .limit(100)
+ *                       .execute();
+ *
+ * The predicates are evaluated a column at a time over a bitmap of the selected rows: every
+ * predicate clears the bits of the rows it rejects, working directly on the typed arrays of
+ * a columnar table (a LIKE or IN on a string column is tested once per distinct string),
+ * and equalTo/range use the indexes of the table (see RamTable.createIndex) when there are.
+ * With a limit the rows are evaluated in blocks, stopping when enough rows were found.
+ *
+ * The result is a RamTableView of the row ids, no cell is copied.
+ */
+public class RamTableQuery
+{
+ // rows evaluated at a time when there is a limit, a multiple of 64
+ private static final int blockRows=1 << 12;
+
+ private final RamTable table;
+ private final ArrayList<Predicate> where=new ArrayList<>();
+ private int cols[]=null;
+ private int limit=Integer.MAX_VALUE;
+
+
+ RamTableQuery(RamTable table)
+ {
+  this.table=table;
+ }
+
+
+ // the predicates are ANDed
+ public RamTableQuery where(Predicate predicate)
+ {
+  where.add(predicate);
+  return this;
+ }
+
+
+ // the columns of the view, in this order (all the columns of the table if never called)
+ public RamTableQuery select(int... cols)
+ {
+  this.cols=cols.clone();
+  return this;
+ }
+
+
+ public RamTableQuery limit(int limit)
+ {
+  if (limit<0) throw new IllegalArgumentException("Invalid limit: "+limit);
+  this.limit=limit;
+  return this;
+ }
+
+
+ public RamTableView execute()
+ {
+  synchronized (table)
+  {
+   int rows=table.getRowsCount();
+   int res[]=new int[Math.min(rows, Math.min(limit, 1024))];
+   int count=0;
+
+   Evaluation ev=new Evaluation(table);
+   int step=((limit==Integer.MAX_VALUE)?rows:blockRows);
+
+   for (int first=0;first<rows && count<limit;first+=step)
+   {
+    long sel[]=evaluate(ev, first, Math.min(step, rows-first));
+
+    for (int w=0;w<sel.length && count<limit;w++)
+    {
+     long bits=sel[w];
+
+     while (bits!=0 && count<limit)
+     {
+      if (count==res.length) res=Arrays.copyOf(res, Math.min(Math.max(count*2, 16), Math.min(rows, limit)));
+      res[count++]=first+(w << 6)+Long.numberOfTrailingZeros(bits);
+      bits&=bits-1;
+     }
+    }
+   }
+
+   return new RamTableView(table, Arrays.copyOf(res, count), cols);
+  }
+ }
+
+
+ // the number of the matching rows (up to limit), without building the view
+ public int count()
+ {
+  synchronized (table)
+  {
+   int rows=table.getRowsCount();
+   long res=0;
+
+   Evaluation ev=new Evaluation(table);
+   int step=((limit==Integer.MAX_VALUE)?rows:blockRows);
+
+   for (int first=0;first<rows && res<limit;first+=step)
+   {
+    for (long w : evaluate(ev, first, Math.min(step, rows-first))) res+=Long.bitCount(w);
+   }
+
+   return (int)Math.min(res, limit);
+  }
+ }
+
+
+ private long[] evaluate(Evaluation ev, int firstRow, int rows)
+ {
+  long sel[]=new long[(rows+63) >>> 6];
+  Arrays.fill(sel, -1L);
+  if ((rows & 63)!=0) sel[sel.length-1]=(1L << rows)-1;
+
+  for (Predicate p : where)
+  {
+   p.filter(ev, sel, firstRow, rows);
+  }
+
+  return sel;
+ }
+
+
+ // =============================================================================
+ // predicates
+
+
+ public static Predicate equalTo(int col, Object value)
+ {
+  return new EqualTo(col, value);
+ }
+
+
+ /**
+  * from/to null mean unbounded. Null cells never match, values are ordered like in
+  * RamTable.findRowsInRange.
+  */
+ public static Predicate range(int col, Object from, boolean fromInclusive, Object to, boolean toInclusive)
+ {
+  return new Range(col, from, fromInclusive, to, toInclusive);
+ }
+
+
+ /**
+  * SQL like: % matches any sequence of chars, _ any single char. The pattern is compiled
+  * once. Null cells never match, other non string cells are tested through toString().
+  */
+ public static Predicate like(int col, String pattern, boolean caseSensitive)
+ {
+  return new Like(col, LikePattern.compile(pattern, caseSensitive));
+ }
+
+
+ // the cells containing sub (like RamTable.testLIKEOnCell)
+ public static Predicate contains(int col, String sub, boolean caseSensitive)
+ {
+  return new Like(col, new LikePattern(LikePattern.contains, sub, caseSensitive));
+ }
+
+
+ // the cells equal to one of values (a null value matches the null cells)
+ public static Predicate in(int col, Object... values)
+ {
+  return new In(col, values);
+ }
+
+
+ public static Predicate and(Predicate... predicates)
+ {
+  return new And(predicates.clone());
+ }
+
+
+ public static Predicate or(Predicate... predicates)
+ {
+  return new Or(predicates.clone());
+ }
+
+
+ public static Predicate not(Predicate predicate)
+ {
+  return new Not(predicate);
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ // what is shared by the predicates during an execution (the rows found through the indexes)
+ static class Evaluation
+ {
+  final RamTable table;
+  final IdentityHashMap<Predicate, int[]> indexedRows=new IdentityHashMap<>();
+
+  Evaluation(RamTable table)
+  {
+   this.table=table;
+  }
+ }
+
+
+ // tests a row, the absolute row id
+ private interface RowTest
+ {
+  boolean test(int row);
+ }
+
+
+ /**
+  * A condition on the rows. Immutable, so the same predicate can be used by many queries.
+  */
+ public static abstract class Predicate
+ {
+  /**
+   * sel holds the bits of the rows from firstRow to firstRow+rows-1: the bits of the rows
+   * not matching are cleared.
+   */
+  abstract void filter(Evaluation ev, long sel[], int firstRow, int rows);
+
+
+  static void filter(long sel[], int firstRow, RowTest test)
+  {
+   for (int w=0;w<sel.length;w++)
+   {
+    long bits=sel[w];
+    long keep=bits;
+    int base=firstRow+(w << 6);
+
+    while (bits!=0)
+    {
+     int b=Long.numberOfTrailingZeros(bits);
+     if (!test.test(base+b)) keep&=~(1L << b);
+     bits&=bits-1;
+    }
+
+    sel[w]=keep;
+   }
+  }
+
+
+  // keeps only the rows in sortedRows
+  static void retain(long sel[], int firstRow, int rows, int sortedRows[])
+  {
+   long found[]=new long[sel.length];
+   int i=Arrays.binarySearch(sortedRows, firstRow);
+   if (i<0) i=-i-1;
+
+   for (int end=firstRow+rows;i<sortedRows.length && sortedRows[i]<end;i++)
+   {
+    int r=sortedRows[i]-firstRow;
+    found[r >>> 6]|=1L << r;
+   }
+
+   for (int w=0;w<sel.length;w++) sel[w]&=found[w];
+  }
+ }
+
+
+ static abstract class ColumnPredicate extends Predicate
+ {
+  final int col;
+
+  ColumnPredicate(int col)
+  {
+   this.col=col;
+  }
+
+
+  void filter(Evaluation ev, long sel[], int firstRow, int rows)
+  {
+   ColumnVector cv=ev.table.columnVector(col);
+
+   if (cv==null)
+   {
+    RamTable table=ev.table;
+    filter(sel, firstRow, r -> test(table.getObject(col, r)));
+   }
+   else
+   {
+    int cap=cv.capacity();
+    filter(sel, firstRow, rowTest(cv, cap));
+   }
+  }
+
+
+  // the test of the rows of cv (of capacity cap), specialized when possible
+  RowTest rowTest(ColumnVector cv, int cap)
+  {
+   return r -> test((r<cap)?cv.get(r):null);
+  }
+
+
+  abstract boolean test(Object value);
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ static class EqualTo extends ColumnPredicate
+ {
+  final Object value;
+
+  EqualTo(int col, Object value)
+  {
+   super(col);
+   this.value=value;
+  }
+
+
+  void filter(Evaluation ev, long sel[], int firstRow, int rows)
+  {
+   if (value!=null && ev.table.freshIndex(col)!=null)
+   {
+    int found[]=ev.indexedRows.get(this);
+
+    if (found==null)
+    {
+     found=ev.table.findRows(col, value);
+     ev.indexedRows.put(this, found);
+    }
+
+    retain(sel, firstRow, rows, found);
+   }
+   else super.filter(ev, sel, firstRow, rows);
+  }
+
+
+  RowTest rowTest(ColumnVector cv, int cap)
+  {
+   if (value!=null)
+   {
+    if (cv instanceof IntVector && value instanceof Integer)
+    {
+     IntVector iv=(IntVector)cv;
+     int v=(Integer)value;
+     return r -> r<cap && iv.values[r]==v && !iv.isNull(r);
+    }
+
+    if (cv instanceof LongVector && value instanceof Long)
+    {
+     LongVector lv=(LongVector)cv;
+     long v=(Long)value;
+     return r -> r<cap && lv.values[r]==v && !lv.isNull(r);
+    }
+
+    if (cv instanceof DoubleVector && value instanceof Double)
+    {
+     // Double.equals compares the bits
+     DoubleVector dv=(DoubleVector)cv;
+     long v=Double.doubleToLongBits((Double)value);
+     return r -> r<cap && Double.doubleToLongBits(dv.values[r])==v && !dv.isNull(r);
+    }
+
+    if (cv instanceof StringVector)
+    {
+     StringVector sv=(StringVector)cv;
+     Integer code=sv.codesByString.get(value);
+     if (code==null) return r -> false;
+     int c=code;
+     return r -> r<cap && sv.codes[r]==c;
+    }
+   }
+
+   return super.rowTest(cv, cap);
+  }
+
+
+  boolean test(Object cell)
+  {
+   return ((value==null)?cell==null:value.equals(cell));
+  }
+ }
+
+
+ static class Range extends ColumnPredicate
+ {
+  final Object from;
+  final boolean fromInclusive;
+  final Object to;
+  final boolean toInclusive;
+
+  Range(int col, Object from, boolean fromInclusive, Object to, boolean toInclusive)
+  {
+   super(col);
+   this.from=from;
+   this.fromInclusive=fromInclusive;
+   this.to=to;
+   this.toInclusive=toInclusive;
+  }
+
+
+  void filter(Evaluation ev, long sel[], int firstRow, int rows)
+  {
+   if (ev.table.getIndexType(col)==RamTable.INDEX_SORTED)
+   {
+    int found[]=ev.indexedRows.get(this);
+
+    if (found==null)
+    {
+     found=ev.table.findRowsInRange(col, from, fromInclusive, to, toInclusive);
+     Arrays.sort(found);
+     ev.indexedRows.put(this, found);
+    }
+
+    retain(sel, firstRow, rows, found);
+   }
+   else super.filter(ev, sel, firstRow, rows);
+  }
+
+
+  private boolean boundsAre(Class c)
+  {
+   return ((from==null || from.getClass()==c) && (to==null || to.getClass()==c));
+  }
+
+
+  // res is the comparison of the cell with a bound
+  private boolean inside(int fromRes, int toRes)
+  {
+   return ((from==null || fromRes>0 || (fromRes==0 && fromInclusive)) &&
+           (to==null || toRes<0 || (toRes==0 && toInclusive)));
+  }
+
+
+  RowTest rowTest(ColumnVector cv, int cap)
+  {
+   if (cv instanceof IntVector && boundsAre(Integer.class))
+   {
+    IntVector iv=(IntVector)cv;
+    long lo=((from==null)?Long.MIN_VALUE:(Integer)from+((fromInclusive)?0L:1L));
+    long hi=((to==null)?Long.MAX_VALUE:(Integer)to-((toInclusive)?0L:1L));
+    return r -> r<cap && iv.values[r]>=lo && iv.values[r]<=hi && !iv.isNull(r);
+   }
+
+   if (cv instanceof LongVector && boundsAre(Long.class))
+   {
+    LongVector lv=(LongVector)cv;
+    long lo=((from==null)?0:(Long)from);
+    long hi=((to==null)?0:(Long)to);
+    return r -> r<cap && !lv.isNull(r) && inside(Long.compare(lv.values[r], lo), Long.compare(lv.values[r], hi));
+   }
+
+   if (cv instanceof DoubleVector && boundsAre(Double.class))
+   {
+    DoubleVector dv=(DoubleVector)cv;
+    double lo=((from==null)?0:(Double)from);
+    double hi=((to==null)?0:(Double)to);
+    return r -> r<cap && !dv.isNull(r) && inside(Double.compare(dv.values[r], lo), Double.compare(dv.values[r], hi));
+   }
+
+   if (cv instanceof StringVector)
+   {
+    StringVector sv=(StringVector)cv;
+    boolean matching[]=new boolean[sv.dictionarySize];
+    for (int c=0;c<matching.length;c++) matching[c]=test(sv.dictionary[c]);
+    return r -> r<cap && sv.codes[r]>=0 && matching[sv.codes[r]];
+   }
+
+   return super.rowTest(cv, cap);
+  }
+
+
+  boolean test(Object cell)
+  {
+   return (cell!=null &&
+           inside((from!=null)?ColumnIndex.order.compare(cell, from):0, (to!=null)?ColumnIndex.order.compare(cell, to):0));
+  }
+ }
+
+
+ static class Like extends ColumnPredicate
+ {
+  final LikePattern pattern;
+
+  Like(int col, LikePattern pattern)
+  {
+   super(col);
+   this.pattern=pattern;
+  }
+
+
+  RowTest rowTest(ColumnVector cv, int cap)
+  {
+   if (cv instanceof StringVector)
+   {
+    StringVector sv=(StringVector)cv;
+    boolean matching[]=new boolean[sv.dictionarySize];
+    for (int c=0;c<matching.length;c++) matching[c]=pattern.matches(sv.dictionary[c]);
+    return r -> r<cap && sv.codes[r]>=0 && matching[sv.codes[r]];
+   }
+
+   return super.rowTest(cv, cap);
+  }
+
+
+  boolean test(Object cell)
+  {
+   return (cell!=null && pattern.matches(cell.toString()));
+  }
+ }
+
+
+ static class In extends ColumnPredicate
+ {
+  final HashSet<Object> values;
+
+  In(int col, Object values[])
+  {
+   super(col);
+   this.values=new HashSet<>(Arrays.asList(values));
+  }
+
+
+  RowTest rowTest(ColumnVector cv, int cap)
+  {
+   boolean withNull=values.contains(null);
+
+   if (cv instanceof IntVector && !withNull && values.stream().allMatch(v -> v instanceof Integer))
+   {
+    IntVector iv=(IntVector)cv;
+    int sorted[]=values.stream().mapToInt(v -> (Integer)v).sorted().toArray();
+    return r -> r<cap && !iv.isNull(r) && Arrays.binarySearch(sorted, iv.values[r])>=0;
+   }
+
+   if (cv instanceof StringVector)
+   {
+    StringVector sv=(StringVector)cv;
+    boolean matching[]=new boolean[sv.dictionarySize];
+    for (int c=0;c<matching.length;c++) matching[c]=values.contains(sv.dictionary[c]);
+    return r -> (r<cap && sv.codes[r]>=0)?matching[sv.codes[r]]:withNull;
+   }
+
+   return super.rowTest(cv, cap);
+  }
+
+
+  boolean test(Object cell)
+  {
+   return values.contains(cell);
+  }
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ static class And extends Predicate
+ {
+  final Predicate predicates[];
+
+  And(Predicate predicates[])
+  {
+   this.predicates=predicates;
+  }
+
+  void filter(Evaluation ev, long sel[], int firstRow, int rows)
+  {
+   for (Predicate p : predicates) p.filter(ev, sel, firstRow, rows);
+  }
+ }
+
+
+ static class Or extends Predicate
+ {
+  final Predicate predicates[];
+
+  Or(Predicate predicates[])
+  {
+   this.predicates=predicates;
+  }
+
+  // every predicate is tested only on the rows not already accepted by the previous ones
+  void filter(Evaluation ev, long sel[], int firstRow, int rows)
+  {
+   long accepted[]=new long[sel.length];
+   long todo[]=new long[sel.length];
+
+   for (Predicate p : predicates)
+   {
+    for (int w=0;w<sel.length;w++) todo[w]=sel[w] & ~accepted[w];
+    p.filter(ev, todo, firstRow, rows);
+    for (int w=0;w<sel.length;w++) accepted[w]|=todo[w];
+   }
+
+   System.arraycopy(accepted, 0, sel, 0, sel.length);
+  }
+ }
+
+
+ static class Not extends Predicate
+ {
+  final Predicate predicate;
+
+  Not(Predicate predicate)
+  {
+   this.predicate=predicate;
+  }
+
+  void filter(Evaluation ev, long sel[], int firstRow, int rows)
+  {
+   long matching[]=sel.clone();
+   predicate.filter(ev, matching, firstRow, rows);
+   for (int w=0;w<sel.length;w++) sel[w]&=~matching[w];
+  }
+ }
+
+
+ // =============================================================================
+
+
+ /**
+  * A compiled LIKE pattern: the patterns with a single literal (exact, prefix, suffix
+  * or contained) are tested with String methods, the others by a backtracking matcher.
+  */
+ static class LikePattern
+ {
+  static final int exact=0;
+  static final int prefix=1;
+  static final int suffix=2;
+  static final int contains=3;
+  static final int general=4;
+
+  final int kind;
+  final String literal;
+  final char pattern[];
+  final boolean caseSensitive;
+
+
+  LikePattern(int kind, String literal, boolean caseSensitive)
+  {
+   this.kind=kind;
+   this.literal=literal;
+   this.pattern=literal.toCharArray();
+   this.caseSensitive=caseSensitive;
+  }
+
+
+  static LikePattern compile(String pattern, boolean caseSensitive)
+  {
+   int len=pattern.length();
+   int first=pattern.indexOf('%');
+   boolean single=(pattern.indexOf('_')<0);
+
+   if (single)
+   {
+    if (first<0) return new LikePattern(exact, pattern, caseSensitive);
+
+    int last=pattern.lastIndexOf('%');
+    String inner=pattern.substring(1, Math.max(1, last));
+
+    if (first==len-1 && last==first) return new LikePattern(prefix, pattern.substring(0, first), caseSensitive);
+    if (first==0 && last==0) return new LikePattern(suffix, pattern.substring(1), caseSensitive);
+    if (first==0 && last==len-1 && inner.indexOf('%')<0) return new LikePattern(contains, inner, caseSensitive);
+   }
+
+   return new LikePattern(general, pattern, caseSensitive);
+  }
+
+
+  boolean matches(String s)
+  {
+   int sl=s.length();
+   int ll=pattern.length;
+
+   switch (kind)
+   {
+    case exact    : return ((caseSensitive)?s.equals(literal):s.equalsIgnoreCase(literal));
+    case prefix   : return s.regionMatches(!caseSensitive, 0, literal, 0, ll);
+    case suffix   : return (sl>=ll && s.regionMatches(!caseSensitive, sl-ll, literal, 0, ll));
+    case contains :
+     if (caseSensitive) return s.contains(literal);
+     for (int t=0;t<=sl-ll;t++)
+     {
+      if (s.regionMatches(true, t, literal, 0, ll)) return true;
+     }
+     return false;
+   }
+
+   // the classic wildcard matcher: on a mismatch it goes back to the last %
+   int si=0, pi=0, starP=-1, starS=0;
+
+   while (si<sl)
+   {
+    if (pi<ll && pattern[pi]!='%' && (pattern[pi]=='_' || same(pattern[pi], s.charAt(si))))
+    {
+     si++;
+     pi++;
+    }
+    else if (pi<ll && pattern[pi]=='%')
+    {
+     starP=pi++;
+     starS=si;
+    }
+    else if (starP>=0)
+    {
+     pi=starP+1;
+     si=++starS;
+    }
+    else return false;
+   }
+
+   while (pi<ll && pattern[pi]=='%') pi++;
+   return (pi==ll);
+  }
+
+
+  private boolean same(char c1, char c2)
+  {
+   return (c1==c2 ||
+           (!caseSensitive && (Character.toUpperCase(c1)==Character.toUpperCase(c2) ||
+                               Character.toLowerCase(c1)==Character.toLowerCase(c2))));
+  }
+ }
+
+
+}
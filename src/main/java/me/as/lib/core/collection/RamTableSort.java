@@ -0,0 +1,166 @@
+/*
+ * Copyright 2019 Antonio Sorrentini
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package me.as.lib.core.collection;
+
+
+import me.as.lib.core.extra.SortExtras;
+
+
+/**
+ * The sort engine of RamTable: the sort keys are first extracted in primitive arrays (one per
+ * sorting column), then a permutation of the rows is sorted looking only at those arrays and
+ * finally RamTable moves its rows once.
+ * A single int, long or double key is radix sorted (SortExtras.order), anything else is
+ * merge sorted (SortExtras.order with a comparator of rows), in parallel when there are
+ * enough rows. Both are stable.
+ */
+class RamTableSort
+{
+ /**
+  * One sort key, only one of the arrays is not null. Nulls of objects come first, like
+  * in the old QuickSort based sorts.
+  */
+ static class Key
+ {
+  int ints[];
+  long longs[];
+  double doubles[];
+  Object objects[];
+  boolean desc;
+
+
+  Key(boolean desc)
+  {
+   this.desc=desc;
+  }
+
+
+  @SuppressWarnings("unchecked")
+  int compare(int row1, int row2)
+  {
+   int res;
+
+   if (ints!=null) res=Integer.compare(ints[row1], ints[row2]);
+   else if (longs!=null) res=Long.compare(longs[row1], longs[row2]);
+   else if (doubles!=null)
+   {
+    double e1=doubles[row1];
+    double e2=doubles[row2];
+    res=((e1<e2)?-1:((e1>e2)?1:0));
+   }
+   else
+   {
+    Object e1=objects[row1];
+    Object e2=objects[row2];
+
+    if (e1==null) res=((e2==null)?0:-1);
+    else res=((e2==null)?1:((Comparable)e1).compareTo(e2));
+   }
+
+   return ((desc)?-res:res);
+  }
+ }
+
+
+ /**
+  * @return perm, where perm[i] is the row that has to go in position i
+  */
+ static int[] sort(Key keys[], int rows)
+ {
+  Key k=((keys.length==1)?keys[0]:null);
+
+  if (k!=null && k.ints!=null && k.ints.length==rows) return SortExtras.order(k.ints, k.desc);
+  if (k!=null && k.longs!=null && k.longs.length==rows) return SortExtras.order(k.longs, k.desc);
+  if (k!=null && k.doubles!=null && k.doubles.length==rows) return SortExtras.order(k.doubles, k.desc);
+
+  return SortExtras.order(rows, (row1, row2) ->
+  {
+   int res=0;
+   for (int t=0;t<keys.length && res==0;t++) res=keys[t].compare(row1, row2);
+   return res;
+  });
+ }
+
+
+ // the order of the strings of a dictionary encoded column, as int keys (-1 for null)
+ static int[] ranks(ColumnVector.StringVector sv, int rows)
+ {
+  int size=sv.dictionarySize;
+  String sorted[]=new String[size];
+  System.arraycopy(sv.dictionary, 0, sorted, 0, size);
+  java.util.Arrays.sort(sorted);
+
+  int rankOfCode[]=new int[size];
+  for (int t=0;t<size;t++) rankOfCode[sv.codesByString.get(sorted[t])]=t;
+
+  int res[]=new int[rows];
+  int cap=Math.min(rows, sv.capacity());
+
+  for (int r=0;r<rows;r++)
+  {
+   int code=((r<cap)?sv.codes[r]:-1);
+   res[r]=((code>=0)?rankOfCode[code]:-1);
+  }
+
+  return res;
+ }
+
+
+ // the order of strings as int keys (-1 for null): equal strings are compared only once
+ static int[] ranks(String strings[])
+ {
+  int len=strings.length;
+  int codes[]=new int[len];
+  java.util.HashMap<String, Integer> codesByString=new java.util.HashMap<>();
+  java.util.ArrayList<String> distinct=new java.util.ArrayList<>();
+
+  for (int r=0;r<len;r++)
+  {
+   String s=strings[r];
+
+   if (s==null) codes[r]=-1;
+   else
+   {
+    Integer code=codesByString.get(s);
+
+    if (code==null)
+    {
+     code=distinct.size();
+     distinct.add(s);
+     codesByString.put(s, code);
+    }
+
+    codes[r]=code;
+   }
+  }
+
+  String sorted[]=distinct.toArray(new String[0]);
+  java.util.Arrays.sort(sorted);
+
+  int rankOfCode[]=new int[sorted.length];
+  for (int t=0;t<sorted.length;t++) rankOfCode[codesByString.get(sorted[t])]=t;
+
+  for (int r=0;r<len;r++)
+  {
+   if (codes[r]>=0) codes[r]=rankOfCode[codes[r]];
+  }
+
+  return codes;
+ }
+
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2019 Antonio Sorrentini
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package me.as.lib.core.collection;
+
+
+/**
+ * Some rows and columns of a RamTable (the result of a RamTableQuery): it holds only the ids
+ * of the rows and of the columns, the cells are read from the table.
+ * The row ids are the ones of the table when the view was made: rows inserted, cut or
+ * sorted later in the table are not followed (use toRamTable() to keep a copy).
+ */
+public class RamTableView
+{
+ private final RamTable table;
+ private final int rowIds[];
+ private final int colIds[];
+
+
+ RamTableView(RamTable table, int rowIds[], int colIds[])
+ {
+  this.table=table;
+  this.rowIds=rowIds;
+  this.colIds=colIds;
+ }
+
+
+ public RamTable getTable()
+ {
+  return table;
+ }
+
+
+ public int getRowsCount()
+ {
+  return rowIds.length;
+ }
+
+
+ public int getColsCount()
+ {
+  return ((colIds!=null)?colIds.length:table.getColsCount());
+ }
+
+
+ // the row of the table shown in the row 'row' of this view
+ public int getRowId(int row)
+ {
+  return rowIds[row];
+ }
+
+
+ public int[] getRowIds()
+ {
+  return rowIds.clone();
+ }
+
+
+ // the column of the table shown in the column 'col' of this view
+ public int getColId(int col)
+ {
+  return ((colIds!=null)?colIds[col]:col);
+ }
+
+
+ public Object getObject(int col, int row)
+ {
+  return table.getObject(getColId(col), rowIds[row]);
+ }
+
+
+ public String getString(int col, int row)
+ {
+  return table.getString(getColId(col), rowIds[row]);
+ }
+
+
+ public int getInt(int col, int row)
+ {
+  return table.getInt(getColId(col), rowIds[row]);
+ }
+
+
+ public long getLong(int col, int row)
+ {
+  return table.getLong(getColId(col), rowIds[row]);
+ }
+
+
+ public double getDouble(int col, int row)
+ {
+  return table.getDouble(getColId(col), rowIds[row]);
+ }
+
+
+ public boolean getBoolean(int col, int row)
+ {
+  return table.getBoolean(getColId(col), rowIds[row]);
+ }
+
+
+ // copies the cells of the view in a new table (in columnar mode if the table is)
+ public RamTable toRamTable()
+ {
+  synchronized (table)
+  {
+   RamTable res=new RamTable();
+   int cols=getColsCount();
+   int rows=rowIds.length;
+
+   if (table.isColumnar())
+   {
+    for (int c=0;c<cols;c++)
+    {
+     int type=table.getColumnType(getColId(c));
+     if (type!=RamTable.COLUMN_OBJECT) res.setColumnType(c, type);
+    }
+
+    res.setColumnar(true);
+   }
+
+   for (int r=rows-1;r>=0;r--)
+   {
+    for (int c=0;c<cols;c++) res.setObject(c, r, getObject(c, r));
+   }
+
+   if (rows>0 && res.getColsCount()<cols) res.forceColsCount(cols);
+   return res;
+  }
+ }
+
+
+}
@@ -23,6 +23,7 @@ import java.lang.ref.*;
 import java.util.*;
 
 
+// fully synchronized and purged by scans, see ConcurrentWeakSet for many elements or threads
 public class SimpleWeakList
 {
  protected List list=new ArrayList();
@@ -22,6 +22,7 @@ import java.util.HashMap;
 import java.util.Set;
 
 
+// weak values, fully synchronized; see ConcurrentWeakKeyMap for weak keys with many entries or threads
 public class SimpleWeakMap<K, V>
 {
  protected HashMap<K, WeakReference<V>> map=new HashMap<>();
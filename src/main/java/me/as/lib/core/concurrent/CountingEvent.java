@@ -0,0 +1,236 @@
+/*
+ * Copyright 2019 Antonio Sorrentini
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package me.as.lib.core.concurrent;
+
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.AbstractQueuedSynchronizer;
+
+
+/**
+ * A count of signals that threads wait for, every waitFor consuming one: the methods of
+ * SimpleSynchro with none of its monitor. The count and the queue of the waiting threads
+ * are an AbstractQueuedSynchronizer, so a signal that finds nobody waiting is a CAS, and
+ * signal(n) adds n at once and wakes up to n waiters (each woken one wakes the next while
+ * signals are left) instead of calling notify n times.
+ *
+ * In fair mode the signals go to the waiters in the order they began waiting, a thread that
+ * comes later does not take one even if it finds it available; in unfair mode (the default)
+ * it does, which costs less under contention.
+ */
+public class CountingEvent
+{
+ private final Sync sync;
+
+
+ public CountingEvent()
+ {
+  this(false);
+ }
+
+
+ public CountingEvent(boolean fair)
+ {
+  sync=new Sync(fair);
+ }
+
+
+ public boolean isFair()
+ {
+  return sync.fair;
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ // the signals not yet consumed by a waitFor
+ public int getSignaledCount()
+ {
+  return sync.getCount();
+ }
+
+
+ public void resetSignaled()
+ {
+  sync.drain();
+ }
+
+
+ // an estimate, the threads waiting change while they are counted
+ public int getWaitingCount()
+ {
+  return sync.getQueueLength();
+ }
+
+
+ public boolean hasWaiters()
+ {
+  return sync.hasQueuedThreads();
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ // consumes a signal if there is one, without waiting
+ public boolean tryWaitFor()
+ {
+  return (sync.tryAcquireShared(1)>=0);
+ }
+
+
+ // false if the thread is interrupted while waiting, its interrupted status is set again
+ public boolean waitFor()
+ {
+  return waitFor(-1);
+ }
+
+
+ /**
+  * Waits for a signal at most timeoutMillis, forever if it is negative.
+  *
+  * @return false if the time ran out or the thread has been interrupted, in this case its
+  * interrupted status is set again
+  */
+ public boolean waitFor(long timeoutMillis)
+ {
+  try
+  {
+   if (timeoutMillis<0)
+   {
+    sync.acquireSharedInterruptibly(1);
+    return true;
+   }
+
+   return sync.tryAcquireSharedNanos(1, TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+  }
+  catch (InterruptedException ie)
+  {
+   Thread.currentThread().interrupt();
+   return false;
+  }
+ }
+
+
+ public void waitForInterruptibly() throws InterruptedException
+ {
+  sync.acquireSharedInterruptibly(1);
+ }
+
+
+ // false if the time ran out
+ public boolean waitForInterruptibly(long timeout, TimeUnit unit) throws InterruptedException
+ {
+  return sync.tryAcquireSharedNanos(1, unit.toNanos(timeout));
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ public boolean signal()
+ {
+  return signal(1);
+ }
+
+
+ public boolean signal(int howManyTimes)
+ {
+  if (howManyTimes<0) throw new IllegalArgumentException("Invalid signals count: "+howManyTimes);
+  if (howManyTimes>0) sync.releaseShared(howManyTimes);
+  return true;
+ }
+
+
+ // signals once for every thread waiting, at least once
+ public boolean signalAll()
+ {
+  return signal(Math.max(1, getWaitingCount()));
+ }
+
+
+ /**
+  *
+  * NOTE: this does not signal if there are no waiters
+  *
+  * @return false if there where no waiters otherwise return what signal would
+  */
+ public boolean signalAllWaiters()
+ {
+  int w=getWaitingCount();
+  if (w>0) return signal(w);
+  return false;
+ }
+
+
+ public String toString()
+ {
+  return super.toString()+"[signaled="+getSignaledCount()+", waiting="+getWaitingCount()+"]";
+ }
+
+
+ // =============================================================================
+
+
+ // the state is the count of the signals
+ private static class Sync extends AbstractQueuedSynchronizer
+ {
+  final boolean fair;
+
+  Sync(boolean fair)
+  {
+   this.fair=fair;
+  }
+
+  int getCount()
+  {
+   return getState();
+  }
+
+  void drain()
+  {
+   int c;
+   do {c=getState();} while (c!=0 && !compareAndSetState(c, 0));
+  }
+
+  protected int tryAcquireShared(int ignore)
+  {
+   while (true)
+   {
+    if (fair && hasQueuedPredecessors()) return -1;
+
+    int c=getState();
+    if (c==0) return -1;
+    if (compareAndSetState(c, c-1)) return c-1;
+   }
+  }
+
+  protected boolean tryReleaseShared(int howManyTimes)
+  {
+   while (true)
+   {
+    int c=getState();
+    int next=c+howManyTimes;
+    if (next<0) next=Integer.MAX_VALUE;
+    if (compareAndSetState(c, next)) return true;
+   }
+  }
+ }
+
+
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2019 Antonio Sorrentini
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package me.as.lib.core.concurrent;
+
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Where the library runs its background tasks (ThreadExtras.executeOnAnotherThread, the
+ * tasks of executeLater, the stream readers of ExternalProcessSupport/ExternalProcessRunner),
+ * most of them blocked on I/O for all their life.
+ *
+ * On a runtime with virtual threads (Java 21, looked up by reflection since the library is
+ * built for Java 11) every task gets its own virtual thread, so thousands of blocked readers
+ * cost little memory and no OS threads. Otherwise tasks run on a pool of platform threads
+ * that reuses the idle ones and creates a new one only when they are all busy.
+ * Virtual threads are always daemon: tasks that must keep the JVM alive use get(false),
+ * always made of platform threads.
+ */
+public abstract class ExecutionBackend implements Executor
+{
+ private static final AtomicInteger threadsCount=new AtomicInteger(0);
+
+ // null until the first look up
+ private static Boolean virtualSupported=null;
+
+ private static ExecutionBackend daemonBackend=null;
+ private static ExecutionBackend userBackend=null;
+
+ private final String name;
+
+
+ ExecutionBackend(String name)
+ {
+  this.name=name;
+ }
+
+
+ public String getName()
+ {
+  return name;
+ }
+
+
+ // true if the tasks run on virtual threads
+ public abstract boolean isVirtual();
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ public static synchronized boolean isVirtualThreadsSupported()
+ {
+  return (virtualFactory("probe")!=null);
+ }
+
+
+ // the backend of the daemon tasks: virtual threads when supported
+ public static ExecutionBackend getDefault()
+ {
+  return get(true);
+ }
+
+
+ public static synchronized ExecutionBackend get(boolean daemon)
+ {
+  if (daemon)
+  {
+   if (daemonBackend==null)
+   {
+    daemonBackend=newVirtual("background");
+    if (daemonBackend==null) daemonBackend=newPlatform("background", true);
+   }
+
+   return daemonBackend;
+  }
+  else
+  {
+   if (userBackend==null) userBackend=newPlatform("background_user", false);
+   return userBackend;
+  }
+ }
+
+
+ // replaces the backend of the daemon tasks, for example newPlatform(..., true) to avoid virtual threads
+ public static synchronized void setDefault(ExecutionBackend backend)
+ {
+  daemonBackend=backend;
+ }
+
+
+ // null when the runtime has no virtual threads
+ public static ExecutionBackend newVirtual(String name)
+ {
+  ThreadFactory factory;
+  synchronized (ExecutionBackend.class) {factory=virtualFactory(name+"_");}
+  return ((factory!=null)?new Virtual(name, factory):null);
+ }
+
+
+ /**
+  * A pool of platform threads named name_N, created when all the others are busy; idle
+  * threads die after a minute, or after a second when they are not daemon (they keep
+  * the JVM alive).
+  */
+ public static ExecutionBackend newPlatform(String name, boolean daemon)
+ {
+  return new Platform(name, daemon);
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ // Thread.ofVirtual().name(prefix, 0).factory(), null if there are no virtual threads
+ private static ThreadFactory virtualFactory(String prefix)
+ {
+  if (Boolean.FALSE.equals(virtualSupported)) return null;
+
+  try
+  {
+   Class<?> builderClass=Class.forName("java.lang.Thread$Builder");
+   Object builder=Thread.class.getMethod("ofVirtual").invoke(null);
+   builder=builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+   ThreadFactory res=(ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+
+   // on Java 19 and 20 they exist only with --enable-preview, otherwise this throws
+   res.newThread(() -> {});
+
+   virtualSupported=true;
+   return res;
+  }
+  catch (Throwable tr)
+  {
+   virtualSupported=false;
+   return null;
+  }
+ }
+
+
+ // =============================================================================
+
+
+ private static class Virtual extends ExecutionBackend
+ {
+  private final ThreadFactory factory;
+
+  Virtual(String name, ThreadFactory factory)
+  {
+   super(name);
+   this.factory=factory;
+  }
+
+  public boolean isVirtual()
+  {
+   return true;
+  }
+
+  public void execute(Runnable task)
+  {
+   factory.newThread(task).start();
+  }
+ }
+
+
+ private static class Platform extends ExecutionBackend
+ {
+  private final ThreadPoolExecutor pool;
+
+  Platform(String name, boolean daemon)
+  {
+   super(name);
+
+   pool=new ThreadPoolExecutor(0, Integer.MAX_VALUE, (daemon)?60:1, TimeUnit.SECONDS, new SynchronousQueue<>(), r ->
+   {
+    Thread th=new Thread(r, name+"_"+threadsCount.incrementAndGet());
+    th.setDaemon(daemon);
+    return th;
+   });
+  }
+
+  public boolean isVirtual()
+  {
+   return false;
+  }
+
+  public void execute(Runnable task)
+  {
+   pool.execute(task);
+  }
+ }
+
+
+}
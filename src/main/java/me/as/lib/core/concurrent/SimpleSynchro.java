@@ -14,126 +14,28 @@
  * the License.
  */
 
-package me.as.lib.core.concurrent;
-
 
-import java.util.concurrent.atomic.*;
+package me.as.lib.core.concurrent;
 
 
-public class SimpleSynchro
+/**
+ * A CountingEvent in unfair mode that keeps the contract of the monitor based SimpleSynchro:
+ * waitFor(0) waits forever like Object.wait(0), and an interrupt only makes waitFor return
+ * false, the interrupted status is cleared (as the InterruptedException of Object.wait did)
+ * so the next waitFor waits again. CountingEvent.waitFor sets it again instead.
+ */
+public class SimpleSynchro extends CountingEvent
 {
- private int signaled=0;
- private AtomicInteger waiting=new AtomicInteger(0);
-
-
- public int getSignaledCount()
- {
-  int res;
-  synchronized (this) {res=signaled;}
-  return res;
- }
-
- public void resetSignaled()
- {
-  synchronized (this) {signaled=0;}
- }
-
-
- public boolean waitFor()
- {
-  return waitFor(-1);
- }
-
 
  public boolean waitFor(long timeout)
  {
-  waiting.incrementAndGet();
-  boolean res;
-
-  try
-  {
-   synchronized (this)
-   {
-    if (signaled==0)
-    {
-     if (timeout>=0) wait(timeout);
-     else wait();
-
-     synchronized (this)  // because wait releases ownership of the monitor!
-     {
-      if (res=(signaled!=0))
-      {
-       signaled--;
-      }
-     }
-    }
-    else
-    {
-     res=true;
-     signaled--;
-    }
-   }
-  }
-  catch (Throwable tr)
-  {
-   res=false;
-  }
-
-  waiting.decrementAndGet();
-  return res;
- }
-
-
- public boolean signal()
- {
-  return signal(1);
- }
-
-
- public boolean signal(int howManyTimes)
- {
-  boolean res=false;
-
-  try
-  {
-   synchronized (this)
-   {
-    signaled+=howManyTimes;
-    for (int t=0;t<howManyTimes;t++) notify();
-    res=true;
-   }
-  }
-  catch (Throwable tr)
-  {
-   res=false;
-  }
+  // a signal already there is taken even by an interrupted thread
+  if (tryWaitFor()) return true;
 
+  boolean res=super.waitFor((timeout==0)?-1:timeout);
+  if (!res) Thread.interrupted();
   return res;
  }
 
 
- public boolean signalAll()
- {
-  return signal(Math.max(1, waiting.get()));
- }
-
-
- /**
-  *
-  * NOTE: this does not signal if there are no waiters
-  *
-  * @return false if there where no waiters otherwise return what signal would
-  */
- public boolean signalAllWaiters()
- {
-  int w=waiting.get();
-  if (w>0) return signal(w);
-  return false;
- }
-
-
 }
-
-
-
-
@@ -17,13 +17,11 @@
 package me.as.lib.core.concurrent;
 
 
-import me.as.lib.core.collection.Fifo;
 import me.as.lib.core.extra.Continuable;
 import me.as.lib.core.lang.ArrayExtras;
 
 import java.util.*;
 import java.io.*;
-import java.util.concurrent.atomic.*;
 
 import static me.as.lib.core.lang.ExceptionExtras.systemErrDeepCauseStackTrace;
 import static me.as.lib.core.lang.StringExtras.isBlank;
@@ -52,90 +50,74 @@ public class ThreadExtras
 */
 
 
- private static AtomicInteger sleeperThreadCount=new AtomicInteger(-1);
- private static final int maxSleeperThreadsInPool=20;
+ // the pending tasks of executeLater cost an entry in one of these, not a thread
+ private static TimerWheel daemonWheel=null;
+ private static TimerWheel userWheel=null;
 
- private static class SleeperThread extends Thread
- {
-  SimpleSynchro ss=new SimpleSynchro();
-  long howManyMillisLater;
-  Runnable runnable;
 
-  SleeperThread()
+ public static synchronized TimerWheel getTimerWheel(boolean daemon)
+ {
+  if (daemon)
   {
-   this(true);
+   if (daemonWheel==null) daemonWheel=new TimerWheel("executeLater", true);
+   return daemonWheel;
   }
-
-  SleeperThread(boolean daemon)
+  else
   {
-   super("SleeperThread_"+sleeperThreadCount.incrementAndGet());
-//   System.out.println("{9rdvaaa} new SleeperThread: "+getName());
-   setDaemon(daemon);
-   start();
+   if (userWheel==null) userWheel=new TimerWheel("executeLater_user", false);
+   return userWheel;
   }
+ }
 
 
-  void setRunnable(long howManyMillisLater, Runnable runnable)
-  {
-   this.runnable=runnable;
-   this.howManyMillisLater=howManyMillisLater;
-   ss.signalAll();
-  }
+ public static void executeOnAnotherThread(Runnable runnable)
+ {
+  executeOnAnotherThread(true, runnable);
+ }
 
+ // a virtual thread when the runtime has them and daemon is true, see ExecutionBackend
+ public static void executeOnAnotherThread(boolean daemon, Runnable runnable)
+ {
+  ExecutionBackend.get(daemon).execute(runnable);
+ }
 
-  public void run()
-  {
-   while (true)
-   {
-    ss.waitFor();
-    if (howManyMillisLater>0) ThreadExtras.sleep(howManyMillisLater);
 
-    try
-    {
-     runnable.run();
-    }
-    catch (Throwable tr)
-    {
-     throw new RuntimeException(tr);
-    }
-
-    if (isDaemon() &&
-        threadPool.size()<maxSleeperThreadsInPool)
-    {
-     this.runnable=null;
-     ss.resetSignaled();
-     threadPool.put(this);
-    }
-    else
-     break;
-   }
-  }
+ public static void executeLater(long howManyMillisLater, Runnable runnable)
+ {
+  scheduleLater(howManyMillisLater, true, runnable);
  }
 
- private static final Fifo<SleeperThread> threadPool=new Fifo<>();
+ // see scheduleLater
+ public static void executeLater(long howManyMillisLater, boolean daemon, Runnable runnable)
+ {
+  scheduleLater(howManyMillisLater, daemon, runnable);
+ }
 
 
- public static void executeOnAnotherThread(Runnable runnable)
+ public static TimerWheel.Timeout scheduleLater(long howManyMillisLater, Runnable runnable)
  {
-  executeLater(0, runnable);
+  return scheduleLater(howManyMillisLater, true, runnable);
  }
 
- public static void executeOnAnotherThread(boolean daemon, Runnable runnable)
+ /**
+  * Runs runnable on the ExecutionBackend of daemon howManyMillisLater from now, with a
+  * precision of 10 milliseconds. The returned Timeout can cancel it.
+  */
+ public static TimerWheel.Timeout scheduleLater(long howManyMillisLater, boolean daemon, Runnable runnable)
  {
-  executeLater(0, daemon, runnable);
+  return getTimerWheel(daemon).schedule(howManyMillisLater, runnable);
  }
 
 
- public static void executeLater(long howManyMillisLater, Runnable runnable)
+ public static TimerWheel.Timeout executeAtFixedRate(long initialDelayMillis, long periodMillis, Runnable runnable)
  {
-  executeLater(howManyMillisLater, true, runnable);
+  return getTimerWheel(true).scheduleAtFixedRate(initialDelayMillis, periodMillis, runnable);
  }
 
- public static void executeLater(long howManyMillisLater, boolean daemon, Runnable runnable)
+
+ public static TimerWheel.Timeout executeWithFixedDelay(long initialDelayMillis, long delayMillis, Runnable runnable)
  {
-  SleeperThread st=threadPool.get();
-  if (st==null) st=new SleeperThread(daemon);
-  st.setRunnable(howManyMillisLater, runnable);
+  return getTimerWheel(true).scheduleWithFixedDelay(initialDelayMillis, delayMillis, runnable);
  }
 
 
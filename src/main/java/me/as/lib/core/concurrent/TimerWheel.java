@@ -0,0 +1,349 @@
+/*
+ * Copyright 2019 Antonio Sorrentini
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package me.as.lib.core.concurrent;
+
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A hashed timer wheel: the pending tasks are kept in 512 buckets, one per tick (10
+ * milliseconds by default), each a doubly linked list, so scheduling and cancelling take
+ * the same time whatever the count of pending tasks and each one costs a small object.
+ * A single thread runs only while something is pending, turns the wheel and hands the
+ * expired tasks to the dispatcher (by default an ExecutionBackend, where a task never waits
+ * for a slower one).
+ *
+ * Tasks run at most a tick late. A repeating task is scheduled again when its run ends
+ * (runs never overlap), and it is not if the run throws.
+ */
+public class TimerWheel
+{
+ private static final int wheelSize=512;
+ private static final int wheelMask=wheelSize-1;
+
+ private final String name;
+ private final boolean daemon;
+ private final long tickNanos;
+ private final Executor dispatcher;
+
+ private final Timeout buckets[]=new Timeout[wheelSize];
+ private final long originNanos=System.nanoTime();
+ // the next tick to be processed
+ private long tick=0;
+ private int pending=0;
+ private Thread worker=null;
+
+
+ public TimerWheel(String name, boolean daemon)
+ {
+  this(name, daemon, 10, null);
+ }
+
+
+ /**
+  * @param dispatcher runs the expired tasks, null for ExecutionBackend.get(daemon)
+  */
+ public TimerWheel(String name, boolean daemon, long tickMillis, Executor dispatcher)
+ {
+  if (tickMillis<=0) throw new IllegalArgumentException("Invalid tick: "+tickMillis);
+
+  this.name=name;
+  this.daemon=daemon;
+  this.tickNanos=TimeUnit.MILLISECONDS.toNanos(tickMillis);
+  this.dispatcher=((dispatcher!=null)?dispatcher:ExecutionBackend.get(daemon));
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ // runs task once, delayMillis from now (<=0 for as soon as possible)
+ public Timeout schedule(long delayMillis, Runnable task)
+ {
+  return schedule(delayMillis, 0, task);
+ }
+
+
+ // the runs begin every periodMillis (or as soon as the previous one ends, if it is late)
+ public Timeout scheduleAtFixedRate(long initialDelayMillis, long periodMillis, Runnable task)
+ {
+  if (periodMillis<=0) throw new IllegalArgumentException("Invalid period: "+periodMillis);
+  return schedule(initialDelayMillis, TimeUnit.MILLISECONDS.toNanos(periodMillis), task);
+ }
+
+
+ // every run begins delayMillis after the end of the previous one
+ public Timeout scheduleWithFixedDelay(long initialDelayMillis, long delayMillis, Runnable task)
+ {
+  if (delayMillis<=0) throw new IllegalArgumentException("Invalid delay: "+delayMillis);
+  return schedule(initialDelayMillis, -TimeUnit.MILLISECONDS.toNanos(delayMillis), task);
+ }
+
+
+ private Timeout schedule(long delayMillis, long periodNanos, Runnable task)
+ {
+  if (task==null) throw new NullPointerException("task");
+
+  Timeout res=new Timeout(this, task, periodNanos);
+  res.deadline=System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+
+  if (delayMillis<=0) dispatcher.execute(res);
+  else add(res);
+
+  return res;
+ }
+
+
+ // the tasks waiting for their time
+ public synchronized int getPendingCount()
+ {
+  return pending;
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ private synchronized void add(Timeout t)
+ {
+  // the tick when the deadline is passed, never one already processed
+  t.tick=Math.max(tick, (t.deadline-originNanos+tickNanos-1)/tickNanos);
+
+  int b=(int)(t.tick & wheelMask);
+  t.bucket=b;
+  t.prev=null;
+  t.next=buckets[b];
+  if (t.next!=null) t.next.prev=t;
+  buckets[b]=t;
+
+  if (pending++==0)
+  {
+   if (worker==null)
+   {
+    worker=new Thread(this::turn, name);
+    worker.setDaemon(daemon);
+    worker.start();
+   } else notifyAll();
+  }
+ }
+
+
+ private synchronized void remove(Timeout t)
+ {
+  if (t.bucket>=0)
+  {
+   if (t.prev!=null) t.prev.next=t.next;
+   else buckets[t.bucket]=t.next;
+   if (t.next!=null) t.next.prev=t.prev;
+
+   t.prev=null;
+   t.next=null;
+   t.bucket=-1;
+   pending--;
+  }
+ }
+
+
+ // the thread of the wheel, it ends when nothing has been pending for a while
+ private void turn()
+ {
+  ArrayList<Timeout> expired=new ArrayList<>();
+
+  while (true)
+  {
+   synchronized (this)
+   {
+    try
+    {
+     if (pending==0)
+     {
+      wait((daemon)?60000:1);
+
+      if (pending==0)
+      {
+       worker=null;
+       return;
+      }
+     }
+
+     long now=System.nanoTime();
+     long nowTick=(now-originNanos)/tickNanos;
+
+     if (tick<=nowTick)
+     {
+      // a bucket holds the ticks of all the rounds, after a long pause each is visited once
+      long last=Math.min(nowTick, tick+wheelMask);
+      for (long k=tick;k<=last;k++) expire((int)(k & wheelMask), nowTick, expired);
+      tick=nowTick+1;
+     }
+
+     if (expired.isEmpty())
+     {
+      long waitNanos=originNanos+tick*tickNanos-now;
+      if (waitNanos>0) wait(waitNanos/1000000, (int)(waitNanos%1000000));
+     }
+    }
+    catch (InterruptedException ignore) {}
+   }
+
+   for (int t=0;t<expired.size();t++)
+   {
+    try
+    {
+     dispatcher.execute(expired.get(t));
+    }
+    catch (Throwable tr)
+    {
+     Thread.currentThread().getUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), tr);
+    }
+   }
+
+   expired.clear();
+  }
+ }
+
+
+ private void expire(int b, long nowTick, ArrayList<Timeout> expired)
+ {
+  Timeout t=buckets[b];
+
+  while (t!=null)
+  {
+   Timeout next=t.next;
+
+   if (t.tick<=nowTick)
+   {
+    remove(t);
+    expired.add(t);
+   }
+
+   t=next;
+  }
+ }
+
+
+ // =============================================================================
+
+
+ /**
+  * The handle of a scheduled task: cancel() stops it if it has not yet begun, and stops
+  * the next runs of a repeating one.
+  */
+ public static class Timeout implements Runnable
+ {
+  private static final int waiting=0;
+  private static final int running=1;
+  private static final int cancelled=2;
+  private static final int done=3;
+
+  private final TimerWheel wheel;
+  private final Runnable task;
+  // >0 fixed rate, <0 fixed delay, 0 runs once
+  private final long periodNanos;
+  private final AtomicInteger state=new AtomicInteger(waiting);
+
+  // guarded by the wheel
+  long deadline;
+  long tick;
+  int bucket=-1;
+  Timeout prev;
+  Timeout next;
+
+
+  Timeout(TimerWheel wheel, Runnable task, long periodNanos)
+  {
+   this.wheel=wheel;
+   this.task=task;
+   this.periodNanos=periodNanos;
+  }
+
+
+  public boolean cancel()
+  {
+   while (true)
+   {
+    int s=state.get();
+    if (s==cancelled || s==done) return false;
+
+    // under the monitor of the wheel, a repeating task may be going back in it
+    synchronized (wheel)
+    {
+     if (state.compareAndSet(s, cancelled))
+     {
+      if (s==waiting) wheel.remove(this);
+      return true;
+     }
+    }
+   }
+  }
+
+
+  public boolean isCancelled()
+  {
+   return (state.get()==cancelled);
+  }
+
+
+  // true when a task that runs once has run, or has been cancelled
+  public boolean isDone()
+  {
+   int s=state.get();
+   return (s==done || s==cancelled);
+  }
+
+
+  public boolean isRepeating()
+  {
+   return (periodNanos!=0);
+  }
+
+
+  // called by the dispatcher
+  public void run()
+  {
+   if (!state.compareAndSet(waiting, running)) return;
+
+   boolean ok=false;
+
+   try
+   {
+    task.run();
+    ok=true;
+   }
+   finally
+   {
+    if (ok && periodNanos!=0)
+    {
+     if (periodNanos>0) deadline=Math.max(deadline+periodNanos, System.nanoTime());
+     else deadline=System.nanoTime()-periodNanos;
+
+     synchronized (wheel)
+     {
+      if (state.compareAndSet(running, waiting)) wheel.add(this);
+     }
+    }
+    else state.compareAndSet(running, done);
+   }
+  }
+ }
+
+
+}
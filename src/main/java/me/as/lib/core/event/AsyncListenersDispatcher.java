@@ -0,0 +1,340 @@
+/*
+ * Copyright 2019 Antonio Sorrentini
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package me.as.lib.core.event;
+
+
+import me.as.lib.core.concurrent.ExecutionBackend;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.EventListener;
+import java.util.EventObject;
+import java.util.List;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static me.as.lib.core.lang.ExceptionExtras.systemErrDeepCauseStackTrace;
+
+
+/**
+ * Runs the listeners of an event off the firing thread. Every listener has its own queue:
+ * it receives the events in the order they have been fired and one at a time, while
+ * different listeners run in parallel on the executor, so a slow one delays only itself.
+ *
+ * The listeners managers use it when given one with setAsyncDispatcher, or through their
+ * foreachListenerAsync methods. For every listener it keeps the count of the events handled
+ * and the time spent handling them (see getListenersStats), to find the slow ones.
+ */
+public class AsyncListenersDispatcher
+{
+ // events handled by a listener before giving its thread back to the executor
+ private static final int batchSize=64;
+
+ private static AsyncListenersDispatcher defaultDispatcher=null;
+
+ private final Executor executor;
+ private final WeakHashMap<EventListener, Mailbox> mailboxes=new WeakHashMap<>();
+
+
+ // the listeners run on ExecutionBackend.getDefault()
+ public AsyncListenersDispatcher()
+ {
+  this(null);
+ }
+
+
+ public AsyncListenersDispatcher(Executor executor)
+ {
+  this.executor=((executor!=null)?executor:ExecutionBackend.getDefault());
+ }
+
+
+ public static synchronized AsyncListenersDispatcher getDefault()
+ {
+  if (defaultDispatcher==null) defaultDispatcher=new AsyncListenersDispatcher();
+  return defaultDispatcher;
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ // queues event for every listener, returns immediately the count of the listeners; event is
+ // cast to what firer takes only when a listener gets it, like the managers do when firing
+ @SuppressWarnings("unchecked")
+ public <L extends EventListener, E extends EventObject> int fire(EventListener listeners[], Firer<L, E> firer, Object event)
+ {
+  int len=listeners.length;
+
+  for (int t=0;t<len;t++)
+  {
+   final L listener=(L)listeners[t];
+   mailboxOf(listener).enqueue(() -> firer.foreachAction(listener, (E)event));
+  }
+
+  return len;
+ }
+
+
+ /**
+  * Queues param for every listener. The future completes when they have all handled it, with
+  * the answer of listenerThatMustAnswer (null if it is not among them), or exceptionally
+  * with the first exception thrown by a listener.
+  */
+ public CompletableFuture<Object> fire(EventListener listeners[], AnsweredFirer firer, EventObject param, EventListener listenerThatMustAnswer)
+ {
+  CompletableFuture<Object> res=new CompletableFuture<>();
+  int len=listeners.length;
+
+  if (len==0) res.complete(null);
+  else
+  {
+   AtomicInteger missing=new AtomicInteger(len);
+   Object answer[]=new Object[1];
+   Throwable failure[]=new Throwable[1];
+
+   for (int t=0;t<len;t++)
+   {
+    final EventListener listener=listeners[t];
+
+    mailboxOf(listener).enqueue(() ->
+    {
+     try
+     {
+      Object tmpRes=firer.foreachAction(listener, param);
+
+      if (listenerThatMustAnswer!=null && listener.equals(listenerThatMustAnswer))
+      {
+       synchronized (answer) {answer[0]=tmpRes;}
+      }
+     }
+     catch (Throwable tr)
+     {
+      synchronized (answer) {if (failure[0]==null) failure[0]=tr;}
+      throw tr;
+     }
+     finally
+     {
+      if (missing.decrementAndGet()==0)
+      {
+       synchronized (answer)
+       {
+        if (failure[0]!=null) res.completeExceptionally(failure[0]);
+        else res.complete(answer[0]);
+       }
+      }
+     }
+    });
+   }
+  }
+
+  return res;
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ // the listeners that have been fired and are still referenced, the slowest (by total time) first
+ public List<ListenerStats> getListenersStats()
+ {
+  ArrayList<ListenerStats> res=new ArrayList<>();
+
+  synchronized (mailboxes)
+  {
+   for (Mailbox mb : mailboxes.values())
+   {
+    if (mb.stats.getListener()!=null) res.add(mb.stats);
+   }
+  }
+
+  res.sort((s1, s2) -> Long.compare(s2.getTotalNanos(), s1.getTotalNanos()));
+  return res;
+ }
+
+
+ // null if listener has never been fired by this dispatcher
+ public ListenerStats getListenerStats(EventListener listener)
+ {
+  synchronized (mailboxes)
+  {
+   Mailbox mb=mailboxes.get(listener);
+   return ((mb!=null)?mb.stats:null);
+  }
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ private Mailbox mailboxOf(EventListener listener)
+ {
+  synchronized (mailboxes)
+  {
+   Mailbox res=mailboxes.get(listener);
+
+   if (res==null)
+   {
+    res=new Mailbox(listener);
+    mailboxes.put(listener, res);
+   }
+
+   return res;
+  }
+ }
+
+
+ // =============================================================================
+
+
+ // the queue of a listener, drained by one thread at a time
+ private class Mailbox implements Runnable
+ {
+  final ConcurrentLinkedQueue<Runnable> queue=new ConcurrentLinkedQueue<>();
+  final AtomicInteger pending=new AtomicInteger(0);
+  final ListenerStats stats;
+
+
+  Mailbox(EventListener listener)
+  {
+   stats=new ListenerStats(listener, pending);
+  }
+
+
+  void enqueue(Runnable task)
+  {
+   queue.add(task);
+   if (pending.getAndIncrement()==0) executor.execute(this);
+  }
+
+
+  public void run()
+  {
+   for (int n=1;;n++)
+   {
+    Runnable task=queue.poll();
+    long start=System.nanoTime();
+    boolean failed=true;
+
+    try
+    {
+     task.run();
+     failed=false;
+    }
+    catch (Throwable tr)
+    {
+     System.err.println("EXCEPTION WHILE FIRING EVENT IN AsyncListenersDispatcher:");
+     systemErrDeepCauseStackTrace(tr);
+    }
+
+    stats.add(System.nanoTime()-start, failed);
+
+    if (pending.decrementAndGet()==0) return;
+
+    if (n==batchSize)
+    {
+     // more events are queued, the others get a chance to run first
+     executor.execute(this);
+     return;
+    }
+   }
+  }
+ }
+
+
+ // =============================================================================
+
+
+ public static class ListenerStats
+ {
+  private final WeakReference<EventListener> listener;
+  private final AtomicInteger pending;
+  private final AtomicLong handled=new AtomicLong(0);
+  private final AtomicLong failed=new AtomicLong(0);
+  private final AtomicLong totalNanos=new AtomicLong(0);
+  private volatile long maxNanos=0;
+
+
+  ListenerStats(EventListener listener, AtomicInteger pending)
+  {
+   this.listener=new WeakReference<>(listener);
+   this.pending=pending;
+  }
+
+
+  // only the thread draining the mailbox writes here
+  void add(long nanos, boolean failed)
+  {
+   handled.incrementAndGet();
+   if (failed) this.failed.incrementAndGet();
+   totalNanos.addAndGet(nanos);
+   if (nanos>maxNanos) maxNanos=nanos;
+  }
+
+
+  // null once collected
+  public EventListener getListener()
+  {
+   return listener.get();
+  }
+
+  // the events handled, including the ones that threw
+  public long getHandledCount()
+  {
+   return handled.get();
+  }
+
+  public long getFailedCount()
+  {
+   return failed.get();
+  }
+
+  // the events queued or being handled
+  public int getPendingCount()
+  {
+   return pending.get();
+  }
+
+  public long getTotalNanos()
+  {
+   return totalNanos.get();
+  }
+
+  public long getAverageNanos()
+  {
+   long h=handled.get();
+   return ((h>0)?totalNanos.get()/h:0);
+  }
+
+  public long getMaxNanos()
+  {
+   return maxNanos;
+  }
+
+  public String toString()
+  {
+   return getListener()+": handled="+getHandledCount()+" failed="+getFailedCount()+" pending="+getPendingCount()+
+    " avg="+getAverageNanos()/1000+"us max="+getMaxNanos()/1000+"us";
+  }
+ }
+
+
+}
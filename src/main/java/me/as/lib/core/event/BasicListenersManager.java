@@ -18,6 +18,7 @@ package me.as.lib.core.event;
 
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 import static me.as.lib.core.lang.ExceptionExtras.systemErrDeepCauseStackTrace;
 
@@ -49,6 +50,7 @@ import static me.as.lib.core.lang.ExceptionExtras.systemErrDeepCauseStackTrace;
 public class BasicListenersManager<L extends EventListener, E extends EventObject>
 {
  protected LinkedList<L> listeners=new LinkedList<>();
+ protected volatile AsyncListenersDispatcher asyncDispatcher=null;
 
  public synchronized void addListener(L listener)
  {
@@ -95,6 +97,41 @@ public class BasicListenersManager<L extends EventListener, E extends EventObjec
  }
 
 
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ // with a dispatcher foreachListener(Firer, E) queues the event and returns at once, null fires on the caller thread again
+ public void setAsyncDispatcher(AsyncListenersDispatcher dispatcher)
+ {
+  asyncDispatcher=dispatcher;
+ }
+
+ public AsyncListenersDispatcher getAsyncDispatcher()
+ {
+  return asyncDispatcher;
+ }
+
+
+ // returns the count of the listeners the event has been queued for
+ public int foreachListenerAsync(Firer<L, E> firer, E event)
+ {
+  return asyncDispatcher().fire(getListenersArray(), firer, event);
+ }
+
+ // completes with the answer from listenerThatMustAnswer once all the listeners have handled param
+ public CompletableFuture<Object> foreachListenerAsync(AnsweredFirer firer, EventObject param, L listenerThatMustAnswer)
+ {
+  return asyncDispatcher().fire(getListenersArray(), firer, param, listenerThatMustAnswer);
+ }
+
+ private AsyncListenersDispatcher asyncDispatcher()
+ {
+  AsyncListenersDispatcher res=asyncDispatcher;
+  return ((res!=null)?res:AsyncListenersDispatcher.getDefault());
+ }
+
+
+
 
 
 
@@ -102,16 +139,19 @@ public class BasicListenersManager<L extends EventListener, E extends EventObjec
  // returns the same number that getListenersCount() would
  public int foreachListener(Firer<L, E> firer, E event)
  {
-  LinkedList<L> al;
+  AsyncListenersDispatcher dispatcher=asyncDispatcher;
+  if (dispatcher!=null) return dispatcher.fire(getListenersArray(), firer, event);
+
+  Object al[];
 
   synchronized (this)
   {
    // we need a copy because a listener could remove from
    // the list during the hanfling of the event!
-   al=(LinkedList<L>)listeners.clone();
+   al=listeners.toArray();
   }
 
-  int t, len=al.size();
+  int t, len=al.length;
 
   if (len>0)
   {
@@ -119,7 +159,7 @@ public class BasicListenersManager<L extends EventListener, E extends EventObjec
    {
     try
     {
-     firer.foreachAction((L)al.get(t), event);
+     firer.foreachAction((L)al[t], event);
     }
     catch (Throwable tr)
     {
@@ -135,17 +175,17 @@ public class BasicListenersManager<L extends EventListener, E extends EventObjec
  // returns the answer from listenerThatMustAnswer
  public Object foreachListener(AnsweredFirer firer, EventObject param, L listenerThatMustAnswer)
  {
-  LinkedList al;
+  Object al[];
 
   synchronized (this)
   {
    // we need a copy because a listener could remove from
    // the list during the hanfling of the event!
-   al=(LinkedList)listeners.clone();
+   al=listeners.toArray();
   }
 
   Object res=null;
-  int t, len=al.size();
+  int t, len=al.length;
 
   if (len>0)
   {
@@ -154,7 +194,7 @@ public class BasicListenersManager<L extends EventListener, E extends EventObjec
 
    for (t=0;t<len;t++)
    {
-    currentFiredListener=(L)al.get(t);
+    currentFiredListener=(L)al[t];
     tmpRes=firer.foreachAction(currentFiredListener, param);
     if (listenerThatMustAnswer!=null && currentFiredListener.equals(listenerThatMustAnswer))
     {
@@ -17,12 +17,19 @@
 package me.as.lib.core.event;
 
 
-import me.as.lib.core.collection.Fifo;
-
 import java.util.*;
 import javax.swing.*;
 
 
+/**
+ * Delivers the events posted to it to its listeners, one at a time in the order they have
+ * been posted, on the thread that runs loop() or on the Swing event dispatch thread.
+ *
+ * An event with a coalescing key (see EventDrivenContextEvent.setCoalescingKey) supersedes
+ * the one with the same key still waiting, that is dropped: a producer that posts a burst of
+ * updates of the same thing gets only the last one delivered. On the Swing event queue all
+ * the waiting events are worked by one scheduled run, not one invokeLater for every event.
+ */
 public class EventDrivenContext
 {
  private static final int NO_LOOPING     = 0;
@@ -33,8 +40,16 @@ public class EventDrivenContext
 
  private boolean isAlreadyInLoop=false;
  private boolean loopMustGoOn;
- private int typeOfLoop=NO_LOOPING;
- private Fifo eventsFifo=new Fifo();
+ private volatile int typeOfLoop=NO_LOOPING;
+
+ private final Object eventsLock=new Object();
+ // guarded by eventsLock
+ private final ArrayDeque<QueuedEvent> eventsQueue=new ArrayDeque<>();
+ private final HashMap<Object, QueuedEvent> coalescingEvents=new HashMap<>();
+ private boolean drainScheduled=false;
+ // true while drainEvents takes the events from the queue, not while a listener works one
+ private boolean draining=false;
+ private long coalescedCount=0;
 
 
  public synchronized void loopOnSwingEventQueue()
@@ -104,22 +119,138 @@ public class EventDrivenContext
  }
 
 
+ // the events dropped because superseded by a later one with the same coalescing key
+ public long getCoalescedEventsCount()
+ {
+  synchronized (eventsLock)
+  {
+   return coalescedCount;
+  }
+ }
+
+
  private void eventsFifoPut(EventDrivenContextEvent e)
  {
-  eventsFifo.put(e);
+  boolean drainNow=false;
+
+  synchronized (eventsLock)
+  {
+   QueuedEvent qe=new QueuedEvent(e);
+
+   if (qe.coalescingKey!=null)
+   {
+    QueuedEvent superseded=coalescingEvents.put(qe.coalescingKey, qe);
+
+    if (superseded!=null)
+    {
+     superseded.event=null;
+     coalescedCount++;
+    }
+   }
+
+   eventsQueue.add(qe);
+   eventsLock.notifyAll();
+
+   // while draining the new event is worked by the same run
+   if (typeOfLoop==SWING_LOOPING && !draining)
+   {
+    if (SwingUtilities.isEventDispatchThread()) drainNow=true;
+    else if (!drainScheduled)
+    {
+     drainScheduled=true;
+     SwingUtilities.invokeLater(drainer);
+    }
+   }
+  }
+
+  if (drainNow) drainEvents();
+ }
+
+
+ // null if there are no events and it must not wait
+ private EventDrivenContextEvent pollEvent(boolean waiting)
+ {
+  synchronized (eventsLock)
+  {
+   while (true)
+   {
+    QueuedEvent qe=eventsQueue.poll();
+
+    if (qe!=null)
+    {
+     if (qe.event!=null)
+     {
+      if (qe.coalescingKey!=null) coalescingEvents.remove(qe.coalescingKey);
+      return qe.event;
+     }
+    }
+    else
+    {
+     if (!waiting)
+     {
+      draining=false;
+      return null;
+     }
+
+     try
+     {
+      eventsLock.wait();
+     } catch (InterruptedException ignore) {}
+    }
+   }
+  }
+ }
+
+
+ // on the event dispatch thread, works the events until there are no more
+ private void drainEvents()
+ {
+  synchronized (eventsLock)
+  {
+   drainScheduled=false;
+   if (draining) return;
+   draining=true;
+  }
 
-  if (typeOfLoop==SWING_LOOPING)
+  try
+  {
+   EventDrivenContextEvent e;
+
+   while (typeOfLoop==SWING_LOOPING && (e=pollEvent(false))!=null)
+   {
+    // a listener may pump the event queue (a modal dialog): while it runs this is not draining,
+    // so what is posted meanwhile schedules (or, on this thread, works) its own drain
+    synchronized (eventsLock)
+    {
+     draining=false;
+    }
+
+    workEvent(e);
+
+    synchronized (eventsLock)
+    {
+     draining=true;
+    }
+   }
+  }
+  finally
   {
-   if (SwingUtilities.isEventDispatchThread()) peekAndWorkEvent();
-   else SwingUtilities.invokeLater(peeker);
+   synchronized (eventsLock)
+   {
+    draining=false;
+   }
   }
  }
 
 
  private void peekAndWorkEvent()
  {
-  EventDrivenContextEvent nextEvent=(EventDrivenContextEvent)eventsFifo.getWaiting();
+  workEvent(pollEvent(true));
+ }
 
+
+ private void workEvent(EventDrivenContextEvent nextEvent)
+ {
   switch (nextEvent.getID())
   {
    case EventDrivenContextEvent.EDCE_EXIT_LOOP:
@@ -136,15 +267,29 @@ public class EventDrivenContext
  }
 
 
- Runnable peeker=new Runnable()
+ Runnable drainer=new Runnable()
  {
   public void run()
   {
-   peekAndWorkEvent();
+   drainEvents();
   }
  };
 
 
+ // the slot of a posted event, emptied when a later one with the same key supersedes it
+ private static class QueuedEvent
+ {
+  final Object coalescingKey;
+  EventDrivenContextEvent event;
+
+  QueuedEvent(EventDrivenContextEvent event)
+  {
+   this.event=event;
+   coalescingKey=event.getCoalescingKey();
+  }
+ }
+
+
 
  // Listeners management
 
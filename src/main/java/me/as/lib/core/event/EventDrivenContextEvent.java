@@ -26,6 +26,7 @@ public class EventDrivenContextEvent extends EventWithObject
 
  // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
  protected EventDrivenContext context;
+ protected Object coalescingKey=null;
 
 
  public EventDrivenContextEvent(EventDrivenContext context, int eventId)
@@ -50,6 +51,21 @@ public class EventDrivenContextEvent extends EventWithObject
  }
 
 
+ /**
+  * When not null, posting this event to the context drops the event with the same key
+  * (by equals) that is still waiting to be delivered.
+  */
+ public Object getCoalescingKey()
+ {
+  return coalescingKey;
+ }
+
+ public void setCoalescingKey(Object coalescingKey)
+ {
+  this.coalescingKey=coalescingKey;
+ }
+
+
 
  public EventDrivenContextExecutorRequest getEventDrivenContextExecutorRequest()
  {
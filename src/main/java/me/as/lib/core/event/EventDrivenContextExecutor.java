@@ -17,29 +17,72 @@
 package me.as.lib.core.event;
 
 
-import me.as.lib.core.collection.Fifo;
-import me.as.lib.core.collection.Lifo;
-
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
+/**
+ * Handles the requests forwarded to it on its own worker threads. The requests of the same
+ * request group are handled one at a time in the order they have been forwarded.
+ *
+ * With one worker (the default) the next request handled is the oldest one of the group of
+ * the latest request forwarded, as it has always been. With more than one worker different
+ * groups are handled in parallel and served in turn instead (first come, first served), each
+ * worker taking one request of a group and putting the group back at the end of the line if
+ * it has more.
+ *
+ * A group that has had nothing to do for groupIdleMillis is forgotten, together with its
+ * statistics (see getGroupsStats).
+ */
 public abstract class EventDrivenContextExecutor
 {
- private static final EventDrivenContextExecutorRequest endRequest=new EventDrivenContextExecutorRequest(null, 0, null);
+ private static final AtomicInteger threadsCount=new AtomicInteger(0);
+
+ private static final long defaultGroupIdleMillis=60000;
 
  // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
 
- private Lifo requestGroupsRequests=new Lifo();
- private HashMap requestGroups=new HashMap();
+ private final int workersCount;
+ private final long groupIdleMillis;
+
+ // the groups with requests and no worker handling them, in the order they will be served;
+ // with one worker a group is pushed in front once for every request forwarded
+ private ArrayDeque<Group> readyGroups=new ArrayDeque<>();
+ private HashMap<Object, Group> requestGroups=new HashMap<>();
+ private long lastReclaimMillis=System.currentTimeMillis();
+ private int runningWorkers=0;
  private boolean mustGoOn=true;
 
 
 
  public EventDrivenContextExecutor()
  {
+  this(1);
+ }
+
+
+ public EventDrivenContextExecutor(int workersCount)
+ {
+  this(workersCount, defaultGroupIdleMillis);
+ }
+
+
+ public EventDrivenContextExecutor(int workersCount, long groupIdleMillis)
+ {
+  if (workersCount<1) throw new IllegalArgumentException("Invalid workers count: "+workersCount);
+
+  this.workersCount=workersCount;
+  this.groupIdleMillis=groupIdleMillis;
   start();
  }
 
+
+ public int getWorkersCount()
+ {
+  return workersCount;
+ }
+
+
  public synchronized void forwardRequest(EventDrivenContextExecutorRequest r)
  {
   forwardRequest(r, null);
@@ -47,77 +90,146 @@ public abstract class EventDrivenContextExecutor
 
  public synchronized void forwardRequest(EventDrivenContextExecutorRequest r, Object requestGroup)
  {
+  if (requestGroups==null) return;
   if (requestGroup==null) requestGroup=this;
-  Fifo theRightFifo=(Fifo)requestGroups.get(requestGroup);
 
-  if (theRightFifo==null)
+  long now=System.currentTimeMillis();
+  if (now-lastReclaimMillis>groupIdleMillis) reclaimIdleGroups(now);
+
+  Group theRightGroup=requestGroups.get(requestGroup);
+
+  if (theRightGroup==null)
   {
-   theRightFifo=new Fifo();
-   requestGroups.put(requestGroup, theRightFifo);
-   //System.out.println("creata! ("+requestGroup.toString()+")");
+   theRightGroup=new Group(requestGroup);
+   requestGroups.put(requestGroup, theRightGroup);
   }
 
-  theRightFifo.put(r);
-  requestGroupsRequests.put(theRightFifo);
-  //System.out.println("requestGroupsRequests.size()="+requestGroupsRequests.size());
+  theRightGroup.requests.add(r);
+
+  if (workersCount==1)
+  {
+   theRightGroup.busy=true;
+   readyGroups.push(theRightGroup);
+   notify();
+  }
+  else if (!theRightGroup.busy)
+  {
+   theRightGroup.busy=true;
+   readyGroups.add(theRightGroup);
+   notify();
+  }
  }
 
 
 
  protected synchronized void clearAllRequests()
  {
-  requestGroupsRequests=null;
+  readyGroups=null;
   requestGroups=null;
  }
 
 
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ // the groups with something to do, or that have had in the last groupIdleMillis
+ public synchronized List<GroupStats> getGroupsStats()
+ {
+  ArrayList<GroupStats> res=new ArrayList<>();
+
+  if (requestGroups!=null)
+  {
+   for (Group g : requestGroups.values()) res.add(new GroupStats(g));
+  }
+
+  return res;
+ }
+
+
+ // null if requestGroup is unknown (null for the default group)
+ public synchronized GroupStats getGroupStats(Object requestGroup)
+ {
+  if (requestGroups==null) return null;
+  Group g=requestGroups.get((requestGroup!=null)?requestGroup:this);
+  return ((g!=null)?new GroupStats(g):null);
+ }
+
+
+ private void reclaimIdleGroups(long now)
+ {
+  lastReclaimMillis=now;
+  requestGroups.values().removeIf(g -> !g.busy && now-g.lastActiveMillis>groupIdleMillis);
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
 
  private synchronized void start()
  {
-  Thread t=new Thread
-  (
-   new Runnable()
+  runningWorkers=workersCount;
+
+  for (int t=0;t<workersCount;t++)
+  {
+   Thread th=new Thread(this::work, "EventDrivenContextExecutor_"+threadsCount.incrementAndGet());
+   th.start();
+  }
+ }
+
+
+ private void work()
+ {
+  Group theRightGroup=null;
+  long handlingNanos=0;
+
+  while (true)
+  {
+   EventDrivenContextExecutorRequest r;
+
+   synchronized (this)
    {
-    public void run()
+    if (theRightGroup!=null)
     {
-     Fifo theRightFifo;
-     EventDrivenContextExecutorRequest r;
+     // the request taken from it has been handled
+     theRightGroup.handled(handlingNanos);
+
+     if (theRightGroup.requests.isEmpty()) theRightGroup.busy=false;
+     else if (workersCount>1 && readyGroups!=null) readyGroups.add(theRightGroup);
 
-     while (mustGoOn)
+     theRightGroup=null;
+    }
+
+    while (mustGoOn && readyGroups.isEmpty())
+    {
+     try
      {
-      theRightFifo=(Fifo)requestGroupsRequests.getWaiting();
-
-      while (mustGoOn && theRightFifo!=null)
-      {
-       //System.out.println("theRightFifo.size()="+theRightFifo.size());
-
-       r=(EventDrivenContextExecutorRequest)theRightFifo.get();
-       theRightFifo=null;
-
-       if (r!=null)
-       {
-        if (mustGoOn) _internal_handleRequest(r);
-
-
-        /*
-        if (requestGroupsRequests.size()>0)
-        {
-         if (requestGroupsRequests.whoIsTheNext()!=theRightFifo)
-         {
-          theRightFifo=null;
-         }
-        }
-        */
-       } //else theRightFifo=null;
-      }
-     }
-
-     clearAllRequests();
+      wait();
+     } catch (InterruptedException ignore) {}
+    }
+
+    if (!mustGoOn)
+    {
+     if (--runningWorkers==0) clearAllRequests();
+     return;
     }
+
+    theRightGroup=readyGroups.poll();
+    r=theRightGroup.requests.poll();
    }
-  );
 
-  t.start();
+   long start=System.nanoTime();
+
+   try
+   {
+    _internal_handleRequest(r);
+   }
+   catch (Throwable tr)
+   {
+    Thread.currentThread().getUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), tr);
+   }
+
+   handlingNanos=System.nanoTime()-start;
+  }
  }
 
 
@@ -126,7 +238,7 @@ public abstract class EventDrivenContextExecutor
   if (mustGoOn)
   {
    mustGoOn=false;
-   forwardRequest(endRequest);
+   notifyAll();
   }
  }
 
@@ -135,28 +247,120 @@ public abstract class EventDrivenContextExecutor
 
  private void _internal_handleRequest(EventDrivenContextExecutorRequest r)
  {
-  if (r!=endRequest)
-  {
-   handleRequest(r);
-   EventDrivenContext context=r.getContext();
+  handleRequest(r);
+  EventDrivenContext context=r.getContext();
 
-   if (context!=null)
-   {
-    EventDrivenContextEvent e=new EventDrivenContextEvent
-    (
-     this,
-     context,
-     EventDrivenContextEvent.EDCE_REQUEST_WAS_HANDLED,
-     r
-    );
-
-    context.postEvent(e);
-   }
+  if (context!=null)
+  {
+   EventDrivenContextEvent e=new EventDrivenContextEvent
+   (
+    this,
+    context,
+    EventDrivenContextEvent.EDCE_REQUEST_WAS_HANDLED,
+    r
+   );
+
+   context.postEvent(e);
   }
  }
 
  public abstract void handleRequest(EventDrivenContextExecutorRequest r);
 
 
+ // =============================================================================
+
+
+ // guarded by the executor
+ private static class Group
+ {
+  final Object key;
+  final ArrayDeque<EventDrivenContextExecutorRequest> requests=new ArrayDeque<>();
+  // in readyGroups or being handled by a worker
+  boolean busy=false;
+  long lastActiveMillis=System.currentTimeMillis();
+
+  long handledCount=0;
+  long totalNanos=0;
+  long maxNanos=0;
+
+  Group(Object key)
+  {
+   this.key=key;
+  }
+
+  void handled(long nanos)
+  {
+   handledCount++;
+   totalNanos+=nanos;
+   if (nanos>maxNanos) maxNanos=nanos;
+   lastActiveMillis=System.currentTimeMillis();
+  }
+ }
+
+
+ // what a request group looked like when asked for
+ public static class GroupStats
+ {
+  private final Object requestGroup;
+  private final int queueDepth;
+  private final boolean busy;
+  private final long handledCount;
+  private final long totalNanos;
+  private final long maxNanos;
+
+  GroupStats(Group g)
+  {
+   requestGroup=g.key;
+   queueDepth=g.requests.size();
+   busy=g.busy;
+   handledCount=g.handledCount;
+   totalNanos=g.totalNanos;
+   maxNanos=g.maxNanos;
+  }
+
+  // the executor itself for the requests forwarded without a group
+  public Object getRequestGroup()
+  {
+   return requestGroup;
+  }
+
+  // the requests waiting, not counting the one being handled
+  public int getQueueDepth()
+  {
+   return queueDepth;
+  }
+
+  // true if it has requests waiting or being handled
+  public boolean isBusy()
+  {
+   return busy;
+  }
+
+  public long getHandledCount()
+  {
+   return handledCount;
+  }
+
+  public long getTotalNanos()
+  {
+   return totalNanos;
+  }
+
+  public long getAverageNanos()
+  {
+   return ((handledCount>0)?totalNanos/handledCount:0);
+  }
+
+  public long getMaxNanos()
+  {
+   return maxNanos;
+  }
+
+  public String toString()
+  {
+   return requestGroup+": queued="+queueDepth+" handled="+handledCount+" avg="+getAverageNanos()/1000+"us max="+maxNanos/1000+"us";
+  }
+ }
+
 
-}
\ No newline at end of file
+}
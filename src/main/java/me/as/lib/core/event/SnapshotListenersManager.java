@@ -0,0 +1,319 @@
+/*
+ * Copyright 2019 Antonio Sorrentini
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package me.as.lib.core.event;
+
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+import static me.as.lib.core.lang.ExceptionExtras.systemErrDeepCauseStackTrace;
+
+
+/*
+
+ // Listeners management
+
+ protected SnapshotListenersManager<_xxx_Listener, _xxx_Event> listenersManager=new SnapshotListenersManager<>();
+
+ public void add_xxx_Listener(_xxx_Listener listener)
+ {listenersManager.addListener(listener);}
+
+ public void remove_xxx_Listener(_xxx_Listener listener)
+ {listenersManager.removeListener(listener);}
+
+ Firer<_xxx_Listener, _xxx_Event> firer=(listener, event) -> listener._Xxx_EventOccurred(event);
+
+ public void fire_xxx_EventOccurred(_xxx_Event e)
+ {listenersManager.foreachListener(firer, e);}
+
+ // END - Listeners management
+
+*/
+
+
+/**
+ * A listeners manager for events fired far more often than listeners come and go.
+ * The listeners are kept in an array that is never modified: addListener and removeListener
+ * build a new one and swap it in, so firing takes no lock and allocates nothing, it just loops
+ * over the array it found (a listener removed while an event is being fired still gets that
+ * event, like with BasicListenersManager).
+ *
+ * Built with weak=true it holds the listeners like WeakReferenceListenersManager does: the
+ * references of the collected ones are enqueued by the garbage collector and dropped by the
+ * next call that finds something in the queue, with no periodic scans.
+ */
+public class SnapshotListenersManager<L extends EventListener, E extends EventObject>
+{
+ private static final Object noListeners[]=new Object[0];
+
+ private final boolean weak;
+ private final ReferenceQueue<L> collected;
+
+ // the listeners, or their WeakReference when weak, replaced as a whole
+ private volatile Object snapshot[]=noListeners;
+ private volatile AsyncListenersDispatcher asyncDispatcher=null;
+
+
+ public SnapshotListenersManager()
+ {
+  this(false);
+ }
+
+
+ public SnapshotListenersManager(boolean weak)
+ {
+  this.weak=weak;
+  collected=((weak)?new ReferenceQueue<>():null);
+ }
+
+
+ public boolean isWeak()
+ {
+  return weak;
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ public synchronized void addListener(L listener)
+ {
+  if (listener==null) throw new NullPointerException("listener");
+
+  purgeCollected();
+
+  Object current[]=snapshot;
+
+  if (indexOf(current, listener)<0)
+  {
+   Object res[]=Arrays.copyOf(current, current.length+1);
+   res[current.length]=((weak)?new WeakReference<>(listener, collected):listener);
+   snapshot=res;
+  }
+ }
+
+
+ public synchronized void removeListener(EventListener listener)
+ {
+  purgeCollected();
+
+  Object current[]=snapshot;
+  int index=indexOf(current, listener);
+
+  if (index>=0)
+  {
+   if (current.length==1) snapshot=noListeners;
+   else
+   {
+    Object res[]=new Object[current.length-1];
+    System.arraycopy(current, 0, res, 0, index);
+    System.arraycopy(current, index+1, res, index, res.length-index);
+    snapshot=res;
+   }
+  }
+ }
+
+
+ public synchronized void removeAllListeners()
+ {
+  snapshot=noListeners;
+  if (weak) while (collected.poll()!=null);
+ }
+
+
+ public boolean areThereListeners()
+ {
+  return (getListenersCount()>0);
+ }
+
+
+ // when weak it may count listeners collected but not yet enqueued
+ public int getListenersCount()
+ {
+  if (weak) purgeCollected();
+  return snapshot.length;
+ }
+
+
+ // the listeners at the time of the call, later changes do not affect it
+ public Iterator<L> getListeners()
+ {
+  return getListenersList().iterator();
+ }
+
+
+ public List<L> getListenersList()
+ {
+  Object current[]=snapshot;
+  ArrayList<L> res=new ArrayList<>(current.length);
+
+  for (Object o : current)
+  {
+   L listener=listenerOf(o);
+   if (listener!=null) res.add(listener);
+  }
+
+  return res;
+ }
+
+
+ @SuppressWarnings("unchecked")
+ public L[] getListenersArray()
+ {
+  return (L[])getListenersList().toArray(new EventListener[0]);
+ }
+
+
+ // with a dispatcher foreachListener(Firer, E) queues the event and returns at once, null fires on the caller thread again
+ public void setAsyncDispatcher(AsyncListenersDispatcher dispatcher)
+ {
+  asyncDispatcher=dispatcher;
+ }
+
+ public AsyncListenersDispatcher getAsyncDispatcher()
+ {
+  return asyncDispatcher;
+ }
+
+
+ // returns the count of the listeners the event has been queued for
+ public int foreachListenerAsync(Firer<L, E> firer, E event)
+ {
+  return asyncDispatcher().fire(getListenersArray(), firer, event);
+ }
+
+ // completes with the answer from listenerThatMustAnswer once all the listeners have handled param
+ public CompletableFuture<Object> foreachListenerAsync(AnsweredFirer firer, EventObject param, EventListener listenerThatMustAnswer)
+ {
+  return asyncDispatcher().fire(getListenersArray(), firer, param, listenerThatMustAnswer);
+ }
+
+ private AsyncListenersDispatcher asyncDispatcher()
+ {
+  AsyncListenersDispatcher res=asyncDispatcher;
+  return ((res!=null)?res:AsyncListenersDispatcher.getDefault());
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ // returns the count of the listeners in the snapshot that has been fired
+ public int foreachListener(Firer<L, E> firer, E event)
+ {
+  AsyncListenersDispatcher dispatcher=asyncDispatcher;
+  if (dispatcher!=null) return dispatcher.fire(getListenersArray(), firer, event);
+
+  Object current[]=snapshot;
+  int len=current.length;
+
+  for (int t=0;t<len;t++)
+  {
+   L listener=listenerOf(current[t]);
+
+   if (listener!=null)
+   {
+    try
+    {
+     firer.foreachAction(listener, event);
+    }
+    catch (Throwable tr)
+    {
+     System.err.println("EXCEPTION WHILE FIRING EVENT IN SnapshotListenersManager:");
+     systemErrDeepCauseStackTrace(tr);
+    }
+   }
+  }
+
+  if (weak) purgeCollected();
+
+  return len;
+ }
+
+
+ // returns the answer from listenerThatMustAnswer
+ public Object foreachListener(AnsweredFirer firer, EventObject param, EventListener listenerThatMustAnswer)
+ {
+  Object current[]=snapshot;
+  Object res=null;
+  int len=current.length;
+
+  for (int t=0;t<len;t++)
+  {
+   L listener=listenerOf(current[t]);
+
+   if (listener!=null)
+   {
+    Object tmpRes=firer.foreachAction(listener, param);
+    if (listenerThatMustAnswer!=null && listener.equals(listenerThatMustAnswer)) res=tmpRes;
+   }
+  }
+
+  if (weak) purgeCollected();
+
+  return res;
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ @SuppressWarnings("unchecked")
+ private L listenerOf(Object o)
+ {
+  return ((weak)?((WeakReference<L>)o).get():(L)o);
+ }
+
+
+ private int indexOf(Object current[], Object listener)
+ {
+  for (int t=0;t<current.length;t++)
+  {
+   if (Objects.equals(listenerOf(current[t]), listener)) return t;
+  }
+
+  return -1;
+ }
+
+
+ // costs a poll when nothing has been collected
+ private void purgeCollected()
+ {
+  if (weak && collected.poll()!=null)
+  {
+   synchronized (this)
+   {
+    while (collected.poll()!=null);
+
+    Object current[]=snapshot;
+    Object res[]=new Object[current.length];
+    int len=0;
+
+    for (Object o : current)
+    {
+     if (((WeakReference)o).get()!=null) res[len++]=o;
+    }
+
+    if (len<current.length) snapshot=((len==0)?noListeners:Arrays.copyOf(res, len));
+   }
+  }
+ }
+
+
+}
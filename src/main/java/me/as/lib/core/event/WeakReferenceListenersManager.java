@@ -20,6 +20,7 @@ package me.as.lib.core.event;
 import me.as.lib.core.lang.SmartWeakReference;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 import static me.as.lib.core.lang.ExceptionExtras.systemErrDeepCauseStackTrace;
 
@@ -54,6 +55,7 @@ public class WeakReferenceListenersManager<L extends EventListener>
 
  private long lastPurgeMillis=0;
  private ArrayList<SmartWeakReference<L>> listeners=new ArrayList<>();
+ private volatile AsyncListenersDispatcher asyncDispatcher=null;
 
 
  private synchronized void purgeZombies(boolean force)
@@ -173,6 +175,39 @@ public class WeakReferenceListenersManager<L extends EventListener>
  }
 
 
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ // with a dispatcher foreachListener(Firer, Object) queues the event and returns at once, null fires on the caller thread again
+ public void setAsyncDispatcher(AsyncListenersDispatcher dispatcher)
+ {
+  asyncDispatcher=dispatcher;
+ }
+
+ public AsyncListenersDispatcher getAsyncDispatcher()
+ {
+  return asyncDispatcher;
+ }
+
+
+ // returns the count of the listeners the event has been queued for
+ public int foreachListenerAsync(Firer firer, Object param)
+ {
+  return asyncDispatcher().fire(getListenersArrayList().toArray(new EventListener[0]), firer, param);
+ }
+
+ // completes with the answer from listenerThatMustAnswer once all the listeners have handled param
+ public CompletableFuture<Object> foreachListenerAsync(AnsweredFirer firer, EventObject param, EventListener listenerThatMustAnswer)
+ {
+  return asyncDispatcher().fire(getListenersArrayList().toArray(new EventListener[0]), firer, param, listenerThatMustAnswer);
+ }
+
+ private AsyncListenersDispatcher asyncDispatcher()
+ {
+  AsyncListenersDispatcher res=asyncDispatcher;
+  return ((res!=null)?res:AsyncListenersDispatcher.getDefault());
+ }
+
 
 
 
@@ -180,6 +215,9 @@ public class WeakReferenceListenersManager<L extends EventListener>
  // returns the same number that getListenersCount() would
  public int foreachListener(Firer firer, Object param)
  {
+  AsyncListenersDispatcher dispatcher=asyncDispatcher;
+  if (dispatcher!=null) return dispatcher.fire(getListenersArrayList().toArray(new EventListener[0]), firer, param);
+
   ArrayList<SmartWeakReference<L>> cloned;
 
   synchronized (this)
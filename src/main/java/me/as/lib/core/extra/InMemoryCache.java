@@ -207,7 +207,7 @@ public class InMemoryCache<E>
     i++;
    }
 
-   sorter.sort(toBeSorted, keys);
+   SortExtras.permute(SortExtras.order(toBeSorted, false), keys);
 
    for (i=0;i<pruneAmount;i++)
    {
@@ -218,61 +218,4 @@ public class InMemoryCache<E>
  }
 
 
- private Sorter sorter=new Sorter();
- private QuickSort quickSorter=new QuickSort();
-
- class Sorter implements QSortable
- {
-  long milliss[];
-  String keys[];
-
-  long mid;
-
-
-  void sort(long milliss[], String keys[])
-  {
-   this.milliss=milliss;
-   this.keys=keys;
-   quickSorter.sort(this, 0, milliss.length-1, null);
-  }
-
-
-  public void setMid(int mididx, Object params)
-  {
-   mid=milliss[mididx];
-  }
-
-
-  // must return:
-  // <0 if elem1<mid
-  // 0 if elem1==mid
-  // >0 if elem1>mid
-  public int compareToMid(int elem1, Object params)
-  {
-   if (milliss[elem1]<mid) return -1;
-   if (milliss[elem1]>mid) return  1;
-   return 0;
-  }
-
-
-  public boolean swap(int elem1, int elem2, Object params)
-  {
-   long lswap=milliss[elem1];
-   String sswap=keys[elem1];
-
-   milliss[elem1]=milliss[elem2];
-   keys[elem1]=keys[elem2];
-
-   milliss[elem2]=lswap;
-   keys[elem2]=sswap;
-
-   return true;
-  }
-
- };
-
-
-
-
-
 }
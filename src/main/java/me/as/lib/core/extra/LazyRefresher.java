@@ -17,13 +17,27 @@
 package me.as.lib.core.extra;
 
 
-import me.as.lib.core.collection.SimpleWeakList;
-import me.as.lib.core.concurrent.ThreadExtras;
-import me.as.lib.core.lang.ArrayExtras;
+import me.as.lib.core.concurrent.TimerWheel;
 
 import javax.swing.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
+/**
+ * Calls refresh() some time after needRefresh() has been called: when needRefresh() has
+ * not been called again for millis, or right away if the last refresh is older than millis
+ * and it is reactive, or anyway when the first needRefresh() not yet served is older than
+ * maxLatency (if not -1).
+ *
+ * Every LazyRefresher that needs a refresh has a timeout on a shared timer wheel, set at the
+ * earliest time the refresh could be due: a needRefresh() that does not bring it forward
+ * costs nothing more, and when the timeout expires the refresher checks again and sets it
+ * later if needRefresh() has been called meanwhile. The checks and the refreshes run on a
+ * small pool of daemon threads, the refreshes of the same LazyRefresher one at a time.
+ */
 public abstract class LazyRefresher
 {
  private long millis;
@@ -40,6 +54,12 @@ public abstract class LazyRefresher
  private long maxLatency=-1;
  private boolean callOnAwtEventDispatchThread=false;
 
+ // guarded by this
+ private TimerWheel.Timeout timeout=null;
+ private long timeoutDueMillis;
+ private boolean checking=false;
+ private boolean disposed=false;
+
 
  public LazyRefresher()
  {
@@ -57,7 +77,6 @@ public abstract class LazyRefresher
  {
   setLazynessMillis(millis);
   lastRefreshedMillis=System.currentTimeMillis();
-  registerLazyRefresher(this);
   setMaxLatency(maxLatency);
  }
 
@@ -87,28 +106,37 @@ public abstract class LazyRefresher
 // lazyUpdater.setMaxLatency(def_lazyUpdaterMaxLatency);
 // public void dispose()
 
- public long getMaxLatency()
+ public synchronized long getMaxLatency()
  {
   return maxLatency;
  }
 
 
- public void setMaxLatency(long maxLatency)
+ public synchronized void setMaxLatency(long maxLatency)
  {
   this.maxLatency=maxLatency;
+  schedule();
  }
 
 
 
- public void dispose()
+ // no more refreshes from the timer, refreshImmediately() and setBusy(false) still refresh
+ public synchronized void dispose()
  {
-  unregisterLazyRefresher(this);
+  disposed=true;
+
+  if (timeout!=null)
+  {
+   timeout.cancel();
+   timeout=null;
+  }
  }
 
 
  public synchronized void setLazynessMillis(long millis)
  {
   this.millis=millis;
+  schedule();
  }
 
  public synchronized long getLazynessMillis()
@@ -135,6 +163,7 @@ public abstract class LazyRefresher
  {
   lastNeedRefreshMillis=System.currentTimeMillis();
   if (firstNeedRefreshMillis==-1) firstNeedRefreshMillis=lastNeedRefreshMillis;
+  schedule();
  }
 
 
@@ -276,134 +305,102 @@ public abstract class LazyRefresher
  protected abstract void refresh();
 
  // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
- private static LazyRefresherSupportThread lrst=null;
-// private static long lastSleepAmount=-1;
 
- private static void registerLazyRefresher(LazyRefresher lr)
+
+ // the earliest time the refresh needed could be due, under the monitor
+ private long dueMillis()
  {
-  synchronized (LazyRefresher.class)
-  {
-   if (lrst==null) lrst=new LazyRefresherSupportThread();
-   lrst.register(lr);
-  }
+  long res=lastNeedRefreshMillis+millis+1;
+
+  if (reactive) res=Math.min(res, lastRefreshedMillis+millis+1);
+  if (maxLatency!=-1 && firstNeedRefreshMillis!=-1) res=Math.min(res, firstNeedRefreshMillis+maxLatency+1);
+
+  return res;
  }
 
- private static void unregisterLazyRefresher(LazyRefresher lr)
+
+ // sets the timeout if a refresh is needed and it would come too late, under the monitor
+ // (when busy with a refresh pending, setBusy(false) does it)
+ private void schedule()
  {
-  synchronized (LazyRefresher.class)
+  if (!disposed && !checking && !refreshAgain && lastNeedRefreshMillis!=-1)
   {
-   if (lrst==null) lrst=new LazyRefresherSupportThread();
-   lrst.unregister(lr);
+   long due=dueMillis();
+
+   if (timeout==null || due<timeoutDueMillis)
+   {
+    if (timeout!=null) timeout.cancel();
+    timeoutDueMillis=due;
+    timeout=getWheel().schedule(due-System.currentTimeMillis(), this::check);
+   }
   }
  }
 
 
-
-
- static class LazyRefresherSupportThread implements Runnable
+ // when the timeout expires, on the pool
+ private void check()
  {
-  SimpleWeakList lazyRefreshers=new SimpleWeakList();
+  long lnrm;
 
-  LazyRefresherSupportThread()
+  synchronized (this)
   {
-   Thread t=new Thread(this, "LazyRefresherSupportThread");
-   t.setDaemon(true);
-   t.start();
-  }
+   if (checking || timeout==null) return;
 
-  public void register(LazyRefresher lr)
-  {
-   if (lazyRefreshers.contains(lr))
-   {
-    throw new RuntimeException("Cannot register more than one time the same LazyRefresher instance!");
-   }
-   else
+   timeout=null;
+   lnrm=lastNeedRefreshMillis;
+
+   if (disposed || lnrm==-1) return;
+
+   if (dueMillis()>System.currentTimeMillis())
    {
-//    lastSleepAmount=-1;
-    lazyRefreshers.add(lr);
+    // needRefresh() has been called again meanwhile
+    schedule();
+    return;
    }
+
+   checking=true;
   }
 
-  public void unregister(LazyRefresher lr)
+  try
   {
-   if (lazyRefreshers.contains(lr))
-   {
-    lazyRefreshers.remove(lr);
-   }
+   goDoRefresh(lnrm);
   }
-
-
-
-  public void run()
+  finally
   {
-   while (true)
+   synchronized (this)
    {
-    ThreadExtras.sleep(checkLazyRefresher());
+    checking=false;
+    schedule();
    }
   }
+ }
 
 
-  private long checkLazyRefresher()
-  {
-//   if (lastSleepAmount==-1)
-//   {
-    long res=1000;
-    long millidiff, lazym, lnrm, currentMillis=System.currentTimeMillis();
-    Object lazyes[];
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
 
-    synchronized (LazyRefresher.class)
-    {
-     lazyes=lazyRefreshers.elements();
-    }
 
-    LazyRefresher lr;
-    int t, len=ArrayExtras.length(lazyes);
+ private static final AtomicInteger threadsCount=new AtomicInteger(0);
+ private static TimerWheel wheel=null;
 
-    for (t=0;t<len;t++)
-    {
-     lr=(LazyRefresher)lazyes[t];
-     lnrm=lr.getLastNeedRefreshMillis();
-     lazym=lr.getLazynessMillis();
-
-     if (res>lazym) res=lazym;
-
-     if (lnrm>-1)
-     {
-      millidiff=lazym-(currentMillis-lnrm);
-
-      boolean b0=millidiff<0;
-      boolean b1=currentMillis-lr.lastRefreshedMillis>lazym && lr.reactive;
-      boolean b1b=currentMillis-lnrm>lazym;
-      boolean b011b=b0 || b1 || b1b;
-      boolean b2=lr.maxLatency!=-1;
-      boolean b3=lr.firstNeedRefreshMillis!=-1;
-      boolean b4=currentMillis-lr.firstNeedRefreshMillis>lr.maxLatency;
-      boolean b234=b2 && b3 && b4;
-      boolean finalB=b011b || b234;
-
-//      if (millidiff<0)
-//      if ((millidiff<0 || currentMillis-lr.lastRefreshedMillis>lazym) ||
-//          (lr.maxLatency!=-1 && lr.firstNeedRefreshMillis!=-1 && currentMillis-lr.firstNeedRefreshMillis>lr.maxLatency))
-      if (finalB)
-      {
-       lr.goDoRefresh(lnrm);
-      }
-      else
-      {
-       if (res>millidiff) res=millidiff;
-      }
-     }
-    }
 
-//    lastSleepAmount=res;
-//   }
+ private static synchronized TimerWheel getWheel()
+ {
+  if (wheel==null)
+  {
+   int threads=Math.max(2, Runtime.getRuntime().availableProcessors());
 
-//   System.out.println("checkLazyRefresher: "+res);
+   ThreadPoolExecutor pool=new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r ->
+   {
+    Thread th=new Thread(r, "LazyRefresher_"+threadsCount.incrementAndGet());
+    th.setDaemon(true);
+    return th;
+   });
 
-//   return lastSleepAmount;
-   return res;
+   pool.allowCoreThreadTimeOut(true);
+   wheel=new TimerWheel("LazyRefresherWheel", true, 10, pool);
   }
 
+  return wheel;
  }
 
 
@@ -35,11 +35,8 @@ public class QuickSort implements QSortable
  {
   this.a=a;
   this.DESC=DESC;
-  object=this;
-  params=null;
 
-  sort(init, end);
-  clear();
+  if (end>init) SortExtras.sort(a, init, end+1, DESC);
  }
 
  public QuickSort(QSortable object, int init, int end, Object params)
@@ -130,48 +127,10 @@ public class QuickSort implements QSortable
  */
 
 
+ // an introsort through the same QSortable callbacks, see SortExtras
  public void sort(int lo0, int hi0)
  {
-  int lo = lo0;
-  int hi = hi0;
-
-  if (hi0>lo0)
-  {
-   // Arbitrarily establishing partition element in the midpoint of the array.
-   object.setMid(((lo0+hi0)/2), params);
-
-   // loop through the array until indices cross
-   while (lo<=hi)
-   {
-    // find the first element that is greater than or equal to
-    // the partition element starting from the left Index.
-
-    while (lo<hi0 && object.compareToMid(lo, params)<0) ++lo;
-
-    // find an element that is smaller than or equal to
-    // the partition element starting from the right Index.
-
-    while (hi>lo0 && object.compareToMid(hi, params)>0) --hi;
-
-    // if the indexes have not crossed, swap
-    if (lo<=hi)
-    {
-     object.swap(lo, hi, params);
-     ++lo;
-     --hi;
-    }
-   }
-
-   // If the right index has not reached the left side of array
-   // must now sort the left partition.
-
-   if (lo0<hi) sort(lo0, hi);
-
-   // If the left index has not reached the right side of array
-   // must now sort the right partition.
-
-   if (lo<hi0) sort(lo, hi0);
-  }
+  SortExtras.sort(object, lo0, hi0, params);
  }
 
 
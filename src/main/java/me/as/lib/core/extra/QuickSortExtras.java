@@ -26,87 +26,23 @@ import static me.as.lib.core.lang.StringExtras.getFirstEnclosedInteger;
 import static me.as.lib.core.lang.StringExtras.speedStringToDate;
 
 
+/**
+ * The keys of the String sorts (lengths, parsed integers and dates) are computed once per
+ * element and then sorted with SortExtras, not parsed again at every comparison.
+ */
 public class QuickSortExtras
 {
 
  public static double[] sort(final double values[])
  {
-  int len=((values!=null)?values.length:0);
-
-  if (len>0)
-  {
-   new QuickSort(new QSortable()
-   {
-    double mid;
-    public void setMid(int mididx, Object params)
-    {
-     mid=values[mididx];
-    }
-
-    // must return:
-    // <0 if elem1<mid
-    // 0 if elem1==mid
-    // >0 if elem1>mid
-    public int compareToMid(int elem1, Object params)
-    {
-     if (values[elem1]>mid) return  1;
-     if (values[elem1]<mid) return -1;
-
-     return 0;
-    }
-
-
-    public boolean swap(int elem1, int elem2, Object params)
-    {
-     double swap=values[elem1];
-     values[elem1]=values[elem2];
-     values[elem2]=swap;
-     return true;
-    }
-   }, 0, len-1, null);
-  }
-
+  if (values!=null && values.length>1) SortExtras.sort(values);
   return values;
  }
 
 
  public static int[] sort(final int values[])
  {
-  int len=((values!=null)?values.length:0);
-
-  if (len>0)
-  {
-   new QuickSort(new QSortable()
-   {
-    int mid;
-    public void setMid(int mididx, Object params)
-    {
-     mid=values[mididx];
-    }
-
-    // must return:
-    // <0 if elem1<mid
-    // 0 if elem1==mid
-    // >0 if elem1>mid
-    public int compareToMid(int elem1, Object params)
-    {
-     if (values[elem1]>mid) return  1;
-     if (values[elem1]<mid) return -1;
-
-     return 0;
-    }
-
-
-    public boolean swap(int elem1, int elem2, Object params)
-    {
-     int swap=values[elem1];
-     values[elem1]=values[elem2];
-     values[elem2]=swap;
-     return true;
-    }
-   }, 0, len-1, null);
-  }
-
+  if (values!=null && values.length>1) SortExtras.sort(values);
   return values;
  }
 
@@ -119,81 +55,18 @@ public class QuickSortExtras
 
  public static Calendar[] sort(final Calendar times[])
  {
-  int len=ArrayExtras.length(times);
-
-  if (len>1)
-  {
-   new QuickSort(new QSortable()
-   {
-    Calendar mid;
-
-    public void setMid(int mididx, Object params)
-    {
-     mid=times[mididx];
-    }
-
-    // must return:
-    // <0 if elem1<mid
-    // 0 if elem1==mid
-    // >0 if elem1>mid
-    public int compareToMid(int elem1, Object params)
-    {
-     return times[elem1].compareTo(mid);
-    }
-
-    public boolean swap(int elem1, int elem2, Object params)
-    {
-     Calendar tmp=times[elem1];
-     times[elem1]=times[elem2];
-     times[elem2]=tmp;
-     return true;
-    }
-   }, 0, len-1, null);
-  }
-
+  if (ArrayExtras.length(times)>1) SortExtras.sort(times, Comparator.naturalOrder());
   return times;
  }
 
 
  public static String[] sortStringsForLength(String str[], final boolean longerStringsUpper)
  {
-  if (str!=null)
+  if (str!=null && str.length>1)
   {
-   if (str.length>1)
-   {
-    new QuickSort(new QSortable()
-    {
-     String mid;
-
-     public void setMid(int mididx, Object params)
-     {
-      mid=((String[])params)[mididx];
-     }
-
-     // must return:
-     // <0 if elem1<mid
-     // 0 if elem1==mid
-     // >0 if elem1>mid
-     public int compareToMid(int elem1, Object params)
-     {
-      int res=0;
-      String cur=((String[])params)[elem1];
-      int e1Len=StringExtras.length(cur);
-      int midLen=StringExtras.length(mid);
-
-      if (e1Len<midLen) res=-1;
-      else {if (e1Len>midLen) res=1;}
-
-      if (res!=0 && longerStringsUpper) res*=-1;
-      return res;
-     }
-
-     public boolean swap(int elem1, int elem2, Object params)
-     {
-      return swapStrings(elem1, elem2, (String[])params);
-     }
-    }, 0, str.length-1, str);
-   }
+   int keys[]=new int[str.length];
+   for (int t=0;t<str.length;t++) keys[t]=StringExtras.length(str[t]);
+   sortByKeys(str, keys, longerStringsUpper);
   }
 
   return str;
@@ -203,35 +76,14 @@ public class QuickSortExtras
 
  public static String[] sort(String str[], final boolean caseSensitive)
  {
-  if (str!=null)
+  if (str!=null && str.length>1)
   {
-   if (str.length>1)
+   if (caseSensitive) SortExtras.sort(str, Comparator.naturalOrder());
+   else
    {
-    new QuickSort(new QSortable()
-    {
-     String mid;
-
-     public void setMid(int mididx, Object params)
-     {
-      mid=((String[])params)[mididx];
-      if (!caseSensitive) mid=mid.toUpperCase();
-     }
-
-     // must return:
-     // <0 if elem1<mid
-     // 0 if elem1==mid
-     // >0 if elem1>mid
-     public int compareToMid(int elem1, Object params)
-     {
-      String cur=((String[])params)[elem1];
-      return ((caseSensitive)?cur.compareTo(mid):cur.toUpperCase().compareTo(mid));
-     }
-
-     public boolean swap(int elem1, int elem2, Object params)
-     {
-      return swapStrings(elem1, elem2, (String[])params);
-     }
-    }, 0, str.length-1, str);
+    String keys[]=new String[str.length];
+    for (int t=0;t<str.length;t++) keys[t]=str[t].toUpperCase();
+    SortExtras.permute(SortExtras.order(keys, Comparator.naturalOrder()), str);
    }
   }
 
@@ -243,39 +95,11 @@ public class QuickSortExtras
 
  public static String[] sortStrictIntegersInStrings(String[] str)
  {
-  if (str!=null)
+  if (str!=null && str.length>1)
   {
-   if (str.length>1)
-   {
-    new QuickSort(new QSortable()
-    {
-     int mid;
-
-     public void setMid(int mididx, Object params)
-     {
-      mid=Integer.parseInt(((String[])params)[mididx]);
-     }
-
-     // must return:
-     // <0 if elem1<mid
-     // 0 if elem1==mid
-     // >0 if elem1>mid
-     public int compareToMid(int elem1, Object params)
-     {
-      int curr;
-      curr=Integer.parseInt(((String[])params)[elem1]);
-
-      if (curr<mid) return -1;
-      if (curr>mid) return 1;
-      return 0;
-     }
-
-     public boolean swap(int elem1, int elem2, Object params)
-     {
-      return swapStrings(elem1, elem2, (String[])params);
-     }
-    }, 0, str.length-1, str);
-   }
+   int keys[]=new int[str.length];
+   for (int t=0;t<str.length;t++) keys[t]=Integer.parseInt(str[t]);
+   sortByKeys(str, keys, false);
   }
 
   return str;
@@ -286,45 +110,19 @@ public class QuickSortExtras
 
  public static String[] sortIntegersInStrings(String[] str)
  {
-  if (str!=null)
+  if (str!=null && str.length>1)
   {
-   if (str.length>1)
+   int keys[]=new int[str.length];
+
+   for (int t=0;t<str.length;t++)
    {
-    new QuickSort(new QSortable()
+    try
     {
-     int mid;
-
-     public void setMid(int mididx, Object params)
-     {
-      try
-      {
-       mid=Integer.parseInt(((String[])params)[mididx]);
-      } catch (Throwable tr){mid=0;}
-     }
-
-     // must return:
-     // <0 if elem1<mid
-     // 0 if elem1==mid
-     // >0 if elem1>mid
-     public int compareToMid(int elem1, Object params)
-     {
-      int curr;
-      try
-      {
-       curr=Integer.parseInt(((String[])params)[elem1]);
-      } catch (Throwable tr){curr=0;}
-
-      if (curr<mid) return -1;
-      if (curr>mid) return 1;
-      return 0;
-     }
-
-     public boolean swap(int elem1, int elem2, Object params)
-     {
-      return swapStrings(elem1, elem2, (String[])params);
-     }
-    }, 0, str.length-1, str);
+     keys[t]=Integer.parseInt(str[t]);
+    } catch (Throwable tr){keys[t]=0;}
    }
+
+   sortByKeys(str, keys, false);
   }
 
   return str;
@@ -334,45 +132,19 @@ public class QuickSortExtras
 
  public static String[] sortIntegersEnclosedInStrings(String[] str)
  {
-  if (str!=null)
+  if (str!=null && str.length>1)
   {
-   if (str.length>1)
+   int keys[]=new int[str.length];
+
+   for (int t=0;t<str.length;t++)
    {
-    new QuickSort(new QSortable()
+    try
     {
-     int mid;
-
-     public void setMid(int mididx, Object params)
-     {
-      try
-      {
-       mid=getFirstEnclosedInteger(((String[])params)[mididx]);
-      } catch (Throwable tr){mid=0;}
-     }
-
-     // must return:
-     // <0 if elem1<mid
-     // 0 if elem1==mid
-     // >0 if elem1>mid
-     public int compareToMid(int elem1, Object params)
-     {
-      int curr;
-      try
-      {
-       curr=getFirstEnclosedInteger(((String[])params)[elem1]);
-      } catch (Throwable tr){curr=0;}
-
-      if (curr<mid) return -1;
-      if (curr>mid) return 1;
-      return 0;
-     }
-
-     public boolean swap(int elem1, int elem2, Object params)
-     {
-      return swapStrings(elem1, elem2, (String[])params);
-     }
-    }, 0, str.length-1, str);
+     keys[t]=getFirstEnclosedInteger(str[t]);
+    } catch (Throwable tr){keys[t]=0;}
    }
+
+   sortByKeys(str, keys, false);
   }
 
   return str;
@@ -380,80 +152,32 @@ public class QuickSortExtras
 
 
 
+ // the strings that are not dates in dateFormat are sorted as if they were now
  public static String[] sortDatesInStrings(String[] str, final String dateFormat)
  {
-  if (str!=null)
+  if (str!=null && str.length>1)
   {
-   if (str.length>1)
+   long now=System.currentTimeMillis();
+   long keys[]=new long[str.length];
+
+   for (int t=0;t<str.length;t++)
    {
-    new QuickSort(new QSortable()
+    try
     {
-     Date mid;
-
-     public void setMid(int mididx, Object params)
-     {
-      try
-      {
-       mid=speedStringToDate(((String[])params)[mididx], dateFormat);
-      } catch (Throwable tr){mid=new Date();}
-     }
-
-     // must return:
-     // <0 if elem1<mid
-     // 0 if elem1==mid
-     // >0 if elem1>mid
-     public int compareToMid(int elem1, Object params)
-     {
-      int res;
-      Date curr;
-
-      try
-      {
-       //System.out.print("elem1="+((String[])params)[elem1]+"  ");
-
-       curr=speedStringToDate(((String[])params)[elem1], dateFormat);
-      } catch (Throwable tr){curr=new Date();tr.printStackTrace();}
-
-      if (curr.before(mid)) res=-1;
-      else
-      {
-       if (curr.after(mid)) res=1;
-       else res=0;
-      }
-
-      /*
-      System.out.print("df="+dateFormat+"  ");
-
-      switch (res)
-      {
-       case 0:System.out.println(curr.toString()+" = "+mid.toString());break;
-       case 1:System.out.println(curr.toString()+" > "+mid.toString());break;
-       case -1:System.out.println(curr.toString()+" < "+mid.toString());break;
-      }
-      */
-
-      return res;
-     }
-
-     public boolean swap(int elem1, int elem2, Object params)
-     {
-      return swapStrings(elem1, elem2, (String[])params);
-     }
-    }, 0, str.length-1, str);
+     keys[t]=speedStringToDate(str[t], dateFormat).getTime();
+    } catch (Throwable tr){keys[t]=now;}
    }
+
+   SortExtras.permute(SortExtras.order(keys, false), str);
   }
 
   return str;
  }
 
 
- private static boolean swapStrings(int elem1, int elem2, String params[])
+ private static void sortByKeys(String str[], int keys[], boolean desc)
  {
-  String cur1=params[elem1];
-  params[elem1]=params[elem2];
-  params[elem2]=cur1;
-
-  return true;
+  SortExtras.permute(SortExtras.order(keys, desc), str);
  }
 
 
@@ -0,0 +1,533 @@
+/*
+ * Copyright 2019 Antonio Sorrentini
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package me.as.lib.core.extra;
+
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntBinaryOperator;
+
+
+/**
+ * The sorts used by QuickSort, QuickSortExtras and InMemoryCache:
+ *
+ *   sort(int[]), sort(long[])...     in place, dual pivot quicksort (Arrays.sort), parallel
+ *                                    merge sort for big arrays (Arrays.parallelSort)
+ *   sort(QSortable, ...)             introsort through the QSortable callbacks: median of
+ *                                    three pivots, insertion sort for short ranges and heap
+ *                                    sort when the partitions go bad, so never O(n²)
+ *   order(keys)                      the stable permutation that sorts keys (keys untouched):
+ *                                    radix sort for int, long and double keys, merge sort
+ *                                    (parallel for big arrays) with a Comparator
+ *   permute(order, values)           moves values (parallel arrays too) in that order
+ *
+ * Sorting parallel arrays by a key is then
+ *
+ *   int order[]=SortExtras.order(times, false);
+ *   SortExtras.permute(order, times);
+ *   SortExtras.permute(order, names);
+ */
+public class SortExtras
+{
+ // under these sizes arrays are not sorted in parallel / merge sort uses insertion sort
+ private static final int parallelThreshold=1 << 13;
+ private static final int insertionThreshold=32;
+ // introsort leaves shorter ranges to insertion sort
+ private static final int introInsertionThreshold=16;
+
+
+ // =============================================================================
+ // primitives, in place
+
+
+ public static void sort(int values[])
+ {
+  sort(values, false);
+ }
+
+ public static void sort(int values[], boolean desc)
+ {
+  if (values.length>=parallelThreshold) Arrays.parallelSort(values);
+  else Arrays.sort(values);
+
+  if (desc) reverse(values, 0, values.length);
+ }
+
+ // from inclusive, to exclusive
+ public static void sort(int values[], int from, int to, boolean desc)
+ {
+  if (to-from>=parallelThreshold) Arrays.parallelSort(values, from, to);
+  else Arrays.sort(values, from, to);
+
+  if (desc) reverse(values, from, to);
+ }
+
+
+ public static void sort(long values[])
+ {
+  sort(values, false);
+ }
+
+ public static void sort(long values[], boolean desc)
+ {
+  if (values.length>=parallelThreshold) Arrays.parallelSort(values);
+  else Arrays.sort(values);
+
+  if (desc) reverse(values, 0, values.length);
+ }
+
+
+ // NaN go last (first when desc), -0.0 before 0.0
+ public static void sort(double values[])
+ {
+  sort(values, false);
+ }
+
+ public static void sort(double values[], boolean desc)
+ {
+  if (values.length>=parallelThreshold) Arrays.parallelSort(values);
+  else Arrays.sort(values);
+
+  if (desc) reverse(values, 0, values.length);
+ }
+
+
+ // stable, the Comparator must be usable by more threads for big arrays
+ public static <T> void sort(T values[], Comparator<? super T> comparator)
+ {
+  if (values.length>=parallelThreshold) Arrays.parallelSort(values, comparator);
+  else Arrays.sort(values, comparator);
+ }
+
+
+ private static void reverse(int values[], int from, int to)
+ {
+  for (int i=from, j=to-1;i<j;i++, j--)
+  {
+   int v=values[i];
+   values[i]=values[j];
+   values[j]=v;
+  }
+ }
+
+ private static void reverse(long values[], int from, int to)
+ {
+  for (int i=from, j=to-1;i<j;i++, j--)
+  {
+   long v=values[i];
+   values[i]=values[j];
+   values[j]=v;
+  }
+ }
+
+ private static void reverse(double values[], int from, int to)
+ {
+  for (int i=from, j=to-1;i<j;i++, j--)
+  {
+   double v=values[i];
+   values[i]=values[j];
+   values[j]=v;
+  }
+ }
+
+
+ // =============================================================================
+ // QSortable
+
+
+ /**
+  * Sorts the elements from init to end (both inclusive) of object. Any two elements are
+  * compared as setMid(b) then compareToMid(a), so setMid must keep the value of the element
+  * (not its index), as all the QSortable of this library do.
+  */
+ public static void sort(QSortable object, int init, int end, Object params)
+ {
+  if (end>init)
+  {
+   int depth=2*(31-Integer.numberOfLeadingZeros(end-init+1));
+   introSort(object, init, end, params, depth);
+  }
+ }
+
+
+ private static void introSort(QSortable o, int lo, int hi, Object params, int depth)
+ {
+  while (hi-lo>introInsertionThreshold)
+  {
+   if (depth--==0)
+   {
+    heapSort(o, lo, hi, params);
+    return;
+   }
+
+   // the median of lo, mid and hi goes in mid and becomes the pivot
+   int mid=(lo+hi) >>> 1;
+   if (compare(o, mid, lo, params)<0) o.swap(mid, lo, params);
+   if (compare(o, hi, mid, params)<0)
+   {
+    o.swap(hi, mid, params);
+    if (compare(o, mid, lo, params)<0) o.swap(mid, lo, params);
+   }
+
+   o.setMid(mid, params);
+
+   int i=lo;
+   int j=hi;
+
+   while (i<=j)
+   {
+    while (i<hi && o.compareToMid(i, params)<0) i++;
+    while (j>lo && o.compareToMid(j, params)>0) j--;
+
+    if (i<=j)
+    {
+     if (i!=j) o.swap(i, j, params);
+     i++;
+     j--;
+    }
+   }
+
+   // the smaller side is recursed, the bigger one is looped: the stack stays O(log n)
+   if (j-lo<hi-i)
+   {
+    if (lo<j) introSort(o, lo, j, params, depth);
+    lo=i;
+   }
+   else
+   {
+    if (i<hi) introSort(o, i, hi, params, depth);
+    hi=j;
+   }
+  }
+
+  insertionSort(o, lo, hi, params);
+ }
+
+
+ private static int compare(QSortable o, int elem1, int elem2, Object params)
+ {
+  o.setMid(elem2, params);
+  return o.compareToMid(elem1, params);
+ }
+
+
+ private static void insertionSort(QSortable o, int lo, int hi, Object params)
+ {
+  for (int i=lo+1;i<=hi;i++)
+  {
+   // the element of i is the mid, and it moves down while the previous ones are greater
+   o.setMid(i, params);
+   for (int j=i;j>lo && o.compareToMid(j-1, params)>0;j--) o.swap(j-1, j, params);
+  }
+ }
+
+
+ private static void heapSort(QSortable o, int lo, int hi, Object params)
+ {
+  int len=hi-lo+1;
+
+  for (int t=len/2-1;t>=0;t--) siftDown(o, lo, t, len, params);
+
+  for (int t=len-1;t>0;t--)
+  {
+   o.swap(lo, lo+t, params);
+   siftDown(o, lo, 0, t, params);
+  }
+ }
+
+
+ private static void siftDown(QSortable o, int lo, int node, int len, Object params)
+ {
+  int child;
+
+  while ((child=2*node+1)<len)
+  {
+   if (child+1<len && compare(o, lo+child+1, lo+child, params)>0) child++;
+   if (compare(o, lo+child, lo+node, params)<=0) return;
+
+   o.swap(lo+node, lo+child, params);
+   node=child;
+  }
+ }
+
+
+ // =============================================================================
+ // index permutations: order[i] is the index of the element that goes in position i
+
+
+ public static int[] order(int keys[], boolean desc)
+ {
+  int len=keys.length;
+  long res[]=new long[len];
+
+  for (int t=0;t<len;t++)
+  {
+   long v=(keys[t] ^ Integer.MIN_VALUE) & 0xFFFFFFFFL;
+   res[t]=((desc)?~v & 0xFFFFFFFFL:v);
+  }
+
+  return radixOrder(res, 4);
+ }
+
+
+ public static int[] order(long keys[], boolean desc)
+ {
+  int len=keys.length;
+  long res[]=new long[len];
+
+  for (int t=0;t<len;t++)
+  {
+   long v=keys[t] ^ Long.MIN_VALUE;
+   res[t]=((desc)?~v:v);
+  }
+
+  return radixOrder(res, 8);
+ }
+
+
+ // -0.0 and 0.0 are equal, NaN go last (first when desc)
+ public static int[] order(double keys[], boolean desc)
+ {
+  int len=keys.length;
+  long res[]=new long[len];
+
+  for (int t=0;t<len;t++)
+  {
+   double d=keys[t];
+   if (d==0) d=0.0;
+
+   long bits=Double.doubleToLongBits(d);
+   long v=((bits<0)?~bits:bits ^ Long.MIN_VALUE);
+   res[t]=((desc)?~v:v);
+  }
+
+  return radixOrder(res, 8);
+ }
+
+
+ // merge sort, in parallel for big arrays (the Comparator must be usable by more threads)
+ public static <T> int[] order(T keys[], Comparator<? super T> comparator)
+ {
+  return order(keys.length, (i1, i2) -> comparator.compare(keys[i1], keys[i2]));
+ }
+
+
+ /**
+  * Stable merge sort of the indexes from 0 to count-1, in parallel for big counts.
+  * comparator compares two indexes (as a Comparator would do with what they stand for) and
+  * must be usable by more threads.
+  *
+  * @return res, where res[i] is the index that has to go in position i
+  */
+ public static int[] order(int count, IntBinaryOperator comparator)
+ {
+  int res[]=identity(count);
+
+  if (count>1)
+  {
+   MergeSort ms=new MergeSort(res, new int[count], comparator, 0, count);
+   if (count>=parallelThreshold) ForkJoinPool.commonPool().invoke(ms);
+   else ms.compute();
+  }
+
+  return res;
+ }
+
+
+ private static int[] identity(int len)
+ {
+  int res[]=new int[len];
+  for (int t=0;t<len;t++) res[t]=t;
+  return res;
+ }
+
+
+ // LSD, a byte per pass, the passes where all the keys have the same byte are skipped;
+ // the unsigned order of keys is the wanted one and keys is used as scratch
+ private static int[] radixOrder(long keys[], int bytes)
+ {
+  int len=keys.length;
+  int perm[]=identity(len);
+  if (len<2) return perm;
+
+  int result[]=perm;
+  int permTmp[]=new int[len];
+  long keysTmp[]=new long[len];
+  int counts[]=new int[256];
+
+  for (int pass=0;pass<bytes;pass++)
+  {
+   int shift=pass*8;
+   Arrays.fill(counts, 0);
+
+   for (int t=0;t<len;t++) counts[(int)(keys[t] >>> shift) & 0xFF]++;
+
+   if (counts[(int)(keys[0] >>> shift) & 0xFF]==len) continue;
+
+   int sum=0;
+   for (int b=0;b<256;b++)
+   {
+    int c=counts[b];
+    counts[b]=sum;
+    sum+=c;
+   }
+
+   for (int t=0;t<len;t++)
+   {
+    int dest=counts[(int)(keys[t] >>> shift) & 0xFF]++;
+    keysTmp[dest]=keys[t];
+    permTmp[dest]=perm[t];
+   }
+
+   long kt[]=keys;
+   keys=keysTmp;
+   keysTmp=kt;
+
+   int pt[]=perm;
+   perm=permTmp;
+   permTmp=pt;
+  }
+
+  // after an odd number of passes the result is in the temporary array
+  if (perm!=result) System.arraycopy(perm, 0, result, 0, len);
+  return result;
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+ // values[i] becomes values[order[i]]
+
+
+ public static void permute(int order[], int values[])
+ {
+  int src[]=values.clone();
+  for (int t=0;t<order.length;t++) values[t]=src[order[t]];
+ }
+
+ public static void permute(int order[], long values[])
+ {
+  long src[]=values.clone();
+  for (int t=0;t<order.length;t++) values[t]=src[order[t]];
+ }
+
+ public static void permute(int order[], double values[])
+ {
+  double src[]=values.clone();
+  for (int t=0;t<order.length;t++) values[t]=src[order[t]];
+ }
+
+ public static void permute(int order[], Object values[])
+ {
+  Object src[]=values.clone();
+  for (int t=0;t<order.length;t++) values[t]=src[order[t]];
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ private static class MergeSort extends RecursiveAction
+ {
+  final int perm[];
+  final int tmp[];
+  final IntBinaryOperator comparator;
+  final int lo;
+  final int hi;
+
+
+  MergeSort(int perm[], int tmp[], IntBinaryOperator comparator, int lo, int hi)
+  {
+   this.perm=perm;
+   this.tmp=tmp;
+   this.comparator=comparator;
+   this.lo=lo;
+   this.hi=hi;
+  }
+
+
+  protected void compute()
+  {
+   int len=hi-lo;
+
+   if (len<=insertionThreshold)
+   {
+    insertionSort();
+    return;
+   }
+
+   int mid=(lo+hi) >>> 1;
+   MergeSort left=new MergeSort(perm, tmp, comparator, lo, mid);
+   MergeSort right=new MergeSort(perm, tmp, comparator, mid, hi);
+
+   if (len>=parallelThreshold) invokeAll(left, right);
+   else
+   {
+    left.compute();
+    right.compute();
+   }
+
+   merge(mid);
+  }
+
+
+  private int compare(int i1, int i2)
+  {
+   return comparator.applyAsInt(i1, i2);
+  }
+
+
+  private void insertionSort()
+  {
+   for (int i=lo+1;i<hi;i++)
+   {
+    int idx=perm[i];
+    int j=i-1;
+
+    while (j>=lo && compare(perm[j], idx)>0)
+    {
+     perm[j+1]=perm[j];
+     j--;
+    }
+
+    perm[j+1]=idx;
+   }
+  }
+
+
+  // the left half is copied aside, equal keys are taken from it first
+  private void merge(int mid)
+  {
+   if (compare(perm[mid-1], perm[mid])<=0) return;
+
+   System.arraycopy(perm, lo, tmp, lo, mid-lo);
+
+   int i=lo, j=mid, k=lo;
+
+   while (i<mid && j<hi)
+   {
+    if (compare(perm[j], tmp[i])<0) perm[k++]=perm[j++];
+    else perm[k++]=tmp[i++];
+   }
+
+   while (i<mid) perm[k++]=tmp[i++];
+  }
+ }
+
+
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2019 Antonio Sorrentini
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package me.as.lib.core.io.extra;
+
+
+import me.as.lib.core.lang.BinaryCodecs;
+
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * The reading counterpart of {@link BinaryOutput}, over a byte array that is not copied.
+ */
+public class BinaryInput
+{
+ private final byte buf[];
+ private int position;
+ private final int limit;
+ private boolean compactNumbers=false;
+
+
+ public BinaryInput(byte b[])
+ {
+  this(b, 0, b.length);
+ }
+
+
+ public BinaryInput(byte b[], int off, int len)
+ {
+  buf=b;
+  position=off;
+  limit=off+len;
+ }
+
+
+ public int getPosition()
+ {
+  return position;
+ }
+
+ public int remaining()
+ {
+  return limit-position;
+ }
+
+ public boolean isCompactNumbers()
+ {
+  return compactNumbers;
+ }
+
+ public void setCompactNumbers(boolean compactNumbers)
+ {
+  this.compactNumbers=compactNumbers;
+ }
+
+
+ private void need(int count)
+ {
+  if (position+count>limit)
+   throw new me.as.lib.core.io.IOException("BinaryInput: "+count+" bytes needed but only "+(limit-position)+" remain");
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ public byte readByte()
+ {
+  need(1);
+  return buf[position++];
+ }
+
+
+ public boolean readBoolean()
+ {
+  return (readByte()!=0);
+ }
+
+
+ public short readShort()
+ {
+  if (compactNumbers) return (short)readZigZagInt();
+  need(2);
+  int res=((buf[position] & 0xFF) << 8) | (buf[position+1] & 0xFF);
+  position+=2;
+  return (short)res;
+ }
+
+
+ public char readChar()
+ {
+  if (compactNumbers) return (char)readVarInt();
+  need(2);
+  int res=((buf[position] & 0xFF) << 8) | (buf[position+1] & 0xFF);
+  position+=2;
+  return (char)res;
+ }
+
+
+ public int readInt()
+ {
+  if (compactNumbers) return readZigZagInt();
+  return readFixedInt();
+ }
+
+
+ private int readFixedInt()
+ {
+  need(4);
+  int res=((buf[position] & 0xFF) << 24) |
+          ((buf[position+1] & 0xFF) << 16) |
+          ((buf[position+2] & 0xFF) << 8) |
+          (buf[position+3] & 0xFF);
+  position+=4;
+  return res;
+ }
+
+
+ public long readLong()
+ {
+  if (compactNumbers) return readZigZagLong();
+  return readFixedLong();
+ }
+
+
+ private long readFixedLong()
+ {
+  need(8);
+  long res=0;
+  for (int t=0;t<8;t++) res=(res << 8) | (buf[position++] & 0xFF);
+  return res;
+ }
+
+
+ public float readFloat()
+ {
+  return Float.intBitsToFloat(readFixedInt());
+ }
+
+
+ public double readDouble()
+ {
+  return Double.longBitsToDouble(readFixedLong());
+ }
+
+
+ public int readVarInt()
+ {
+  int res=0;
+  int shift=0;
+  byte b;
+
+  do
+  {
+   if (shift>28) throw new me.as.lib.core.io.IOException("BinaryInput: malformed varint");
+   b=readByte();
+   res|=(b & 0x7F) << shift;
+   shift+=7;
+  } while ((b & 0x80)!=0);
+
+  return res;
+ }
+
+
+ public long readVarLong()
+ {
+  long res=0;
+  int shift=0;
+  byte b;
+
+  do
+  {
+   if (shift>63) throw new me.as.lib.core.io.IOException("BinaryInput: malformed varlong");
+   b=readByte();
+   res|=(long)(b & 0x7F) << shift;
+   shift+=7;
+  } while ((b & 0x80)!=0);
+
+  return res;
+ }
+
+
+ public int readZigZagInt()
+ {
+  int v=readVarInt();
+  return (v >>> 1) ^ -(v & 1);
+ }
+
+
+ public long readZigZagLong()
+ {
+  long v=readVarLong();
+  return (v >>> 1) ^ -(v & 1);
+ }
+
+
+ public void read(byte b[], int off, int len)
+ {
+  need(len);
+  System.arraycopy(buf, position, b, off, len);
+  position+=len;
+ }
+
+
+ public byte[] readBytes()
+ {
+  int len=readVarInt()-1;
+  if (len<0) return null;
+  byte res[]=new byte[len];
+  read(res, 0, len);
+  return res;
+ }
+
+
+ public String readString()
+ {
+  int len=readVarInt()-1;
+  if (len<0) return null;
+  need(len);
+  String res=new String(buf, position, len, StandardCharsets.UTF_8);
+  position+=len;
+  return res;
+ }
+
+
+ public Object readObject()
+ {
+  return BinaryCodecs.readObject(this);
+ }
+
+
+}
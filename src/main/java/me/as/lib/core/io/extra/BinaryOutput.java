@@ -0,0 +1,298 @@
+/*
+ * Copyright 2019 Antonio Sorrentini
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package me.as.lib.core.io.extra;
+
+
+import me.as.lib.core.io.BytesRoom;
+import me.as.lib.core.lang.BinaryCodecs;
+
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * A growable, not synchronized, byte array writer for {@link me.as.lib.core.lang.BinaryCodec}s.
+ * Fixed size numbers are big endian, like in BytesRoom. In compact numbers mode writeInt,
+ * writeLong, writeShort and writeChar write zig-zag varints instead (1 byte for values in -64..63).
+ * Instances can be reset and reused.
+ */
+public class BinaryOutput
+{
+ private byte buf[];
+ private int size=0;
+ private boolean compactNumbers=false;
+
+
+ public BinaryOutput()
+ {
+  this(256);
+ }
+
+
+ public BinaryOutput(int initialCapacity)
+ {
+  buf=new byte[Math.max(16, initialCapacity)];
+ }
+
+
+ public void reset()
+ {
+  size=0;
+ }
+
+ public int size()
+ {
+  return size;
+ }
+
+ public int capacity()
+ {
+  return buf.length;
+ }
+
+ public boolean isCompactNumbers()
+ {
+  return compactNumbers;
+ }
+
+ public void setCompactNumbers(boolean compactNumbers)
+ {
+  this.compactNumbers=compactNumbers;
+ }
+
+
+ // a copy of what has been written so far
+ public byte[] toByteArray()
+ {
+  byte res[]=new byte[size];
+  System.arraycopy(buf, 0, res, 0, size);
+  return res;
+ }
+
+
+ // the internal buffer, valid up to size()
+ public byte[] getBuffer()
+ {
+  return buf;
+ }
+
+
+ public void writeTo(BytesRoom br)
+ {
+  br.Write(buf, 0, size);
+ }
+
+
+ private void grant(int more)
+ {
+  int needed=size+more;
+
+  if (needed>buf.length)
+  {
+   byte nb[]=new byte[Math.max(needed, buf.length*2)];
+   System.arraycopy(buf, 0, nb, 0, size);
+   buf=nb;
+  }
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ public void writeByte(int v)
+ {
+  grant(1);
+  buf[size++]=(byte)v;
+ }
+
+
+ public void writeBoolean(boolean v)
+ {
+  writeByte((v)?1:0);
+ }
+
+
+ public void writeShort(int v)
+ {
+  if (compactNumbers) writeZigZagInt((short)v);
+  else
+  {
+   grant(2);
+   buf[size++]=(byte)(v >>> 8);
+   buf[size++]=(byte)v;
+  }
+ }
+
+
+ public void writeChar(int v)
+ {
+  if (compactNumbers) writeVarInt((char)v);
+  else writeShort(v);
+ }
+
+
+ public void writeInt(int v)
+ {
+  if (compactNumbers) writeZigZagInt(v);
+  else
+  {
+   grant(4);
+   buf[size++]=(byte)(v >>> 24);
+   buf[size++]=(byte)(v >>> 16);
+   buf[size++]=(byte)(v >>> 8);
+   buf[size++]=(byte)v;
+  }
+ }
+
+
+ public void writeLong(long v)
+ {
+  if (compactNumbers) writeZigZagLong(v);
+  else
+  {
+   grant(8);
+   for (int s=56;s>=0;s-=8) buf[size++]=(byte)(v >>> s);
+  }
+ }
+
+
+ public void writeFloat(float v)
+ {
+  grant(4);
+  int i=Float.floatToIntBits(v);
+  buf[size++]=(byte)(i >>> 24);
+  buf[size++]=(byte)(i >>> 16);
+  buf[size++]=(byte)(i >>> 8);
+  buf[size++]=(byte)i;
+ }
+
+
+ public void writeDouble(double v)
+ {
+  grant(8);
+  long l=Double.doubleToLongBits(v);
+  for (int s=56;s>=0;s-=8) buf[size++]=(byte)(l >>> s);
+ }
+
+
+ // unsigned LEB128: 7 bits per byte, negative values always take 5 bytes
+ public void writeVarInt(int v)
+ {
+  grant(5);
+
+  while ((v & ~0x7F)!=0)
+  {
+   buf[size++]=(byte)((v & 0x7F) | 0x80);
+   v>>>=7;
+  }
+
+  buf[size++]=(byte)v;
+ }
+
+
+ public void writeVarLong(long v)
+ {
+  grant(10);
+
+  while ((v & ~0x7FL)!=0)
+  {
+   buf[size++]=(byte)((v & 0x7F) | 0x80);
+   v>>>=7;
+  }
+
+  buf[size++]=(byte)v;
+ }
+
+
+ public void writeZigZagInt(int v)
+ {
+  writeVarInt((v << 1) ^ (v >> 31));
+ }
+
+
+ public void writeZigZagLong(long v)
+ {
+  writeVarLong((v << 1) ^ (v >> 63));
+ }
+
+
+ public void write(byte b[])
+ {
+  write(b, 0, b.length);
+ }
+
+
+ public void write(byte b[], int off, int len)
+ {
+  grant(len);
+  System.arraycopy(b, off, buf, size, len);
+  size+=len;
+ }
+
+
+ // length prefixed, null allowed
+ public void writeBytes(byte b[])
+ {
+  if (b==null) writeVarInt(0);
+  else
+  {
+   writeVarInt(b.length+1);
+   write(b);
+  }
+ }
+
+
+ // UTF-8, length prefixed, null allowed
+ public void writeString(String s)
+ {
+  if (s==null)
+  {
+   writeVarInt(0);
+   return;
+  }
+
+  int t, len=s.length();
+  boolean ascii=true;
+
+  for (t=0;t<len && ascii;t++)
+  {
+   ascii=(s.charAt(t)<0x80);
+  }
+
+  if (ascii)
+  {
+   writeVarInt(len+1);
+   grant(len);
+   for (t=0;t<len;t++) buf[size++]=(byte)s.charAt(t);
+  }
+  else
+  {
+   writeBytes(s.getBytes(StandardCharsets.UTF_8));
+  }
+ }
+
+
+ /**
+  * Writes any object: the ones of registered classes through their codec, all the
+  * others through ByteExtras.toBytes.
+  */
+ public void writeObject(Object o)
+ {
+  BinaryCodecs.writeObject(o, this);
+ }
+
+
+}
@@ -0,0 +1,505 @@
+/*
+ * Copyright 2019 Antonio Sorrentini
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package me.as.lib.core.io.extra;
+
+
+import me.as.lib.core.io.IOException;
+import me.as.lib.core.lang.LZBlockCodec;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * A write only, append only BytesRoom that compresses what is written to it while it is
+ * being written, used by ByteExtras.toBytes so that big objects are never held both raw and
+ * compressed in memory.
+ *
+ * The first probeSize bytes are kept raw and, once there are that many, they are compressed:
+ * if the gain is too small the compression is abandoned and everything is kept raw, otherwise
+ * the rest of the data is compressed as it arrives, a block at a time.
+ * finish() returns either the raw bytes or
+ *   [short marker][int compressed length][int raw length][compressed data]
+ * where compressed data is a zlib stream (DEFLATE) or a sequence of
+ *   [int raw length][int compressed length][data, stored raw if the lengths are equal]
+ * blocks of the LZBlockCodec (FAST).
+ *
+ * Instances are not thread safe, acquire()/release() keep one per thread for reuse.
+ */
+public class CompressingBytesRoom extends BytesRoomHandler
+{
+ public static final int NONE    = 0;
+ public static final int DEFLATE = 1;
+ public static final int FAST    = 2;
+
+ public static final int headerSize=10;
+ public static final int blockSize=64*1024;
+ public static final int probeSize=blockSize;
+
+ // buffers bigger than this are not kept for reuse
+ private static final int maxSpareCapacity=1024*1024;
+ private static final ThreadLocal<CompressingBytesRoom> spare=new ThreadLocal<>();
+
+ private static final int undecided = 0;
+ private static final int raw       = 1;
+ private static final int streaming = 2;
+
+ private int compression;
+ private int threshold;
+ private int minGainPercent;
+ private short deflateMarker;
+ private short fastMarker;
+ private int mode;
+
+ private byte in[]=new byte[4096];
+ private int inSize=0;
+ private byte out[];
+ private int outSize=0;
+
+ private Deflater deflater;
+ private boolean finishing=false;
+ private int lzTable[];
+
+
+ /**
+  * @param compression     NONE, DEFLATE or FAST
+  * @param threshold       data not longer than this is never compressed
+  * @param minGainPercent  compressed data is kept only if at least this percent smaller
+  * @param deflateMarker   the short written at the beginning of DEFLATE compressed data
+  * @param fastMarker      the short written at the beginning of FAST compressed data
+  */
+ public CompressingBytesRoom(int compression, int threshold, int minGainPercent, short deflateMarker, short fastMarker)
+ {
+  status=S_OPENED;
+  init(compression, threshold, minGainPercent, deflateMarker, fastMarker);
+ }
+
+
+ public static CompressingBytesRoom acquire(int compression, int threshold, int minGainPercent, short deflateMarker, short fastMarker)
+ {
+  return acquire(0, compression, threshold, minGainPercent, deflateMarker, fastMarker);
+ }
+
+
+ /**
+  * @param initialCapacity  the bytes expected to be written, the buffer they go to starts
+  *                         at least this big (0 or less for the default)
+  */
+ public static CompressingBytesRoom acquire(int initialCapacity, int compression, int threshold, int minGainPercent, short deflateMarker, short fastMarker)
+ {
+  CompressingBytesRoom res=spare.get();
+
+  if (res!=null)
+  {
+   // toBytes can be reentrant (e.g. Binaryable.toBytes() calling ByteExtras.toBytes)
+   spare.set(null);
+   res.init(compression, threshold, minGainPercent, deflateMarker, fastMarker);
+  } else res=new CompressingBytesRoom(compression, threshold, minGainPercent, deflateMarker, fastMarker);
+
+  if (initialCapacity>res.in.length) res.in=new byte[initialCapacity];
+  return res;
+ }
+
+
+ public static void release(CompressingBytesRoom cbr)
+ {
+  cbr.clear();
+  if (cbr.in.length<=maxSpareCapacity && (cbr.out==null || cbr.out.length<=maxSpareCapacity)) spare.set(cbr);
+ }
+
+
+ private void init(int compression, int threshold, int minGainPercent, short deflateMarker, short fastMarker)
+ {
+  this.compression=compression;
+  this.threshold=threshold;
+  this.minGainPercent=minGainPercent;
+  this.deflateMarker=deflateMarker;
+  this.fastMarker=fastMarker;
+  clear();
+ }
+
+
+ /**
+  * @return  the written data, compressed or not, and clears this
+  */
+ public byte[] finish()
+ {
+  try
+  {
+   switch (mode)
+   {
+    case undecided:
+    {
+     if (compression!=NONE && inSize>threshold && startCompressing()) return finishCompressing();
+     return copy(in, 0, inSize);
+    }
+
+    case raw      :return copy(in, 0, inSize);
+    default       :return finishCompressing();
+   }
+  }
+  finally
+  {
+   clear();
+  }
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ // compresses what is in 'in' and tells if it is worth going on compressing
+ private boolean startCompressing()
+ {
+  int probed=inSize;
+  grantOut(headerSize+LZBlockCodec.maxCompressedLength(probed));
+  outSize=headerSize;
+
+  if (compression==DEFLATE)
+  {
+   if (deflater==null) deflater=new Deflater(Deflater.DEFAULT_COMPRESSION);
+   deflater.reset();
+   deflater.setInput(in, 0, probed);
+   // SYNC_FLUSH gives the exact size of the compressed data so far
+   deflate(Deflater.SYNC_FLUSH);
+  } else compressBlock();
+
+  int gained=probed-(outSize-headerSize);
+
+  if ((long)gained*100<(long)probed*minGainPercent)
+  {
+   mode=raw;
+   outSize=0;
+   return false;
+  }
+
+  mode=streaming;
+  inSize=0;
+  return true;
+ }
+
+
+ private byte[] finishCompressing()
+ {
+  if (compression==DEFLATE)
+  {
+   deflater.setInput(in, 0, inSize);
+   deflater.finish();
+   finishing=true;
+   deflate(Deflater.NO_FLUSH);
+   finishing=false;
+  }
+  else
+  {
+   if (inSize>0) compressBlock();
+  }
+
+  long rawLength=position;
+  if (rawLength>Integer.MAX_VALUE) throw new IOException("CompressingBytesRoom: too much data ("+rawLength+" bytes)");
+
+  writeInt(out, 0, (compression==DEFLATE)?deflateMarker:fastMarker, 2);
+  writeInt(out, 2, outSize-headerSize, 4);
+  writeInt(out, 6, (int)rawLength, 4);
+
+  return copy(out, 0, outSize);
+ }
+
+
+ // NO_FLUSH until all the input is consumed, SYNC_FLUSH until all the output is out,
+ // after deflater.finish() until the end of the stream
+ private void deflate(int flush)
+ {
+  boolean goon=true;
+
+  while (goon)
+  {
+   grantOut(8192);
+   int room=out.length-outSize;
+   int n=deflater.deflate(out, outSize, room, flush);
+   outSize+=n;
+
+   if (deflater.finished()) goon=false;
+   else if (flush==Deflater.SYNC_FLUSH) goon=(n==room);
+   else if (deflater.needsInput() && !finishing) goon=false;
+  }
+ }
+
+
+ private void compressBlock()
+ {
+  if (lzTable==null) lzTable=LZBlockCodec.newHashTable();
+  grantOut(8+LZBlockCodec.maxCompressedLength(inSize));
+
+  int compressed=LZBlockCodec.compress(in, 0, inSize, out, outSize+8, lzTable);
+
+  if (compressed>=inSize)
+  {
+   System.arraycopy(in, 0, out, outSize+8, inSize);
+   compressed=inSize;
+  }
+
+  writeInt(out, outSize, inSize, 4);
+  writeInt(out, outSize+4, compressed, 4);
+  outSize+=8+compressed;
+ }
+
+
+ // when streaming 'in' is emptied every blockSize bytes
+ private void flushBlock()
+ {
+  if (compression==DEFLATE)
+  {
+   deflater.setInput(in, 0, inSize);
+   deflate(Deflater.NO_FLUSH);
+  } else compressBlock();
+
+  inSize=0;
+ }
+
+
+ private void afterAppend()
+ {
+  switch (mode)
+  {
+   case undecided:if (compression!=NONE && inSize>=probeSize) startCompressing();break;
+   case streaming:if (inSize>=blockSize) flushBlock();break;
+  }
+ }
+
+
+ private void grantIn(int more)
+ {
+  int needed=inSize+more;
+
+  if (needed>in.length)
+  {
+   byte nb[]=new byte[Math.max(needed, in.length*2)];
+   System.arraycopy(in, 0, nb, 0, inSize);
+   in=nb;
+  }
+ }
+
+
+ private void grantOut(int more)
+ {
+  int needed=outSize+more;
+
+  if (out==null) out=new byte[Math.max(needed, 4096)];
+  else if (needed>out.length)
+  {
+   byte nb[]=new byte[Math.max(needed, out.length*2)];
+   System.arraycopy(out, 0, nb, 0, outSize);
+   out=nb;
+  }
+ }
+
+
+ private static void writeInt(byte b[], int off, int v, int bytes)
+ {
+  for (int t=bytes-1;t>=0;t--)
+  {
+   b[off+t]=(byte)v;
+   v>>>=8;
+  }
+ }
+
+
+ private static int readInt(byte b[], int off)
+ {
+  return ((b[off] & 0xFF) << 24) | ((b[off+1] & 0xFF) << 16) | ((b[off+2] & 0xFF) << 8) | (b[off+3] & 0xFF);
+ }
+
+
+ private static byte[] copy(byte b[], int off, int len)
+ {
+  byte res[]=new byte[len];
+  System.arraycopy(b, off, res, 0, len);
+  return res;
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+ // the reading side: compressed is what follows the header, rawLength is from the header
+
+
+ public static byte[] inflate(byte compressed[], int rawLength)
+ {
+  Inflater inflater=new Inflater();
+
+  try
+  {
+   byte res[]=new byte[rawLength];
+   inflater.setInput(compressed);
+   int done=0;
+
+   while (done<rawLength)
+   {
+    int n=inflater.inflate(res, done, rawLength-done);
+
+    if (n==0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+     throw new IOException("CompressingBytesRoom: truncated deflate data ("+done+" of "+rawLength+" bytes)");
+
+    done+=n;
+   }
+
+   return res;
+  }
+  catch (DataFormatException dfe)
+  {
+   throw new IOException(dfe);
+  }
+  finally
+  {
+   inflater.end();
+  }
+ }
+
+
+ public static byte[] decompressFast(byte compressed[], int rawLength)
+ {
+  byte res[]=new byte[rawLength];
+  int ip=0, op=0, len=compressed.length;
+
+  while (ip<len)
+  {
+   if (ip+8>len) throw new IOException("CompressingBytesRoom: truncated block header");
+
+   int blockRaw=readInt(compressed, ip);
+   int blockCompressed=readInt(compressed, ip+4);
+   ip+=8;
+
+   if (blockRaw<0 || blockCompressed<0 || ip+blockCompressed>len || op+blockRaw>rawLength)
+    throw new IOException("CompressingBytesRoom: malformed block");
+
+   if (blockCompressed==blockRaw) System.arraycopy(compressed, ip, res, op, blockRaw);
+   else LZBlockCodec.decompress(compressed, ip, blockCompressed, res, op, blockRaw);
+
+   ip+=blockCompressed;
+   op+=blockRaw;
+  }
+
+  if (op!=rawLength) throw new IOException("CompressingBytesRoom: "+op+" bytes decompressed instead of "+rawLength);
+  return res;
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+ // BytesRoomHandler
+
+
+ public void write(int b) throws IOException
+ {
+  grantIn(1);
+  in[inSize++]=(byte)b;
+  position++;
+  afterAppend();
+ }
+
+
+ protected void writeBytes(byte b[], int off, int len) throws IOException
+ {
+  while (len>0)
+  {
+   int chunk=len;
+   if (mode!=raw) chunk=Math.min(len, Math.max(1, blockSize-inSize));
+
+   grantIn(chunk);
+   System.arraycopy(b, off, in, inSize, chunk);
+   inSize+=chunk;
+   position+=chunk;
+   off+=chunk;
+   len-=chunk;
+
+   afterAppend();
+  }
+ }
+
+
+ public long getSize()
+ {
+  return position;
+ }
+
+
+ // only the current size is accepted (or 0, that is clear())
+ public boolean setSize(long newSize)
+ {
+  if (newSize==0)
+  {
+   inSize=0;
+   outSize=0;
+   position=0;
+   mode=undecided;
+   return true;
+  }
+
+  return (newSize==position);
+ }
+
+
+ public synchronized long getCurrentPosition()
+ {
+  return position;
+ }
+
+
+ public synchronized boolean setCurrentPosition(long newPosition)
+ {
+  return (newPosition==position);
+ }
+
+
+ public int read() throws IOException
+ {
+  throw new IOException("CompressingBytesRoom is write only");
+ }
+
+ public int read(byte b[], int off, int len) throws IOException
+ {
+  throw new IOException("CompressingBytesRoom is write only");
+ }
+
+
+ public void mountContent(byte bytes[]) throws IOException
+ {
+  throw new IOException("CompressingBytesRoom does not support mountContent");
+ }
+
+ public byte[] unmountContent() throws IOException
+ {
+  throw new IOException("CompressingBytesRoom does not support unmountContent, use finish()");
+ }
+
+
+ public boolean flush()
+ {
+  return true;
+ }
+
+ public boolean open(String mode) throws IOException
+ {
+  return true;
+ }
+
+ public boolean close()
+ {
+  return true;
+ }
+
+
+}
@@ -30,6 +30,11 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.UnsupportedEncodingException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static me.as.lib.core.lang.ByteExtras.fromBytes;
 import static me.as.lib.core.lang.ByteExtras.toBytes;
@@ -56,6 +61,9 @@ public class FileSystemRoom
  private CacheHelper<Directory> dirsCacheHelper=new CacheHelper<Directory>()
           {public Directory create(Object[] params){return createDirectoryCache(params[0].toString());}};
 
+ // tree walks still in progress, they get the pre-image of every directory piece changed under them
+ private final Set<TreeSnapshot> openSnapshots=Collections.newSetFromMap(new WeakHashMap<>());
+
 
  public FileSystemRoom()
  {
@@ -180,14 +188,19 @@ public class FileSystemRoom
  public synchronized boolean deleteFile(String path)
  {
   if (!pathOk(path) || StringExtras.length(path)<2) return false; // vorrai mica cancellare la root?????
-  boolean res=isFile(path);
+  boolean res=exists(path);
 
   if (res)
   {
    boolean wasDir=isDirectory(path);
    String df[]=getDirAndFilename(path);
    Directory dir=getDirectoryFromCache(df[0]);
-   if (dir!=null) res=dir.deleteFile(pbRoom, df[1]);
+   if (dir!=null)
+   {
+    preserveForSnapshots(dir.pieceId);
+    if (wasDir) preserveForSnapshots(dir.getPieceId(df[1]));
+    res=dir.deleteFile(pbRoom, df[1]);
+   }
    if (wasDir) dirsCache.clear();
   }
 
@@ -197,38 +210,25 @@ public class FileSystemRoom
 
 
 
- public synchronized void deleteTree(String dname)
+ /**
+  * Deletes everything below dname (dname itself is kept).
+  * The tree is listed from a snapshot and every entry is then deleted on its own,
+  * so the room is never locked for the whole operation.
+  */
+ public void deleteTree(String dname)
  {
   try
   {
    String root=((dname.endsWith(separatorS))?dname:dname+separator);
-   String tmp, files[]=listTheTree(root);
+   String files[]=listTheTree(root);
    int t, len=ArrayExtras.length(files);
 
-   for (t=0;t<len;t++)
+   // in a pre-order listing children always follow their parent, walking it backwards
+   // deletes the content of each directory before the directory itself
+   for (t=len-1;t>=0;t--)
    {
-    tmp=root+separator+files[t];
-    if (isFile(tmp))
-    {
-     deleteFile(tmp);
-     files[t]=null;
-    }
+    deleteFile(root+files[t]);
    }
-
-   do
-   {
-    files=purgeNullsAndEmpties(files);
-    len=ArrayExtras.length(files);
-
-    for (t=0;t<len;t++)
-    {
-     tmp=root+separator+files[t];
-     if (deleteFile(tmp))
-     {
-      files[t]=null;
-     }
-    }
-   } while (len>0);
   }
   catch (Throwable tr)
   {
@@ -248,7 +248,11 @@ public class FileSystemRoom
    boolean wasDir=isDirectory(currentFile);
    String df[]=getDirAndFilename(currentFile);
    Directory dir=getDirectoryFromCache(df[0]);
-   if (dir!=null) res=dir.rename(pbRoom, df[1], renamedFile);
+   if (dir!=null)
+   {
+    preserveForSnapshots(dir.pieceId);
+    res=dir.rename(pbRoom, df[1], renamedFile);
+   }
    if (wasDir) dirsCache.clear();
   }
 
@@ -372,6 +376,7 @@ public class FileSystemRoom
      if (isFile) return false;
      if (!isDir)
      {
+      preserveForSnapshots(cursor.pieceId);
       cursor.mkdir(pbRoom, s[i]);
       dirsCache.clearNulls();
      }
@@ -489,14 +494,13 @@ public class FileSystemRoom
 
 
 
- public synchronized String[] listTheTree(String dname)
+ public String[] listTheTree(String dname)
  {
   String res[]=null;
 
-  try
+  try (Stream<TreeEntry> entries=walkTree(dname))
   {
-   String root=((dname.endsWith(separatorS))?dname:dname+separator);
-   res=ArrayExtras.toArray(listTheTree(dname, root, "", null), String.class);
+   res=entries.map(TreeEntry::getPath).toArray(String[]::new);
   }
   catch (Throwable tr)
   {
@@ -508,24 +512,266 @@ public class FileSystemRoom
 
 
 
- private synchronized ArrayList<String> listTheTree(String dname, String root, String subDir, ArrayList<String> al)
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+ // tree walking
+
+
+ public static class TreeEntry
  {
-  if (al==null) al=new ArrayList<>();
-  String tmp, files[]=listAll(dname);
-  if (files!=null)
+  private final String path;
+  private final String name;
+  private final boolean directory;
+
+
+  TreeEntry(String path, String name, boolean directory)
   {
-   int t, len=ArrayExtras.length(files);
+   this.path=path;
+   this.name=name;
+   this.directory=directory;
+  }
+
+
+  // relative to the walked directory, ex.: "innerDir/moreInner Dir/file one.txt"
+  public String getPath()
+  {
+   return path;
+  }
+
+  public String getName()
+  {
+   return name;
+  }
+
+  public boolean isDirectory()
+  {
+   return directory;
+  }
+
+  public boolean isFile()
+  {
+   return !directory;
+  }
+
+  public String toString()
+  {
+   return path;
+  }
+ }
+
+
+
+ public Stream<TreeEntry> walkTree(String dname)
+ {
+  return walkTree(dname, null);
+ }
+
+
+ /**
+  * Lazily walks (depth first, parents before their content) the tree below dname
+  * as it was when this method was called: changes made to the room while the
+  * stream is consumed are not seen by the walk.
+  * The room is locked only for the time needed to read each single directory, so
+  * other threads can keep on working on it in the meantime.
+  *
+  * @param dname the directory to walk, it is not included in the results
+  * @param pool  if not null, the subdirectories of each visited directory are read
+  *              and decoded in parallel on this pool, ahead of the consumer
+  * @return      the stream of entries, empty if dname is not a directory. Close it
+  *              (or consume it entirely) to release the snapshot
+  */
+ public Stream<TreeEntry> walkTree(String dname, ForkJoinPool pool)
+ {
+  TreeWalk walk=null;
+
+  synchronized (this)
+  {
+   if (pathOk(dname))
+   {
+    Directory dir=getDirectoryFromCache(dname);
+    if (dir!=null)
+    {
+     TreeSnapshot snapshot=new TreeSnapshot();
+     openSnapshots.add(snapshot);
+     walk=new TreeWalk(snapshot, dir.pieceId, pool);
+    }
+   }
+  }
+
+  if (walk==null) return Stream.empty();
+  return StreamSupport.stream(walk, false).onClose(walk::close);
+ }
+
+
+
+ // must be called (holding the monitor) before a directory piece is changed or removed
+ private void preserveForSnapshots(long pieceId)
+ {
+  if (pieceId<0 || openSnapshots.isEmpty()) return;
+  byte bytes[]=null;
+
+  for (TreeSnapshot snapshot : openSnapshots)
+  {
+   if (snapshot.needsPreImage(pieceId))
+   {
+    if (bytes==null) bytes=pbRoom.getPiece(pieceId);
+    snapshot.preImages.put(pieceId, bytes);
+   }
+  }
+ }
 
-   for (t=0;t<len;t++)
+
+ private Directory readSnapshotDirectory(TreeSnapshot snapshot, long pieceId)
+ {
+  byte bytes[];
+
+  synchronized (this)
+  {
+   bytes=snapshot.preImages.remove(pieceId);
+   snapshot.read.add(pieceId);
+   if (bytes==null) bytes=pbRoom.getPiece(pieceId);
+  }
+
+  // decoding happens outside the monitor
+  Directory res=(Directory)fromBytes(bytes);
+  res.pieceId=pieceId;
+  return res;
+ }
+
+
+ private synchronized void closeSnapshot(TreeSnapshot snapshot)
+ {
+  openSnapshots.remove(snapshot);
+  snapshot.preImages.clear();
+ }
+
+
+
+ // only accessed holding the FileSystemRoom monitor
+ private static class TreeSnapshot
+ {
+  final HashMap<Long, byte[]> preImages=new HashMap<>();
+  final HashSet<Long> read=new HashSet<>();
+
+  boolean needsPreImage(long pieceId)
+  {
+   return !read.contains(pieceId) && !preImages.containsKey(pieceId);
+  }
+ }
+
+
+
+ private class TreeWalk extends Spliterators.AbstractSpliterator<TreeEntry>
+ {
+  private final TreeSnapshot snapshot;
+  private final ForkJoinPool pool;
+  private final ArrayDeque<TreeWalkFrame> stack=new ArrayDeque<>();
+  private boolean closed=false;
+
+
+  TreeWalk(TreeSnapshot snapshot, long rootPieceId, ForkJoinPool pool)
+  {
+   super(Long.MAX_VALUE, ORDERED | NONNULL);
+   this.snapshot=snapshot;
+   this.pool=pool;
+   stack.push(new TreeWalkFrame("", readSnapshotDirectory(snapshot, rootPieceId)));
+  }
+
+
+  public boolean tryAdvance(Consumer<? super TreeEntry> action)
+  {
+   while (!closed && !stack.isEmpty())
    {
-    tmp=subDir+files[t];
-    al.add(tmp);
-    tmp=root+tmp;
-    listTheTree(tmp, root, subDir+files[t]+separatorS, al);
+    TreeWalkFrame frame=stack.peek();
+
+    if (frame.next>=frame.dir.items.size())
+    {
+     stack.pop();
+    }
+    else
+    {
+     int idx=frame.next++;
+     DirectoryItem di=frame.dir.items.get(idx);
+     String path=frame.prefix+di.realName;
+     boolean isDir=(di.type==0);
+
+     if (isDir)
+     {
+      Directory sub=((frame.prefetched!=null && frame.prefetched[idx]!=null)
+                     ?frame.prefetched[idx].join()
+                     :readSnapshotDirectory(snapshot, di.pieceId));
+
+      stack.push(new TreeWalkFrame(path+separatorS, sub));
+     }
+
+     if (isNotBlank(di.realName))
+     {
+      action.accept(new TreeEntry(path, di.realName, isDir));
+      return true;
+     }
+    }
+   }
+
+   close();
+   return false;
+  }
+
+
+  void close()
+  {
+   if (!closed)
+   {
+    closed=true;
+
+    for (TreeWalkFrame frame : stack)
+    {
+     if (frame.prefetched!=null)
+     {
+      for (ForkJoinTask<Directory> task : frame.prefetched)
+      {
+       if (task!=null) task.cancel(false);
+      }
+     }
+    }
+
+    stack.clear();
+    closeSnapshot(snapshot);
+   }
+  }
+
+
+
+  private class TreeWalkFrame
+  {
+   final String prefix;
+   final Directory dir;
+   ForkJoinTask<Directory> prefetched[];
+   int next=0;
+
+
+   TreeWalkFrame(String prefix, Directory dir)
+   {
+    this.prefix=prefix;
+    this.dir=dir;
+
+    if (pool!=null)
+    {
+     int t, len=dir.items.size();
+
+     for (t=0;t<len;t++)
+     {
+      final DirectoryItem di=dir.items.get(t);
+
+      if (di.type==0)
+      {
+       if (prefetched==null) prefetched=new ForkJoinTask[len];
+       prefetched[t]=pool.submit(() -> readSnapshotDirectory(snapshot, di.pieceId));
+      }
+     }
+    }
    }
   }
 
-  return al;
  }
 
 
@@ -579,6 +825,7 @@ public class FileSystemRoom
    {
     if (!dir.isDirectory(df[1]))
     {
+     preserveForSnapshots(dir.pieceId);
      if (dir.isFile(df[1])) dir.deleteFile(pbRoom, df[1]);
      res=dir.saveInFile(pbRoom, df[1], data);
     }
@@ -247,6 +247,19 @@ public class IOExtras
  }
 
 
+ // typed, column chunked and streamed: see RamTableCodec
+ public static void writeBinaryRamTable(MinimalWriter mw, RamTable rt, int compression)
+ {
+  RamTableCodec.write(rt, mw, compression);
+ }
+
+
+ public static RamTable readBinaryRamTable(MinimalReader mr)
+ {
+  return RamTableCodec.read(mr);
+ }
+
+
  public static boolean writeHashtable(MinimalWriter mw, Hashtable ht)
  {
   boolean res=false;
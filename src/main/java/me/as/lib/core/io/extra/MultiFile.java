@@ -19,15 +19,10 @@ package me.as.lib.core.io.extra;
 
 import me.as.lib.core.extra.QuickSortExtras;
 import me.as.lib.core.lang.StringExtras;
-import me.as.lib.core.system.FileSystemExtras;
 
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.io.*;
 
-import static me.as.lib.core.lang.ByteExtras.fromBytes;
-import static me.as.lib.core.lang.ByteExtras.toBytes;
-import static me.as.lib.core.lang.ByteExtras.unZipBytes;
-import static me.as.lib.core.lang.ByteExtras.zipBytes;
 import static me.as.lib.core.lang.StringExtras.defaultCharsetName;
 import static me.as.lib.core.lang.StringExtras.doTheyMatch;
 import static me.as.lib.core.lang.StringExtras.hasChars;
@@ -37,10 +32,8 @@ import static me.as.lib.core.lang.StringExtras.splitLast;
 
 public class MultiFile
 {
- private static final HashMap<String, ArrayList<MultiFileEntry>> multiFileEntries=new HashMap<String, ArrayList<MultiFileEntry>>();
- private static final HashMap<String, HashMap<String, MultiFileEntry>> multiFileEntriesHashMap=new HashMap<String, HashMap<String, MultiFileEntry>>();
  private String multiFilePath;
- private MultiFileEntry lastFound_MultiFileEntry=null;
+ private MultiFileCodec codec=MultiFileCodec.DEFLATE;
 
  public MultiFile(String multiFilePath)
  {
@@ -53,140 +46,67 @@ public class MultiFile
   return multiFilePath;
  }
 
- private String adjustFileName(String fileName)
+
+ public MultiFileCodec getCodec()
  {
-  fileName=replace(fileName, "\\", "/");
-  fileName=replace(fileName, "//", "/");
-  if (!fileName.startsWith("/")) fileName="/"+fileName;
-  return fileName;
+  return codec;
  }
 
 
- private HashMap<String, MultiFileEntry> getEntriesHashMap()
+ /**
+  * The codec used by saveInFile when none is given, MultiFileCodec.DEFLATE by default.
+  * Files already in the archive keep the codec they were written with.
+  */
+ public void setCodec(MultiFileCodec codec)
  {
-  grantEntries();
-  return multiFileEntriesHashMap.get(multiFilePath);
+  this.codec=((codec!=null)?codec:MultiFileCodec.DEFLATE);
  }
 
-
- private ArrayList<MultiFileEntry> grantEntries()
+ private String adjustFileName(String fileName)
  {
-  ArrayList<MultiFileEntry> res;
-
-  synchronized (multiFileEntries)
-  {
-   res=multiFileEntries.get(multiFilePath);
-
-   if (res==null)
-   {
-    HashMap<String, MultiFileEntry> mfeHashMap=new HashMap<String, MultiFileEntry>();
-
-    res=new ArrayList<MultiFileEntry>();
-    long multiFileLength=0;
-
-    if (FileSystemExtras.exists(multiFilePath))
-    {
-     multiFileLength=FileSystemExtras.fileLength(multiFilePath);
-    }
-
-    if (multiFileLength==0) FileSystemExtras.deleteFile(multiFilePath);
-    else
-    {
-     try
-     {
-      RandomAccessFile raf=new RandomAccessFile(multiFilePath, "r");
-      MultiFileEntry mfe;
-      boolean moreEntries;
-      int curPos=0;
-
-      do
-      {
-       res.add(mfe=readEntry(raf));
-
-       mfe.entry_position_in_MultiFile=curPos;curPos+=mfe.entryBytesLength;
-       mfe.fileData_position_in_MultiFile=curPos;curPos+=(int)mfe.fileLength;
-
-       if (!mfe.isDeleted) mfeHashMap.put(mfe.fileName, mfe);
-
-       moreEntries=(mfe.fileLength+raf.getFilePointer()<multiFileLength);
-       if (moreEntries) raf.skipBytes((int)mfe.fileLength);
-      } while (moreEntries);
-
-      raf.close();
-     }
-     catch (Throwable tr)
-     {
-      throw new me.as.lib.core.io.IOException(tr);
-     }
-    }
+  fileName=replace(fileName, "\\", "/");
+  fileName=replace(fileName, "//", "/");
+  if (!fileName.startsWith("/")) fileName="/"+fileName;
+  return fileName;
+ }
 
-    multiFileEntries.put(multiFilePath, res);
-    multiFileEntriesHashMap.put(multiFilePath, mfeHashMap);
-//    debugEntries(res);
-   }
-  }
 
-  return res;
+ // all the MultiFile instances on the same path share the same archive (and its locks)
+ private MultiFileArchive archive()
+ {
+  return MultiFileArchive.get(multiFilePath);
  }
 
 
+ /**
+  * Writes the index footer, so that the next time the archive is opened (even by another process)
+  * its entries need not to be scanned, and closes the file. The archive will be reopened on
+  * the next access.
+  */
  public void dispose()
  {
-  synchronized (multiFileEntries)
-  {
-   multiFileEntries.remove(multiFilePath);
-   multiFileEntriesHashMap.remove(multiFilePath);
-  }
+  archive().unload();
  }
 
 
- private void writeEntry(RandomAccessFile raf, MultiFileEntry mfe)
+ /**
+  * Writes the index footer and forces all the changes to disk, the archive is kept open.
+  */
+ public void flush()
  {
-  synchronized (multiFileEntries)
-  {
-   try
-   {
-    long ifp=raf.getFilePointer();
-    raf.writeBoolean(mfe.isDeleted);
-    raf.writeLong(mfe.fileLength);
-    byte data[]=toBytes(mfe.fileName);
-    raf.writeInt(data.length);
-    raf.write(data);
-    mfe.entryBytesLength=(int)(raf.getFilePointer()-ifp);
-    mfe.fileData_position_in_MultiFile=mfe.entry_position_in_MultiFile+mfe.entryBytesLength;
-   }
-   catch (Throwable tr)
-   {
-    throw new me.as.lib.core.io.IOException(tr);
-   }
-  }
+  archive().flush();
  }
 
 
- private MultiFileEntry readEntry(RandomAccessFile raf)
+ /**
+  * Rewrites the archive dropping the space held by deleted (or overwritten) files.
+  * This also happens by itself, in background, when that space grows over half of the archive.
+  *
+  * @return false if a compaction was already running
+  */
+ public boolean compact()
  {
-  MultiFileEntry res=new MultiFileEntry();
-
-  synchronized (multiFileEntries)
-  {
-   try
-   {
-    long ifp=raf.getFilePointer();
-    res.isDeleted=raf.readBoolean();
-    res.fileLength=raf.readLong();
-    int nameLen=raf.readInt();
-    byte data[]=new byte[nameLen];
-    raf.read(data);
-    res.fileName=(String)fromBytes(data);
-    res.entryBytesLength=(int)(raf.getFilePointer()-ifp);
-   }
-   catch (Throwable tr)
-   {
-    throw new me.as.lib.core.io.IOException(tr);
-   }
-  }
-
-  return res;
+  return archive().compact();
  }
 
 
@@ -198,222 +118,41 @@ public class MultiFile
 
  public boolean saveInFile(String fileName, byte data[])
  {
-  boolean res;
-  fileName=adjustFileName(fileName);
-
-  try
-  {
-   synchronized (multiFileEntries)
-   {
-    deleteFile(fileName);
-    ArrayList<MultiFileEntry> entries=grantEntries();
-    MultiFileEntry mfe=new MultiFileEntry();
-    mfe.isDeleted=false;
-
-    int dlen=((data!=null)?data.length:0);
-    if (dlen>0)
-    {
-     data=zipBytes(data);
-     dlen=data.length;
-    }
-
-    mfe.fileLength=((data!=null)?data.length:0);
-    mfe.fileName=fileName;
-
-    if (entries.size()>0)
-    {
-     MultiFileEntry pmfe=entries.get(entries.size()-1);
-     mfe.entry_position_in_MultiFile=pmfe.fileData_position_in_MultiFile+(int)pmfe.fileLength;
-    }
-    else
-    {
-     mfe.entry_position_in_MultiFile=0;
-    }
-
-    entries.add(mfe);
-    getEntriesHashMap().put(mfe.fileName, mfe);
-
-
-    long multiFileLength=0;
-    if (FileSystemExtras.exists(multiFilePath)) multiFileLength=FileSystemExtras.fileLength(multiFilePath);
-    RandomAccessFile raf=new RandomAccessFile(multiFilePath, "rw");
-    if (multiFileLength>0) raf.seek(multiFileLength);
-    writeEntry(raf, mfe);
-    raf.write(data);
-    raf.close();
-    res=true;
-   }
-  }
-  catch (Throwable tr)
-  {
-   throw new me.as.lib.core.io.IOException(tr);
-  }
-
-  return res;
- }
-
-
-
-
- private int getFileEntryBytesPos(String fileName)
- {
-  return _getBytesPos(fileName, true);
- }
-
- private int getFileBytesPos(String fileName)
- {
-  return _getBytesPos(fileName, false);
+  return saveInFile(fileName, data, codec);
  }
 
 
- private int _speed_getBytesPos(String fileName, boolean entry)
+ // a null codec means the one of getCodec()
+ public boolean saveInFile(String fileName, byte data[], MultiFileCodec codec)
  {
-  int res=-1;
-
-  synchronized (multiFileEntries)
-  {
-   HashMap<String, MultiFileEntry> ehm=getEntriesHashMap();
-   if (ehm!=null)
-   {
-    MultiFileEntry mfe=ehm.get(fileName);
-    if (mfe!=null)
-    {
-     lastFound_MultiFileEntry=mfe;
-     res=((entry)?mfe.entry_position_in_MultiFile:mfe.fileData_position_in_MultiFile);
-    }
-   }
-  }
-
-  return res;
+  archive().write(adjustFileName(fileName), data, ((codec!=null)?codec:this.codec));
+  return true;
  }
 
 
- private int _getBytesPos(String fileName, boolean entry)
- {
-//  int res1=_slow_getBytesPos(fileName, entry);
-  int res2=_speed_getBytesPos(fileName, entry);
-
-//  if (res1!=res2)
-//  {
-//   System.out.println("ERRRRRRRRRRRRROR _________________----> res1= "+res1+"   but  res2="+res2);
-//  }
-//  return res1;
-  return res2;
- }
-
-
- private int _slow_getBytesPos(String fileName, boolean entry)
- {
-  synchronized (multiFileEntries)
-  {
-   int res=0;
-   ArrayList<MultiFileEntry> entries=grantEntries();
-
-   for (MultiFileEntry mfe : entries)
-   {
-    if (!mfe.isDeleted && StringExtras.areEqual(fileName, mfe.fileName, false))
-    {
-     if (!entry) res+=mfe.entryBytesLength;
-     lastFound_MultiFileEntry=mfe;
-     return res;
-    }
-
-    res+=mfe.entryBytesLength;
-    res+=mfe.fileLength;
-   }
-  }
-
-  return -1;
- }
-
-
-
- private MultiFileEntry getMultiFileEntry(String fileName)
- {
-  synchronized (multiFileEntries)
-  {
-   if (lastFound_MultiFileEntry!=null && StringExtras.areEqual(lastFound_MultiFileEntry.fileName, fileName))
-   {
-    return lastFound_MultiFileEntry;
-   }
-   else
-   {
-    HashMap<String, MultiFileEntry> ehm=getEntriesHashMap();
-    lastFound_MultiFileEntry=ehm.get(fileName);
-    return lastFound_MultiFileEntry;
-   }
-  }
- }
-
-
-
-/*
- private MultiFileEntry getMultiFileEntry(String fileName)
- {
-  synchronized (multiFileEntries)
-  {
-   if (lastFound_MultiFileEntry!=null && StringExtras.areEqual(lastFound_MultiFileEntry.fileName, fileName))
-   {
-    return lastFound_MultiFileEntry;
-   }
-   else
-   {
-    ArrayList<MultiFileEntry> entries=grantEntries();
-
-    for (MultiFileEntry mfe : entries)
-    {
-     if (!mfe.isDeleted && StringExtras.areEqual(fileName, mfe.fileName, false))
-     {
-      lastFound_MultiFileEntry=mfe;
-      return mfe;
-     }
-    }
-   }
-  }
-
-  return null;
- }
-*/
-
-
  public boolean exists(String fileName)
  {
-  return (getFileBytesPos(adjustFileName(fileName))>0);
+  return archive().exists(adjustFileName(fileName));
  }
 
 
  public byte[] loadFromFile(String fileName)
  {
-  byte res[];
-  fileName=adjustFileName(fileName);
+  return archive().read(adjustFileName(fileName));
+ }
 
-  try
-  {
-   synchronized (multiFileEntries)
-   {
-    int pos=getFileBytesPos(fileName);
-    if (pos>=0)
-    {
-     MultiFileEntry mfe=getMultiFileEntry(fileName);
-     res=new byte[(int)mfe.fileLength];
 
-     if (mfe.fileLength>0)
-     {
-      RandomAccessFile raf=new RandomAccessFile(multiFilePath, "r");
-      raf.seek(pos);
-      raf.read(res);
-      raf.close();
-      res=unZipBytes(res);
-     }
-    } else res=null;
-   }
-  }
-  catch (Throwable tr)
-  {
-   throw new me.as.lib.core.io.IOException(tr);
-  }
-
-  return res;
+ /**
+  * Like loadFromFile but files saved with MultiFileCodec.STORED (or left uncompressed by
+  * MultiFileCodec.AUTO) are returned as a read only view of a memory mapping of the
+  * archive, with no copy at all (on Windows, where a mapped file could no longer be
+  * truncated or compacted, they are copied in a heap buffer like the others).
+  *
+  * @return the content of the file or null if it does not exist
+  */
+ public ByteBuffer loadBufferFromFile(String fileName)
+ {
+  return archive().readBuffer(adjustFileName(fileName));
  }
 
 
@@ -443,35 +182,7 @@ public class MultiFile
 
  public boolean deleteFile(String fileName)
  {
-  boolean res;
-  fileName=adjustFileName(fileName);
-
-  try
-  {
-   synchronized (multiFileEntries)
-   {
-    int pos=getFileEntryBytesPos(fileName);
-    if (pos>=0)
-    {
-     MultiFileEntry mfe=getMultiFileEntry(fileName);
-     mfe.isDeleted=true;
-     getEntriesHashMap().remove(mfe.fileName);
-
-     RandomAccessFile raf=new RandomAccessFile(multiFilePath, "rw");
-     raf.seek(pos);
-     raf.writeBoolean(true);
-     raf.close();
-     res=true;
-
-    } else res=false;
-   }
-  }
-  catch (Throwable tr)
-  {
-   throw new me.as.lib.core.io.IOException(tr);
-  }
-
-  return res;
+  return archive().delete(adjustFileName(fileName));
  }
 
 
@@ -486,17 +197,9 @@ public class MultiFile
   if (isFile(path)) return false;
   else
   {
-   HashMap<String, MultiFileEntry> ehm=getEntriesHashMap();
-
    if (!path.endsWith("/")) path+="/";
-
-   for (String p : ehm.keySet())
-   {
-    if (p.startsWith(path)) return true;
-   }
+   return archive().existsStartingWith(path);
   }
-
-  return false;
  }
 
 
@@ -504,7 +207,7 @@ public class MultiFile
 
  private String[] _list(String dname, boolean files, boolean directories, String mask, boolean treeMode)
  {
-  HashMap<String, MultiFileEntry> ehm=getEntriesHashMap();
+  ArrayList<String> names=archive().names();
 
   // note (1)
   // these two HashMaps are used just to avoid the extreme slowiness of ArrayList.contains
@@ -523,7 +226,7 @@ public class MultiFile
   }
 
 
-  for (String op : ehm.keySet())
+  for (String op : names)
   {
    if (!op.startsWith(dname)) continue;
    p=op;
@@ -637,51 +340,4 @@ public class MultiFile
 
 
 
- // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
-
-
- private void debugEntries(ArrayList<MultiFileEntry> entries)
- {
-  System.out.println("------ MultiFile: "+multiFilePath);
-  System.out.println("------ "+entries.size()+" entries");
-
-  int c=0;
-
-  for (MultiFileEntry mfe : entries)
-  {
-   c++;
-
-//   if (mfe.isDeleted)
-   {
-    System.out.println("-- entry "+c+" deleted: "+mfe.isDeleted+
-                       "  fileName: "+mfe.fileName+
-                       "  fileLength: "+mfe.fileLength+
-                       "  (ebl: "+mfe.entryBytesLength+")");
-   }
-  }
- }
-
-
- // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
-
-
- class MultiFileEntry
- {
-  boolean isDeleted;
-  long fileLength;
-  String fileName;
-
-  int entryBytesLength;
-
-
-  // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
-  // used only at runtime
-  int entry_position_in_MultiFile;
-  int fileData_position_in_MultiFile;
-
- }
-
-
-
-
 }
@@ -0,0 +1,950 @@
+/*
+ * Copyright 2019 Antonio Sorrentini
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package me.as.lib.core.io.extra;
+
+
+import me.as.lib.core.concurrent.ThreadExtras;
+import me.as.lib.core.system.OSExtras;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static me.as.lib.core.lang.ByteExtras.fromBytes;
+import static me.as.lib.core.lang.ByteExtras.toBytes;
+import static me.as.lib.core.lang.ByteExtras.unZipBytes;
+
+
+/**
+ * The storage engine behind {@link MultiFile}, one instance per archive path.
+ *
+ * The file is a sequence of entries, each one is:
+ *   [byte flags][long dataLength][int nameLength][name, as ByteExtras.toBytes(String)][data]
+ * where flags is a combination of flagDeleted and flagStored (data is zipped unless flagStored
+ * is set, so entries written before flagStored existed are read as they always were) and,
+ * after the last entry, optionally an index footer:
+ *   [int count]{[int nameLength][name, UTF-8][long entryPosition][int entryHeaderLength][long dataLength][byte flags]}*
+ *   [long garbageBytes][long footerPosition][long footerMagic]
+ * When the footer is there the archive opens without scanning the entries. The footer is
+ * dropped as soon as the archive is changed and written again by flush, unload and compaction,
+ * so an archive that was not closed properly is simply scanned as it always was.
+ */
+class MultiFileArchive
+{
+ private static final ConcurrentHashMap<String, MultiFileArchive> archives=new ConcurrentHashMap<>();
+
+ private static final long footerMagic=0x4D756C7469466932L; // "MultiFi2"
+ private static final int trailerLength=16;
+ private static final int entryFixedHeaderLength=13;
+
+ private static final byte flagDeleted = 1;
+ private static final byte flagStored  = 2;
+
+ // Windows refuses to truncate or replace a file while a mapping of it is alive (and it is
+ // alive until garbage collected), which flush, writes after a flush and compaction all do
+ private static final boolean canMap=!OSExtras.isSomeMicrosoftWindows();
+
+ // a background compaction starts when deleted entries hold at least this many bytes...
+ private static final long compactionMinGarbageBytes=1024*1024;
+ // ...and at least this fraction of the archive
+ private static final double compactionMinGarbageRatio=0.5;
+
+
+ static MultiFileArchive get(String path)
+ {
+  return archives.computeIfAbsent(path, MultiFileArchive::new);
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+ private final String path;
+ private final ReentrantReadWriteLock lock=new ReentrantReadWriteLock();
+ private final AtomicBoolean compacting=new AtomicBoolean(false);
+
+ // all the following only accessed holding the lock
+ private boolean loaded=false;
+ private FileChannel channel=null;
+ private boolean writable;
+ private HashMap<String, Entry> index;
+ private long dataEnd;          // where the next entry will be written
+ private long garbageBytes;     // bytes held by deleted entries
+ private boolean tailDirty;     // there is something (a footer or a truncated entry) after dataEnd
+ private boolean footerCurrent; // the footer after dataEnd describes the current index
+
+ // read only mapping of the start of the file, guarded by this
+ private MappedByteBuffer mapped=null;
+
+
+ private MultiFileArchive(String path)
+ {
+  this.path=path;
+ }
+
+
+ String getPath()
+ {
+  return path;
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ byte[] read(String name)
+ {
+  byte res[];
+  boolean stored;
+
+  lockForRead();
+
+  try
+  {
+   Entry e=index.get(name);
+   if (e==null) return null;
+   ByteBuffer bb=ByteBuffer.allocate((int)e.dataLength);
+   readFully(channel, bb, e.dataPosition());
+   res=bb.array();
+   stored=e.stored;
+  }
+  catch (Throwable tr)
+  {
+   throw new me.as.lib.core.io.IOException(tr);
+  }
+  finally
+  {
+   lock.readLock().unlock();
+  }
+
+  if (!stored && res.length>0) res=unZipBytes(res);
+  return res;
+ }
+
+
+ /**
+  * Stored entries are returned as read only slices of a memory mapping of the archive,
+  * without copying them; the others are unzipped in a new heap buffer.
+  * Entries are never changed in place, so a slice stays valid even if its entry is
+  * later overwritten, deleted or the archive is compacted.
+  * On Windows stored entries are copied in a heap buffer too: a live mapping would make
+  * the following truncations and the replacement of the file by compaction fail.
+  */
+ ByteBuffer readBuffer(String name)
+ {
+  lockForRead();
+
+  try
+  {
+   Entry e=index.get(name);
+   if (e==null) return null;
+
+   if (e.stored && canMap)
+   {
+    if (e.dataLength==0) return ByteBuffer.allocate(0).asReadOnlyBuffer();
+    return mappedSlice(e.dataPosition(), e.dataLength);
+   }
+  }
+  catch (Throwable tr)
+  {
+   throw new me.as.lib.core.io.IOException(tr);
+  }
+  finally
+  {
+   lock.readLock().unlock();
+  }
+
+  byte res[]=read(name);
+  return ((res!=null)?ByteBuffer.wrap(res):null);
+ }
+
+
+ boolean exists(String name)
+ {
+  lockForRead();
+
+  try
+  {
+   return index.containsKey(name);
+  }
+  finally
+  {
+   lock.readLock().unlock();
+  }
+ }
+
+
+ boolean existsStartingWith(String prefix)
+ {
+  lockForRead();
+
+  try
+  {
+   for (String name : index.keySet())
+   {
+    if (name.startsWith(prefix)) return true;
+   }
+
+   return false;
+  }
+  finally
+  {
+   lock.readLock().unlock();
+  }
+ }
+
+
+ ArrayList<String> names()
+ {
+  lockForRead();
+
+  try
+  {
+   return new ArrayList<>(index.keySet());
+  }
+  finally
+  {
+   lock.readLock().unlock();
+  }
+ }
+
+
+ void write(String name, byte data[], MultiFileCodec codec)
+ {
+  boolean compact;
+  boolean stored=true;
+
+  if (data==null) data=new byte[0];
+
+  // encoding happens outside the lock
+  byte zipped[]=codec.encode(data);
+  if (zipped!=null)
+  {
+   data=zipped;
+   stored=false;
+  }
+
+  lockForWrite();
+
+  try
+  {
+   grantWritable();
+   dropTail();
+
+   Entry old=index.remove(name);
+   if (old!=null) markDeleted(old);
+
+   Entry e=new Entry(name, data.length, dataEnd);
+   e.stored=stored;
+   byte header[]=e.header();
+   writeFully(channel, ByteBuffer.wrap(header), dataEnd);
+   writeFully(channel, ByteBuffer.wrap(data), dataEnd+header.length);
+   dataEnd+=e.length();
+   index.put(name, e);
+
+   compact=needsCompaction();
+  }
+  catch (Throwable tr)
+  {
+   throw new me.as.lib.core.io.IOException(tr);
+  }
+  finally
+  {
+   lock.writeLock().unlock();
+  }
+
+  if (compact) compactInBackground();
+ }
+
+
+ boolean delete(String name)
+ {
+  boolean compact;
+  lockForWrite();
+
+  try
+  {
+   Entry e=index.get(name);
+   if (e==null) return false;
+
+   grantWritable();
+   dropTail();
+   index.remove(name);
+   markDeleted(e);
+
+   compact=needsCompaction();
+  }
+  catch (Throwable tr)
+  {
+   throw new me.as.lib.core.io.IOException(tr);
+  }
+  finally
+  {
+   lock.writeLock().unlock();
+  }
+
+  if (compact) compactInBackground();
+  return true;
+ }
+
+
+ /**
+  * Writes the index footer (if needed) and forces everything to disk.
+  */
+ void flush()
+ {
+  lock.writeLock().lock();
+
+  try
+  {
+   if (loaded) writeFooterIfNeeded();
+  }
+  catch (Throwable tr)
+  {
+   throw new me.as.lib.core.io.IOException(tr);
+  }
+  finally
+  {
+   lock.writeLock().unlock();
+  }
+ }
+
+
+ /**
+  * Flushes, closes the file and frees the index: it will be loaded again at the next access.
+  */
+ void unload()
+ {
+  lock.writeLock().lock();
+
+  try
+  {
+   if (loaded)
+   {
+    try
+    {
+     writeFooterIfNeeded();
+    }
+    finally
+    {
+     dropMapping();
+     closeChannel();
+     index=null;
+     loaded=false;
+    }
+   }
+  }
+  catch (Throwable tr)
+  {
+   throw new me.as.lib.core.io.IOException(tr);
+  }
+  finally
+  {
+   lock.writeLock().unlock();
+  }
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ private void lockForRead()
+ {
+  lock.readLock().lock();
+
+  if (!loaded)
+  {
+   lock.readLock().unlock();
+   lock.writeLock().lock();
+
+   try
+   {
+    if (!loaded) load();
+    lock.readLock().lock(); // downgrading
+   }
+   finally
+   {
+    lock.writeLock().unlock();
+   }
+  }
+ }
+
+
+ private void lockForWrite()
+ {
+  lock.writeLock().lock();
+
+  try
+  {
+   if (!loaded) load();
+  }
+  catch (Throwable tr)
+  {
+   lock.writeLock().unlock();
+   throw tr;
+  }
+ }
+
+
+ private void load()
+ {
+  index=new HashMap<>();
+  dataEnd=0;
+  garbageBytes=0;
+  tailDirty=false;
+  footerCurrent=false;
+
+  try
+  {
+   File f=new File(path);
+
+   if (f.exists() && f.length()==0) f.delete();
+   if (f.exists())
+   {
+    openChannel(false);
+    long size=channel.size();
+
+    if (!readFooter(size))
+    {
+     scanEntries(size);
+    }
+   }
+  }
+  catch (Throwable tr)
+  {
+   closeChannel();
+   throw new me.as.lib.core.io.IOException(tr);
+  }
+
+  loaded=true;
+ }
+
+
+ private boolean readFooter(long size)
+ {
+  if (size<trailerLength) return false;
+
+  try
+  {
+   ByteBuffer trailer=ByteBuffer.allocate(trailerLength);
+   readFully(channel, trailer, size-trailerLength);
+   trailer.flip();
+   long footerPosition=trailer.getLong();
+   if (trailer.getLong()!=footerMagic || footerPosition<0 || footerPosition>size-trailerLength) return false;
+
+   ByteBuffer footer=ByteBuffer.allocate((int)(size-trailerLength-footerPosition));
+   readFully(channel, footer, footerPosition);
+   footer.flip();
+
+   int t, len=footer.getInt();
+
+   for (t=0;t<len;t++)
+   {
+    byte name[]=new byte[footer.getInt()];
+    footer.get(name);
+    Entry e=new Entry(new String(name, StandardCharsets.UTF_8), 0, footer.getLong());
+    e.headerLength=footer.getInt();
+    e.dataLength=footer.getLong();
+    e.stored=((footer.get() & flagStored)!=0);
+    index.put(e.name, e);
+   }
+
+   garbageBytes=footer.getLong();
+   dataEnd=footerPosition;
+   tailDirty=true;
+   footerCurrent=true;
+   return true;
+  }
+  catch (Throwable tr)
+  {
+   // a damaged footer is not a damaged archive, let's scan it
+   index.clear();
+   garbageBytes=0;
+   return false;
+  }
+ }
+
+
+ private void scanEntries(long size) throws IOException
+ {
+  long pos=0;
+  ByteBuffer fixed=ByteBuffer.allocate(entryFixedHeaderLength);
+
+  while (pos+entryFixedHeaderLength<=size)
+  {
+   fixed.clear();
+   readFully(channel, fixed, pos);
+   fixed.flip();
+   byte flags=fixed.get();
+   boolean deleted=((flags & flagDeleted)!=0);
+   long dataLength=fixed.getLong();
+   int nameLength=fixed.getInt();
+
+   long length=entryFixedHeaderLength+nameLength+dataLength;
+   if (nameLength<0 || dataLength<0 || pos+length>size) break; // an entry truncated by a crash
+
+   ByteBuffer name=ByteBuffer.allocate(nameLength);
+   readFully(channel, name, pos+entryFixedHeaderLength);
+
+   Entry e=new Entry((String)fromBytes(name.array()), dataLength, pos);
+   e.headerLength=entryFixedHeaderLength+nameLength;
+   e.stored=((flags & flagStored)!=0);
+
+   if (deleted) garbageBytes+=length;
+   else
+   {
+    Entry old=index.put(e.name, e);
+    if (old!=null) garbageBytes+=old.length();
+   }
+
+   pos+=length;
+  }
+
+  dataEnd=pos;
+  tailDirty=(size>dataEnd);
+ }
+
+
+ private void openChannel(boolean create) throws IOException
+ {
+  Path p=Paths.get(path);
+
+  try
+  {
+   channel=(create)
+    ?FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)
+    :FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE);
+   writable=true;
+  }
+  catch (AccessDeniedException ade)
+  {
+   channel=FileChannel.open(p, StandardOpenOption.READ);
+   writable=false;
+  }
+ }
+
+
+ private void closeChannel()
+ {
+  if (channel!=null)
+  {
+   try {channel.close();} catch (Throwable ignore){}
+   channel=null;
+  }
+ }
+
+
+ private void grantWritable() throws IOException
+ {
+  if (channel==null) openChannel(true);
+  if (!writable) throw new me.as.lib.core.io.IOException("MultiFile '"+path+"' is read only");
+ }
+
+
+ // called before any change: the footer no longer describes the archive
+ private void dropTail() throws IOException
+ {
+  if (tailDirty)
+  {
+   channel.truncate(dataEnd);
+   tailDirty=false;
+  }
+
+  footerCurrent=false;
+ }
+
+
+ private void markDeleted(Entry e) throws IOException
+ {
+  writeTombstone(channel, e, e.position);
+  garbageBytes+=e.length();
+ }
+
+
+ private static void writeTombstone(FileChannel ch, Entry e, long position) throws IOException
+ {
+  writeFully(ch, ByteBuffer.wrap(new byte[]{(byte)(e.flags() | flagDeleted)}), position);
+ }
+
+
+ private void writeFooterIfNeeded() throws IOException
+ {
+  if (channel!=null && writable)
+  {
+   if (!footerCurrent)
+   {
+    writeFooter(channel, dataEnd, null, garbageBytes);
+    tailDirty=true;
+    footerCurrent=true;
+   }
+
+   channel.force(false);
+  }
+ }
+
+
+ private void writeFooter(FileChannel ch, long footerPosition, Map<Entry, Long> positions, long garbage) throws IOException
+ {
+  ByteArrayOutputStream bos=new ByteArrayOutputStream();
+  DataOutputStream dos=new DataOutputStream(bos);
+
+  dos.writeInt(index.size());
+
+  for (Entry e : index.values())
+  {
+   byte name[]=e.name.getBytes(StandardCharsets.UTF_8);
+   dos.writeInt(name.length);
+   dos.write(name);
+   dos.writeLong((positions!=null)?positions.get(e):e.position);
+   dos.writeInt(e.headerLength);
+   dos.writeLong(e.dataLength);
+   dos.writeByte(e.flags());
+  }
+
+  dos.writeLong(garbage);
+  dos.writeLong(footerPosition);
+  dos.writeLong(footerMagic);
+  dos.flush();
+
+  ch.truncate(footerPosition);
+  writeFully(ch, ByteBuffer.wrap(bos.toByteArray()), footerPosition);
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+ // compaction
+
+
+ private boolean needsCompaction()
+ {
+  return (garbageBytes>=compactionMinGarbageBytes &&
+          garbageBytes>=dataEnd*compactionMinGarbageRatio &&
+          !compacting.get());
+ }
+
+
+ private void compactInBackground()
+ {
+  if (compacting.compareAndSet(false, true))
+  {
+   ThreadExtras.executeOnAnotherThread(() ->
+   {
+    try
+    {
+     compactNow();
+    }
+    catch (Throwable tr)
+    {
+     tr.printStackTrace();
+    }
+    finally
+    {
+     compacting.set(false);
+    }
+   });
+  }
+ }
+
+
+ /**
+  * Rewrites the archive keeping only the live entries.
+  *
+  * @return false if a compaction was already running or the archive has been unloaded in the meantime
+  */
+ boolean compact()
+ {
+  if (!compacting.compareAndSet(false, true)) return false;
+
+  try
+  {
+   return compactNow();
+  }
+  finally
+  {
+   compacting.set(false);
+  }
+ }
+
+
+ /*
+  * The live entries are copied to a new file without holding the lock (entries are never
+  * changed in place, only tombstoned), so readers and writers go on in the meantime. Then,
+  * holding the write lock, what changed during the copy is applied to the new file (entries
+  * deleted get tombstoned, entries added get copied) and the new file replaces the old one.
+  */
+ private boolean compactNow()
+ {
+  ArrayList<Entry> live;
+  FileChannel source;
+
+  lockForRead();
+
+  try
+  {
+   if (channel==null || !writable) return false;
+   live=new ArrayList<>(index.values());
+   source=channel;
+  }
+  finally
+  {
+   lock.readLock().unlock();
+  }
+
+  live.sort(Comparator.comparingLong(e -> e.position));
+
+  Path target=Paths.get(path);
+  Path tmp=Paths.get(path+".compacting");
+  IdentityHashMap<Entry, Long> positions=new IdentityHashMap<>();
+  FileChannel out=null;
+  boolean res=false;
+
+  try
+  {
+   out=FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                             StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+   long pos=0;
+
+   for (Entry e : live)
+   {
+    copy(source, e.position, e.length(), out, pos);
+    positions.put(e, pos);
+    pos+=e.length();
+   }
+
+   lock.writeLock().lock();
+
+   try
+   {
+    if (!loaded || channel!=source) return false;
+
+    long garbage=0;
+
+    for (Entry e : live)
+    {
+     if (index.get(e.name)!=e)
+     {
+      writeTombstone(out, e, positions.get(e));
+      garbage+=e.length();
+     }
+    }
+
+    for (Entry e : index.values())
+    {
+     if (!positions.containsKey(e))
+     {
+      copy(channel, e.position, e.length(), out, pos);
+      positions.put(e, pos);
+      pos+=e.length();
+     }
+    }
+
+    writeFooter(out, pos, positions, garbage);
+    out.force(true);
+    out.close();
+    out=null;
+
+    dropMapping();
+    closeChannel();
+
+    try
+    {
+     try
+     {
+      Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+     }
+     catch (AtomicMoveNotSupportedException amnse)
+     {
+      Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+     }
+    }
+    finally
+    {
+     // either the compacted file or, if the move failed, the old one
+     openChannel(false);
+    }
+
+    for (Map.Entry<Entry, Long> me : positions.entrySet())
+    {
+     me.getKey().position=me.getValue();
+    }
+
+    dataEnd=pos;
+    garbageBytes=garbage;
+    tailDirty=true;
+    footerCurrent=true;
+    res=true;
+   }
+   finally
+   {
+    lock.writeLock().unlock();
+   }
+  }
+  catch (ClosedChannelException cce)
+  {
+   // unloaded while copying
+   res=false;
+  }
+  catch (Throwable tr)
+  {
+   throw new me.as.lib.core.io.IOException(tr);
+  }
+  finally
+  {
+   if (out!=null)
+   {
+    try {out.close();} catch (Throwable ignore){}
+   }
+
+   try {Files.deleteIfExists(tmp);} catch (Throwable ignore){}
+  }
+
+  return res;
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ // called holding at least the read lock
+ private synchronized ByteBuffer mappedSlice(long position, long length) throws IOException
+ {
+  long end=position+length;
+
+  // a single MappedByteBuffer cannot go beyond 2 GB, entries after that get their own mapping
+  if (end>Integer.MAX_VALUE)
+  {
+   return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+  }
+
+  if (mapped==null || end>mapped.capacity())
+  {
+   mapped=channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(dataEnd, Integer.MAX_VALUE));
+  }
+
+  ByteBuffer res=mapped.duplicate();
+  res.limit((int)end);
+  res.position((int)position);
+  return res.slice();
+ }
+
+
+ // called holding the write lock, when the file is about to be closed or replaced
+ private synchronized void dropMapping()
+ {
+  mapped=null;
+ }
+
+
+ private static void readFully(FileChannel ch, ByteBuffer bb, long position) throws IOException
+ {
+  while (bb.hasRemaining())
+  {
+   int r=ch.read(bb, position);
+   if (r<0) throw new EOFException();
+   position+=r;
+  }
+ }
+
+
+ private static void writeFully(FileChannel ch, ByteBuffer bb, long position) throws IOException
+ {
+  while (bb.hasRemaining())
+  {
+   position+=ch.write(bb, position);
+  }
+ }
+
+
+ private static void copy(FileChannel from, long position, long count, FileChannel to, long toPosition) throws IOException
+ {
+  to.position(toPosition);
+
+  while (count>0)
+  {
+   long done=from.transferTo(position, count, to);
+   if (done<=0) throw new EOFException();
+   position+=done;
+   count-=done;
+  }
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ static class Entry
+ {
+  final String name;
+  long dataLength;
+  long position;   // where the entry (its header) starts
+  int headerLength;
+  boolean stored;  // the data is not zipped
+
+
+  Entry(String name, long dataLength, long position)
+  {
+   this.name=name;
+   this.dataLength=dataLength;
+   this.position=position;
+  }
+
+
+  long dataPosition()
+  {
+   return position+headerLength;
+  }
+
+
+  long length()
+  {
+   return headerLength+dataLength;
+  }
+
+
+  byte flags()
+  {
+   return ((stored)?flagStored:0);
+  }
+
+
+  byte[] header() throws IOException
+  {
+   ByteArrayOutputStream bos=new ByteArrayOutputStream();
+   DataOutputStream dos=new DataOutputStream(bos);
+   byte nameBytes[]=toBytes(name);
+
+   dos.writeByte(flags());
+   dos.writeLong(dataLength);
+   dos.writeInt(nameBytes.length);
+   dos.write(nameBytes);
+   dos.flush();
+
+   byte res[]=bos.toByteArray();
+   headerLength=res.length;
+   return res;
+  }
+ }
+
+
+}
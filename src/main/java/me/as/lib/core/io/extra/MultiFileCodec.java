@@ -0,0 +1,139 @@
+/*
+ * Copyright 2019 Antonio Sorrentini
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package me.as.lib.core.io.extra;
+
+
+import java.util.zip.Deflater;
+
+import static me.as.lib.core.lang.ByteExtras.zipBytes;
+
+
+/**
+ * How {@link MultiFile} stores the content of a file: as it is (stored), deflated or,
+ * in auto mode, deflated only when this saves enough space.
+ * Stored files can be read with {@link MultiFile#loadBufferFromFile(String)} without copying them.
+ */
+public class MultiFileCodec
+{
+ // bigger files are first tried on a sample, to avoid deflating all of them for nothing
+ private static final int sampleThreshold=256*1024;
+ private static final int sampleSize=64*1024;
+
+ public static final MultiFileCodec STORED  = new MultiFileCodec(false, 0, 0);
+ public static final MultiFileCodec DEFLATE = new MultiFileCodec(true, Deflater.DEFAULT_COMPRESSION, 0);
+
+ // deflates only what shrinks by at least 10%: media, archives and the like are stored as they are
+ public static final MultiFileCodec AUTO    = auto(Deflater.DEFAULT_COMPRESSION, 0.1);
+
+
+ public static MultiFileCodec deflate(int level)
+ {
+  return new MultiFileCodec(true, level, 0);
+ }
+
+
+ /**
+  * @param level   the deflate level (0..9 or Deflater.DEFAULT_COMPRESSION)
+  * @param minGain the minimum fraction of the size (0..1) that deflating must save,
+  *                otherwise the file is stored as it is
+  */
+ public static MultiFileCodec auto(int level, double minGain)
+ {
+  return new MultiFileCodec(true, level, minGain);
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+ private final boolean deflate;
+ private final int level;
+ private final double minGain;
+
+
+ private MultiFileCodec(boolean deflate, int level, double minGain)
+ {
+  this.deflate=deflate;
+  this.level=level;
+  this.minGain=minGain;
+ }
+
+
+ public boolean isDeflating()
+ {
+  return deflate;
+ }
+
+ public int getLevel()
+ {
+  return level;
+ }
+
+ public double getMinGain()
+ {
+  return minGain;
+ }
+
+
+ /**
+  * @return the zipped data, or null if data should be stored as it is
+  */
+ byte[] encode(byte data[])
+ {
+  if (!deflate || data.length==0) return null;
+
+  if (minGain>0 && data.length>sampleThreshold && !worthDeflating(data))
+  {
+   return null;
+  }
+
+  byte res[]=zipBytes(data, level);
+
+  if (minGain>0 && res.length>data.length*(1.0-minGain))
+  {
+   res=null;
+  }
+
+  return res;
+ }
+
+
+ private boolean worthDeflating(byte data[])
+ {
+  Deflater deflater=new Deflater(level, true);
+
+  try
+  {
+   byte out[]=new byte[sampleSize+64];
+   deflater.setInput(data, (data.length-sampleSize)/2, sampleSize);
+   deflater.finish();
+
+   int deflated=0;
+   while (!deflater.finished())
+   {
+    deflated+=deflater.deflate(out);
+   }
+
+   return (deflated<=sampleSize*(1.0-minGain));
+  }
+  finally
+  {
+   deflater.end();
+  }
+ }
+
+
+}
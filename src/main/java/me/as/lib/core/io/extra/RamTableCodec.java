@@ -0,0 +1,722 @@
+/*
+ * Copyright 2019 Antonio Sorrentini
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package me.as.lib.core.io.extra;
+
+
+import me.as.lib.core.collection.RamTable;
+import me.as.lib.core.io.IOException;
+import me.as.lib.core.io.MinimalReader;
+import me.as.lib.core.io.MinimalWriter;
+import me.as.lib.core.lang.LZBlockCodec;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * A binary, typed format for RamTables, written and read a block at a time: the rows are
+ * split in chunks and every column of a chunk is a block, so only one block at a time is
+ * in memory besides the table.
+ *
+ *   header : 'R' 'T' 'B' 1, [int cols][int rows][int chunkRows][byte columnar][byte type]*cols
+ *   block  : [byte compression][int raw length][int stored length][stored bytes]
+ *
+ * The raw bytes of a block are [byte encoding][varint nulls][bitmap of the non null cells,
+ * only if nulls>0] and then the values of the non null cells:
+ *   Integer and Long columns  zig-zag varint deltas, or runs of equal values
+ *   Double columns            8 bytes each
+ *   String columns            a dictionary and a varint code per cell, or the strings
+ *                             themselves when most of them are distinct
+ *   mixed columns             BinaryOutput.writeObject
+ * The compression of a block is CompressingBytesRoom.NONE, DEFLATE or FAST, a block is
+ * stored raw when compressing it does not make it smaller.
+ */
+public class RamTableCodec
+{
+ public static final int defaultChunkRows=1 << 16;
+
+ private static final byte magic[]={'R', 'T', 'B', 1};
+
+ // the encodings of a block
+ private static final int allNulls      = 0;
+ private static final int intDeltas     = 1;
+ private static final int intRuns       = 2;
+ private static final int longDeltas    = 3;
+ private static final int longRuns      = 4;
+ private static final int doubles       = 5;
+ private static final int dictionary    = 6;
+ private static final int strings       = 7;
+ private static final int objects       = 8;
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+ // where the bytes go / come from
+
+
+ interface Sink
+ {
+  void write(byte b[], int off, int len);
+ }
+
+
+ interface Source
+ {
+  // exactly len bytes, or an exception
+  void readFully(byte b[], int off, int len);
+ }
+
+
+ static Sink sinkOf(MinimalWriter mw)
+ {
+  return (b, off, len) ->
+  {
+   if (!mw.Write(b, off, len)) throw new IOException("RamTableCodec: cannot write "+len+" bytes");
+  };
+ }
+
+
+ static Sink sinkOf(WritableByteChannel ch)
+ {
+  return (b, off, len) ->
+  {
+   try
+   {
+    ByteBuffer bb=ByteBuffer.wrap(b, off, len);
+    while (bb.hasRemaining()) ch.write(bb);
+   }
+   catch (java.io.IOException e)
+   {
+    throw new IOException(e);
+   }
+  };
+ }
+
+
+ static Source sourceOf(MinimalReader mr)
+ {
+  return (b, off, len) ->
+  {
+   while (len>0)
+   {
+    int n=mr.Read(b, off, len);
+    if (n<=0) throw new IOException("RamTableCodec: unexpected end of data");
+    off+=n;
+    len-=n;
+   }
+  };
+ }
+
+
+ static Source sourceOf(ReadableByteChannel ch)
+ {
+  return (b, off, len) ->
+  {
+   try
+   {
+    ByteBuffer bb=ByteBuffer.wrap(b, off, len);
+
+    while (bb.hasRemaining())
+    {
+     if (ch.read(bb)<0) throw new IOException("RamTableCodec: unexpected end of data");
+    }
+   }
+   catch (java.io.IOException e)
+   {
+    throw new IOException(e);
+   }
+  };
+ }
+
+
+ // =============================================================================
+ // writing
+
+
+ /**
+  * @param compression  CompressingBytesRoom.NONE, DEFLATE or FAST
+  */
+ public static void write(RamTable rt, MinimalWriter mw, int compression)
+ {
+  write(rt, sinkOf(mw), compression, defaultChunkRows);
+ }
+
+
+ public static void write(RamTable rt, WritableByteChannel ch, int compression)
+ {
+  write(rt, sinkOf(ch), compression, defaultChunkRows);
+ }
+
+
+ // the table is locked while it is written
+ static void write(RamTable rt, Sink sink, int compression, int chunkRows)
+ {
+  synchronized (rt)
+  {
+   int cols=rt.getColsCount();
+   int rows=rt.getRowsCount();
+
+   BinaryOutput bo=new BinaryOutput(Math.min(rows, chunkRows)*9+64);
+   bo.write(magic);
+   bo.writeInt(cols);
+   bo.writeInt(rows);
+   bo.writeInt(chunkRows);
+   bo.writeBoolean(rt.isColumnar());
+   for (int c=0;c<cols;c++) bo.writeByte(rt.getColumnType(c));
+   sink.write(bo.getBuffer(), 0, bo.size());
+
+   BlockWriter bw=new BlockWriter(sink, compression);
+
+   try
+   {
+    for (int first=0;first<rows;first+=chunkRows)
+    {
+     int count=Math.min(chunkRows, rows-first);
+
+     for (int c=0;c<cols;c++)
+     {
+      bo.reset();
+      encode(rt, c, first, count, bo);
+      bw.write(bo.getBuffer(), bo.size());
+     }
+    }
+   }
+   finally
+   {
+    bw.end();
+   }
+  }
+ }
+
+
+ private static void encode(RamTable rt, int col, int first, int count, BinaryOutput bo)
+ {
+  Object values[]=new Object[count];
+  int nulls=0;
+  Class type=null;
+  boolean mixed=false;
+
+  for (int r=0;r<count;r++)
+  {
+   Object o=rt.getObject(col, first+r);
+   values[r]=o;
+
+   if (o==null) nulls++;
+   else if (type==null) type=o.getClass();
+   else if (type!=o.getClass()) mixed=true;
+  }
+
+  if (nulls==count)
+  {
+   bo.writeByte(allNulls);
+   return;
+  }
+
+  int encoding;
+
+  if (mixed) encoding=objects;
+  else if (type==Integer.class) encoding=(worthRuns(values)?intRuns:intDeltas);
+  else if (type==Long.class) encoding=(worthRuns(values)?longRuns:longDeltas);
+  else if (type==Double.class) encoding=doubles;
+  else if (type==String.class) encoding=(worthDictionary(values, count-nulls)?dictionary:strings);
+  else encoding=objects;
+
+  bo.writeByte(encoding);
+  bo.writeVarInt(nulls);
+
+  if (nulls>0)
+  {
+   byte bits[]=new byte[(count+7) >>> 3];
+
+   for (int r=0;r<count;r++)
+   {
+    if (values[r]!=null) bits[r >>> 3]|=1 << (r & 7);
+   }
+
+   bo.write(bits);
+  }
+
+  switch (encoding)
+  {
+   case intDeltas:
+   case longDeltas:
+   {
+    long prev=0;
+
+    for (Object o : values)
+    {
+     if (o!=null)
+     {
+      long v=((Number)o).longValue();
+      bo.writeZigZagLong(v-prev);
+      prev=v;
+     }
+    }
+   } break;
+
+   case intRuns:
+   case longRuns:
+   {
+    long run=0, value=0;
+
+    for (Object o : values)
+    {
+     if (o!=null)
+     {
+      long v=((Number)o).longValue();
+
+      if (run>0 && v==value) run++;
+      else
+      {
+       if (run>0)
+       {
+        bo.writeVarLong(run);
+        bo.writeZigZagLong(value);
+       }
+
+       value=v;
+       run=1;
+      }
+     }
+    }
+
+    bo.writeVarLong(run);
+    bo.writeZigZagLong(value);
+   } break;
+
+   case doubles:
+    for (Object o : values)
+    {
+     if (o!=null) bo.writeDouble((Double)o);
+    }
+    break;
+
+   case dictionary:
+   {
+    HashMap<Object, Integer> codes=new HashMap<>();
+    int codeOf[]=new int[count];
+    int distinct=0;
+
+    for (int r=0;r<count;r++)
+    {
+     if (values[r]!=null)
+     {
+      Integer code=codes.get(values[r]);
+
+      if (code==null)
+      {
+       code=distinct++;
+       codes.put(values[r], code);
+      }
+
+      codeOf[r]=code;
+     }
+    }
+
+    String dict[]=new String[distinct];
+    for (HashMap.Entry<Object, Integer> e : codes.entrySet()) dict[e.getValue()]=(String)e.getKey();
+
+    bo.writeVarInt(distinct);
+    for (String s : dict) bo.writeString(s);
+
+    for (int r=0;r<count;r++)
+    {
+     if (values[r]!=null) bo.writeVarInt(codeOf[r]);
+    }
+   } break;
+
+   case strings:
+    for (Object o : values)
+    {
+     if (o!=null) bo.writeString((String)o);
+    }
+    break;
+
+   default:
+    for (Object o : values)
+    {
+     if (o!=null) bo.writeObject(o);
+    }
+    break;
+  }
+ }
+
+
+ // runs when there are on average at least 3 equal values in a row
+ private static boolean worthRuns(Object values[])
+ {
+  int present=0, runs=0;
+  Object prev=null;
+
+  for (Object o : values)
+  {
+   if (o!=null)
+   {
+    present++;
+    if (!o.equals(prev)) runs++;
+    prev=o;
+   }
+  }
+
+  return (runs*3<=present);
+ }
+
+
+ // a dictionary when at least half of the strings repeat
+ private static boolean worthDictionary(Object values[], int present)
+ {
+  HashMap<Object, Boolean> distinct=new HashMap<>();
+  int limit=present/2;
+
+  for (Object o : values)
+  {
+   if (o!=null)
+   {
+    distinct.put(o, Boolean.TRUE);
+    if (distinct.size()>limit) return false;
+   }
+  }
+
+  return true;
+ }
+
+
+ // compresses and writes the blocks, reusing its buffers
+ static class BlockWriter
+ {
+  final Sink sink;
+  final int compression;
+  byte header[]=new byte[9];
+  byte out[]=new byte[0];
+  int table[];
+  Deflater deflater;
+
+  BlockWriter(Sink sink, int compression)
+  {
+   this.sink=sink;
+   this.compression=compression;
+  }
+
+
+  void write(byte raw[], int len)
+  {
+   int stored=len;
+   int used=CompressingBytesRoom.NONE;
+
+   if (compression!=CompressingBytesRoom.NONE && len>=64)
+   {
+    int max=LZBlockCodec.maxCompressedLength(len);
+    if (out.length<max) out=new byte[max];
+
+    int clen;
+
+    if (compression==CompressingBytesRoom.FAST)
+    {
+     if (table==null) table=LZBlockCodec.newHashTable();
+     clen=LZBlockCodec.compress(raw, 0, len, out, 0, table);
+    }
+    else
+    {
+     if (deflater==null) deflater=new Deflater(Deflater.DEFAULT_COMPRESSION);
+     deflater.reset();
+     deflater.setInput(raw, 0, len);
+     deflater.finish();
+     clen=0;
+     while (!deflater.finished() && clen<out.length) clen+=deflater.deflate(out, clen, out.length-clen);
+     if (!deflater.finished()) clen=len;
+    }
+
+    if (clen<len)
+    {
+     stored=clen;
+     used=compression;
+    }
+   }
+
+   header[0]=(byte)used;
+   putInt(header, 1, len);
+   putInt(header, 5, stored);
+   sink.write(header, 0, 9);
+   sink.write((used==CompressingBytesRoom.NONE)?raw:out, 0, stored);
+  }
+
+
+  void end()
+  {
+   if (deflater!=null) deflater.end();
+  }
+ }
+
+
+ // =============================================================================
+ // reading
+
+
+ public static RamTable read(MinimalReader mr)
+ {
+  return read(sourceOf(mr));
+ }
+
+
+ public static RamTable read(ReadableByteChannel ch)
+ {
+  return read(sourceOf(ch));
+ }
+
+
+ static RamTable read(Source source)
+ {
+  byte head[]=new byte[17];
+  source.readFully(head, 0, 17);
+
+  for (int t=0;t<magic.length;t++)
+  {
+   if (head[t]!=magic[t]) throw new IOException("RamTableCodec: not a RamTable");
+  }
+
+  int cols=getInt(head, 4);
+  int rows=getInt(head, 8);
+  int chunkRows=getInt(head, 12);
+  boolean columnar=(head[16]!=0);
+
+  if (cols<0 || rows<0 || chunkRows<=0) throw new IOException("RamTableCodec: corrupted header");
+
+  byte types[]=new byte[cols];
+  source.readFully(types, 0, cols);
+
+  RamTable res=new RamTable();
+
+  if (columnar)
+  {
+   res.setColumnar(true);
+
+   for (int c=0;c<cols;c++)
+   {
+    if (types[c]!=RamTable.COLUMN_OBJECT) res.setColumnType(c, types[c]);
+   }
+  }
+
+  if (rows>0 && cols>0) res.forceColsAndRows(cols, rows);
+
+  BlockReader br=new BlockReader(source);
+
+  try
+  {
+   for (int first=0;first<rows;first+=chunkRows)
+   {
+    int count=Math.min(chunkRows, rows-first);
+
+    for (int c=0;c<cols;c++)
+    {
+     decode(br.read(), res, c, first, count);
+    }
+   }
+  }
+  finally
+  {
+   br.end();
+  }
+
+  return res;
+ }
+
+
+ private static void decode(BinaryInput bi, RamTable rt, int col, int first, int count)
+ {
+  int encoding=bi.readByte();
+  if (encoding==allNulls) return;
+
+  int nulls=bi.readVarInt();
+  byte bits[]=null;
+
+  if (nulls>0)
+  {
+   bits=new byte[(count+7) >>> 3];
+   bi.read(bits, 0, bits.length);
+  }
+
+  switch (encoding)
+  {
+   case intDeltas:
+   case longDeltas:
+   {
+    long prev=0;
+
+    for (int r=0;r<count;r++)
+    {
+     if (present(bits, r))
+     {
+      prev+=bi.readZigZagLong();
+      rt.setObject(col, first+r, (encoding==intDeltas)?(Object)(int)prev:(Object)prev);
+     }
+    }
+   } break;
+
+   case intRuns:
+   case longRuns:
+   {
+    long run=0, value=0;
+
+    for (int r=0;r<count;r++)
+    {
+     if (present(bits, r))
+     {
+      if (run==0)
+      {
+       run=bi.readVarLong();
+       value=bi.readZigZagLong();
+      }
+
+      rt.setObject(col, first+r, (encoding==intRuns)?(Object)(int)value:(Object)value);
+      run--;
+     }
+    }
+   } break;
+
+   case doubles:
+    for (int r=0;r<count;r++)
+    {
+     if (present(bits, r)) rt.setObject(col, first+r, bi.readDouble());
+    }
+    break;
+
+   case dictionary:
+   {
+    String dict[]=new String[bi.readVarInt()];
+    for (int t=0;t<dict.length;t++) dict[t]=bi.readString();
+
+    for (int r=0;r<count;r++)
+    {
+     if (present(bits, r)) rt.setObject(col, first+r, dict[bi.readVarInt()]);
+    }
+   } break;
+
+   case strings:
+    for (int r=0;r<count;r++)
+    {
+     if (present(bits, r)) rt.setObject(col, first+r, bi.readString());
+    }
+    break;
+
+   case objects:
+    for (int r=0;r<count;r++)
+    {
+     if (present(bits, r)) rt.setObject(col, first+r, bi.readObject());
+    }
+    break;
+
+   default:
+    throw new IOException("RamTableCodec: unknown encoding "+encoding);
+  }
+ }
+
+
+ private static boolean present(byte bits[], int r)
+ {
+  return (bits==null || (bits[r >>> 3] & (1 << (r & 7)))!=0);
+ }
+
+
+ // reads and decompresses the blocks, reusing its buffers
+ static class BlockReader
+ {
+  final Source source;
+  byte header[]=new byte[9];
+  byte stored[]=new byte[0];
+  Inflater inflater;
+
+  BlockReader(Source source)
+  {
+   this.source=source;
+  }
+
+
+  BinaryInput read()
+  {
+   source.readFully(header, 0, 9);
+   int compression=header[0];
+   int rawLen=getInt(header, 1);
+   int storedLen=getInt(header, 5);
+
+   if (rawLen<0 || storedLen<0) throw new IOException("RamTableCodec: corrupted block");
+
+   if (stored.length<storedLen) stored=new byte[storedLen];
+   source.readFully(stored, 0, storedLen);
+
+   if (compression==CompressingBytesRoom.NONE) return new BinaryInput(stored, 0, storedLen);
+
+   byte raw[]=new byte[rawLen];
+
+   if (compression==CompressingBytesRoom.FAST) LZBlockCodec.decompress(stored, 0, storedLen, raw, 0, rawLen);
+   else if (compression==CompressingBytesRoom.DEFLATE)
+   {
+    if (inflater==null) inflater=new Inflater();
+    inflater.reset();
+    inflater.setInput(stored, 0, storedLen);
+
+    try
+    {
+     int n=0;
+     while (n<rawLen && !inflater.finished())
+     {
+      int k=inflater.inflate(raw, n, rawLen-n);
+      if (k==0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+      n+=k;
+     }
+     if (n!=rawLen) throw new IOException("RamTableCodec: corrupted block");
+    }
+    catch (DataFormatException e)
+    {
+     throw new IOException(e);
+    }
+   }
+   else throw new IOException("RamTableCodec: unknown compression "+compression);
+
+   return new BinaryInput(raw);
+  }
+
+
+  void end()
+  {
+   if (inflater!=null) inflater.end();
+  }
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ private static void putInt(byte b[], int off, int v)
+ {
+  b[off]=(byte)(v >>> 24);
+  b[off+1]=(byte)(v >>> 16);
+  b[off+2]=(byte)(v >>> 8);
+  b[off+3]=(byte)v;
+ }
+
+
+ private static int getInt(byte b[], int off)
+ {
+  return ((b[off] & 0xFF) << 24) | ((b[off+1] & 0xFF) << 16) | ((b[off+2] & 0xFF) << 8) | (b[off+3] & 0xFF);
+ }
+
+
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2019 Antonio Sorrentini
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package me.as.lib.core.lang;
+
+
+import me.as.lib.core.io.extra.BinaryInput;
+import me.as.lib.core.io.extra.BinaryOutput;
+
+
+/**
+ * A hand written serializer for the objects of one class, see {@link BinaryCodecs#register}.
+ * read must consume exactly what write produced.
+ */
+public interface BinaryCodec<T>
+{
+
+ void write(T o, BinaryOutput out);
+
+ T read(BinaryInput in);
+
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2019 Antonio Sorrentini
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package me.as.lib.core.lang;
+
+
+import me.as.lib.core.io.BytesRoom;
+import me.as.lib.core.io.extra.BinaryInput;
+import me.as.lib.core.io.extra.BinaryOutput;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+
+/**
+ * The registry of the {@link BinaryCodec}s used by ByteExtras.toBytes/fromBytes.
+ *
+ * An object whose class is registered is written as its (small, integer) id followed by
+ * whatever its codec writes, instead of its class name followed by its Binaryable bytes
+ * or by its Java serialization, and it is read back without any reflection.
+ * Ids are part of the written data: once used to persist something, a class must always
+ * be registered with the same id (and before reading it back).
+ */
+public class BinaryCodecs
+{
+ public static final int maxId=65535;
+
+ // buffers bigger than this are not kept for reuse
+ private static final int maxSpareCapacity=1024*1024;
+
+ private static final ConcurrentHashMap<Class, Registered> byClass=new ConcurrentHashMap<>();
+ private static volatile Registered byId[]=new Registered[64];
+ private static final ThreadLocal<BinaryOutput> spareOutput=new ThreadLocal<>();
+
+
+ public static <T> void register(int id, Class<T> c, BinaryCodec<T> codec)
+ {
+  register(id, c, codec, false);
+ }
+
+
+ /**
+  * @param compactNumbers if true the BinaryOutput/BinaryInput given to the codec write
+  *                       ints, longs, shorts and chars as zig-zag varints
+  */
+ public static synchronized <T> void register(int id, Class<T> c, BinaryCodec<T> codec, boolean compactNumbers)
+ {
+  if (id<0 || id>maxId) throw new IllegalArgumentException("BinaryCodecs ids must be in 0.."+maxId+", not "+id);
+  if (c==null || codec==null) throw new IllegalArgumentException("BinaryCodecs.register needs both a class and a codec");
+
+  Registered old=get(id);
+  if (old!=null && old.c!=c)
+   throw new IllegalArgumentException("BinaryCodecs id "+id+" is already used by "+old.c.getName());
+
+  old=byClass.get(c);
+  if (old!=null && old.id!=id)
+   throw new IllegalArgumentException(c.getName()+" is already registered with id "+old.id);
+
+  Registered r=new Registered(id, c, codec, compactNumbers);
+  Registered ids[]=byId;
+
+  if (id>=ids.length)
+  {
+   Registered nids[]=new Registered[Math.min(maxId+1, Math.max(id+1, ids.length*2))];
+   System.arraycopy(ids, 0, nids, 0, ids.length);
+   ids=nids;
+  } else ids=ids.clone();
+
+  ids[id]=r;
+  byClass.put(c, r);
+  byId=ids;
+ }
+
+
+ /**
+  * Registers a Binaryable class: its instances are created by factory instead of by reflection
+  * and no class name is written.
+  */
+ public static <T extends Binaryable> void registerBinaryable(int id, Class<T> c, Supplier<T> factory)
+ {
+  register(id, c, new BinaryCodec<T>()
+  {
+   public void write(T o, BinaryOutput out)
+   {
+    out.writeBytes(o.toBytes());
+   }
+
+   public T read(BinaryInput in)
+   {
+    T res=factory.get();
+    res.fromBytes(in.readBytes());
+    return res;
+   }
+  });
+ }
+
+
+ public static boolean isRegistered(Class c)
+ {
+  return (c!=null && byClass.containsKey(c));
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ static Registered get(Class c)
+ {
+  return byClass.get(c);
+ }
+
+
+ static Registered get(int id)
+ {
+  Registered ids[]=byId;
+  return ((id>=0 && id<ids.length)?ids[id]:null);
+ }
+
+
+ // a thread local buffer, when it's not already in use by the same thread (codecs may nest)
+ static BinaryOutput acquireOutput()
+ {
+  BinaryOutput res=spareOutput.get();
+
+  if (res!=null)
+  {
+   spareOutput.set(null);
+   res.reset();
+  } else res=new BinaryOutput();
+
+  return res;
+ }
+
+
+ static void releaseOutput(BinaryOutput out)
+ {
+  if (out.capacity()<=maxSpareCapacity) spareOutput.set(out);
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+ // inside a BytesRoom (that is inside the ByteExtras format) a registered object is
+ // [varint id+1 or 0 if null][varint payload length][payload]
+
+
+ static void toBytes(Object o, BytesRoom br)
+ {
+  if (o==null)
+  {
+   ByteExtras.writeVarInt(br, 0);
+   return;
+  }
+
+  Registered r=get(o.getClass());
+  if (r==null) throw new RuntimeException(o.getClass().getName()+" has no registered BinaryCodec");
+
+  BinaryOutput out=acquireOutput();
+
+  try
+  {
+   r.write(o, out);
+   ByteExtras.writeVarInt(br, r.id+1);
+   ByteExtras.writeVarInt(br, out.size());
+   out.writeTo(br);
+  }
+  finally
+  {
+   releaseOutput(out);
+  }
+ }
+
+
+ static Object fromBytes(BytesRoom br)
+ {
+  int id=ByteExtras.readVarInt(br)-1;
+  if (id<0) return null;
+
+  Registered r=get(id);
+  if (r==null) throw new RuntimeException("No BinaryCodec registered with id "+id);
+
+  byte payload[]=new byte[ByteExtras.readVarInt(br)];
+  br.Read(payload);
+  return r.read(new BinaryInput(payload));
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+ // nested in a BinaryOutput an object is
+ // [varint 0] for null, [varint 1][ByteExtras.toBytes bytes, length prefixed] for non registered
+ // classes, [varint id+2][payload] for registered ones
+
+
+ public static void writeObject(Object o, BinaryOutput out)
+ {
+  if (o==null)
+  {
+   out.writeVarInt(0);
+   return;
+  }
+
+  Registered r=get(o.getClass());
+
+  if (r!=null)
+  {
+   out.writeVarInt(r.id+2);
+   r.write(o, out);
+  }
+  else
+  {
+   out.writeVarInt(1);
+   out.writeBytes(ByteExtras.toBytes(o));
+  }
+ }
+
+
+ public static Object readObject(BinaryInput in)
+ {
+  int code=in.readVarInt();
+
+  switch (code)
+  {
+   case 0 :return null;
+   case 1 :return ByteExtras.fromBytes(in.readBytes());
+   default:
+   {
+    Registered r=get(code-2);
+    if (r==null) throw new RuntimeException("No BinaryCodec registered with id "+(code-2));
+    return r.read(in);
+   }
+  }
+ }
+
+
+ // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+ static class Registered
+ {
+  final int id;
+  final Class c;
+  final BinaryCodec codec;
+  final boolean compactNumbers;
+
+
+  Registered(int id, Class c, BinaryCodec codec, boolean compactNumbers)
+  {
+   this.id=id;
+   this.c=c;
+   this.codec=codec;
+   this.compactNumbers=compactNumbers;
+  }
+
+
+  void write(Object o, BinaryOutput out)
+  {
+   boolean old=out.isCompactNumbers();
+   out.setCompactNumbers(compactNumbers);
+
+   try
+   {
+    codec.write(o, out);
+   }
+   finally
+   {
+    out.setCompactNumbers(old);
+   }
+  }
+
+
+  Object read(BinaryInput in)
+  {
+   boolean old=in.isCompactNumbers();
+   in.setCompactNumbers(compactNumbers);
+
+   try
+   {
+    return codec.read(in);
+   }
+   finally
+   {
+    in.setCompactNumbers(old);
+   }
+  }
+ }
+
+
+}
@@ -19,10 +19,11 @@ package me.as.lib.core.lang;
 
 import me.as.lib.core.collection.RamTable;
 import me.as.lib.core.extra.Box;
+import me.as.lib.core.extra.BoxFor2;
 import me.as.lib.core.io.BytesRoom;
+import me.as.lib.core.io.extra.CompressingBytesRoom;
 import me.as.lib.core.io.extra.MemBytesRoom;
 import me.as.lib.core.io.extra.SpeedBytesWrapper;
-import me.as.lib.core.math.MathExtras;
 
 import java.io.*;
 import java.io.IOException;
@@ -575,11 +576,22 @@ public class ByteExtras
 
 
  public static byte[] zipBytes(byte b[]) throws me.as.lib.core.io.IOException
+ {
+  return zipBytes(b, Deflater.DEFAULT_COMPRESSION);
+ }
+
+
+ /**
+  * @param level the compression level, from Deflater.NO_COMPRESSION (0) to
+  *              Deflater.BEST_COMPRESSION (9), or Deflater.DEFAULT_COMPRESSION
+  */
+ public static byte[] zipBytes(byte b[], int level) throws me.as.lib.core.io.IOException
  {
   try
   {
    ByteArrayOutputStream baos=new ByteArrayOutputStream();
    ZipOutputStream zos=new ZipOutputStream(baos);
+   zos.setLevel(level);
    ZipEntry ze=new ZipEntry("d");
    ze.setMethod(ZipEntry.DEFLATED);
    zos.putNextEntry(ze);
@@ -796,6 +808,37 @@ public class ByteExtras
  }
 
 
+ // unsigned LEB128 varints, 7 bits per byte (the same encoding of BinaryOutput.writeVarInt)
+ public static void writeVarInt(BytesRoom br, int v)
+ {
+  while ((v & ~0x7F)!=0)
+  {
+   br.Write((v & 0x7F) | 0x80);
+   v>>>=7;
+  }
+
+  br.Write(v);
+ }
+
+
+ public static int readVarInt(BytesRoom br)
+ {
+  int res=0;
+  int shift=0;
+  int b;
+
+  do
+  {
+   b=br.Read();
+   if (b<0 || shift>28) throw new me.as.lib.core.io.IOException("ByteExtras.readVarInt: malformed or truncated varint");
+   res|=(b & 0x7F) << shift;
+   shift+=7;
+  } while ((b & 0x80)!=0);
+
+  return res;
+ }
+
+
 
  // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
  // these are a lot of methods to serialize a lot of java objects avoiding the ever
@@ -814,6 +857,20 @@ public class ByteExtras
  // of zipped data will follow.
  private static final short zippedDataModifier = 8000;
 
+ // Data compressed while being written (see CompressingBytesRoom) starts with one of these,
+ // followed by an int with the compressed length, an int with the raw length and the
+ // compressed data.
+ private static final short deflatedDataModifier = zippedDataModifier+1;
+ private static final short fastDataModifier     = zippedDataModifier+2;
+
+ // under this gain (percent) data is not kept compressed
+ private static final int autoZipMinGainPercent = 15;
+
+ // the compressions toBytes can apply to data longer than autoZipSizeThreshold
+ public static final int COMPRESSION_NONE    = CompressingBytesRoom.NONE;
+ public static final int COMPRESSION_DEFLATE = CompressingBytesRoom.DEFLATE;  // the default
+ public static final int COMPRESSION_FAST    = CompressingBytesRoom.FAST;     // LZ4 like: much faster, bigger
+
  // These shorts describe the java type of the data that will follow.
  // These are all the (toBytes/fromBytes)able java types supported so far.
  // Primitive types are not allowed (they are first converted to the appropriate java classe),
@@ -847,6 +904,7 @@ public class ByteExtras
  private static final short type_array        = zippedDataModifier-1;
  private static final short type_binaryable   = zippedDataModifier-2;
  private static final short type_serializable = zippedDataModifier-3;
+ private static final short type_registered   = zippedDataModifier-4; // see BinaryCodecs
 
 
 
@@ -953,38 +1011,38 @@ public class ByteExtras
 
  public static byte[] toBytes(Object o, String charsetName, int bufferSizeHint, boolean disableZip)
  {
-  byte res[];
-  MemBytesRoom mbr;
-  if (bufferSizeHint>0) mbr=new MemBytesRoom(bufferSizeHint);
-  else mbr=new MemBytesRoom();
+  return toBytes(o, charsetName, bufferSizeHint, (disableZip)?COMPRESSION_NONE:COMPRESSION_DEFLATE);
+ }
 
-  try
-  {
-   toBytes(o, charsetName, mbr);
-   mbr.setSize(mbr.getCurrentPosition());
-   res=mbr.getContent();
 
-   if (!disableZip && res!=null && res.length>autoZipSizeThreshold)
-   {
-    mbr.clear();
-    mbr.writeShort(zippedDataModifier);
-    byte zipped[]=zipBytes(res);
-    mbr.writeInt(zipped.length);
-    mbr.write(zipped);
 
-    byte tres[]=mbr.getContent();
+ /**
+  * Data is compressed while it is being produced: after the first 64KB the achievable
+  * gain is estimated and if it is too small the data is kept as it is.
+  *
+  * @param bufferSizeHint  the expected size of the data, the initial capacity of the buffer
+  *                        it is written to (0 for the default)
+  * @param compression     COMPRESSION_NONE, COMPRESSION_DEFLATE or COMPRESSION_FAST
+  */
+ public static byte[] toBytes(Object o, String charsetName, int bufferSizeHint, int compression)
+ {
+  byte res[];
+  CompressingBytesRoom cbr=CompressingBytesRoom.acquire(bufferSizeHint, compression, autoZipSizeThreshold, autoZipMinGainPercent,
+                                                       deflatedDataModifier, fastDataModifier);
 
-    // se č stato compresso troppo poco preferiamo conservare la versione non zippata
-    if (MathExtras.areDifferentMoreThanPercent(tres.length, res.length, 15))
-    {
-     res=tres;
-    }
-   }
+  try
+  {
+   toBytes(o, charsetName, cbr);
+   res=cbr.finish();
   }
   catch (Throwable tr)
   {
    throw new RuntimeException("ByteExtras.toBytes exception", tr);
   }
+  finally
+  {
+   CompressingBytesRoom.release(cbr);
+  }
 
   return res;
  }
@@ -1057,6 +1115,22 @@ public class ByteExtras
     sbw.setContent(unZipBytes(zipped));
     br=sbw;
 
+   }
+   else if (typeIndex==deflatedDataModifier || typeIndex==fastDataModifier)
+   {
+    int compressedSize=br.ReadInt();
+    int rawSize=br.ReadInt();
+    byte compressed[]=new byte[compressedSize];
+    br.Read(compressed);
+
+    SpeedBytesWrapper sbw=new SpeedBytesWrapper();
+
+    if (typeIndex==deflatedDataModifier)
+     sbw.setContent(CompressingBytesRoom.inflate(compressed, rawSize));
+    else
+     sbw.setContent(CompressingBytesRoom.decompressFast(compressed, rawSize));
+
+    br=sbw;
    } else br.setCurrentPosition(oldPos);
 
 
@@ -1128,6 +1202,7 @@ public class ByteExtras
    case type_array       :res=arrayFromBytes(charsetName, br);break;
    case type_binaryable  :res=binaryableFromBytes(charsetName, oClassName, br);break;
    case type_serializable:res=serializableFromBytes(br);break;
+   case type_registered  :res=BinaryCodecs.fromBytes(br);break;
    default               :
    {
     throw new RuntimeException("ByteExtras.fromBytes is unable to work on objects of typeIndex: "+typeIndex);
@@ -1190,6 +1265,7 @@ public class ByteExtras
    case type_array       :arrayToBytes(o, charsetName, mbr);break;
    case type_binaryable  :binaryableToBytes(o, oClassName, charsetName, mbr);break;
    case type_serializable:serializableToBytes(o, mbr);break;
+   case type_registered  :BinaryCodecs.toBytes(o, mbr);break;
   }
  }
 
@@ -1216,6 +1292,10 @@ public class ByteExtras
    {
     typeIndex=type_array;
    }
+   else if (BinaryCodecs.isRegistered(c))
+   {
+    typeIndex=type_registered;
+   }
    else
    {
     //if (ClassExtras.doesImplement(c, Binaryable.class))
@@ -1458,8 +1538,8 @@ public class ByteExtras
  }
 
 
- private static String lastClassName=null;
- private static Class lastClass=null;
+ // name and class are published together so that concurrent decoders never pair a name with another class
+ private static volatile BoxFor2<String, Class> lastClass=null;
 
 
 
@@ -1480,13 +1560,13 @@ public class ByteExtras
   try
   {
    Class c;
+   BoxFor2<String, Class> last=lastClass;
 
-   if (StringExtras.areEqual(className, lastClassName)) c=lastClass;
+   if (last!=null && StringExtras.areEqual(className, last.element1)) c=last.element2;
    else
    {
     c=Class.forName(className);
-    lastClass=c;
-    lastClassName=className;
+    lastClass=new BoxFor2<>(className, c);
    }
 
    Binaryable b=(Binaryable)c.getConstructor().newInstance();
@@ -4362,6 +4362,7 @@ public class StringExtras
   * WARNING: this is very simplicistic method, does not make a lot of things:
   * 1) does not evaluate escaped "
   * 2) works only when separator is , or ;
+  * For big or real world CSV text, typed columns or files see RamTableCsvLoader.
   *
   * @param csvText
   * @return
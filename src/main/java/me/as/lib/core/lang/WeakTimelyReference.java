@@ -17,10 +17,9 @@
 package me.as.lib.core.lang;
 
 
-import me.as.lib.core.extra.LazyRefresher;
+import me.as.lib.core.concurrent.TimerWheel;
 
 import java.lang.ref.*;
-import java.util.*;
 import java.util.concurrent.atomic.*;
 
 
@@ -29,61 +28,15 @@ import java.util.concurrent.atomic.*;
  * This is a strong reference to an Objcet instance of type E for the first
  * millisToWeak milliseconds after which this becomes a WeakReference
  *
+ * Every instance still strong has a timeout on a timer wheel with a tick of a second, shared
+ * by all of them, set at weakAtMillis: restart() only moves weakAtMillis later, and when the
+ * timeout expires too early it is set again at the new weakAtMillis.
+ *
  */
 public class WeakTimelyReference<E>
 {
- private static final LazyRefresher weaker;
- private static final List<WeakTimelyReference> monitored=new LinkedList<WeakTimelyReference>();
-
- static
- {
-  weaker=new LazyRefresher(20000)
-  {
-   protected void refresh()
-   {
-    scannAll();
-   }
-  };
-  weaker.needRefresh();
- }
-
- private static void scannAll()
- {
-  synchronized (monitored)
-  {
-//   System.out.println("WeakTimelyReference scannAll() monitored.size: "+monitored.size());
-//   int deb_removed=0;
-
-   long now=System.currentTimeMillis();
-   WeakTimelyReference wtr;
-   int t, len=ArrayExtras.length(monitored);
-
-   for (t=0;t<len;t++)
-   {
-    wtr=monitored.get(t);
-
-    synchronized (wtr)
-    {
-     if (wtr.weakAtMillis.get()<=now)
-     {
-      monitored.remove(t);
-
-      wtr.weakReference=new WeakReference(wtr.referent);
-      wtr.referent=null;
-
-//      deb_removed++;
-
-      t--;
-      len--;
-     }
-    }
-   }
-
-//   System.out.println("WeakTimelyReference removed "+deb_removed);
-  }
-
-  weaker.needRefresh();
- }
+ // the expired timeouts are so cheap that the wheel thread runs them
+ private static final TimerWheel weaker=new TimerWheel("WeakTimelyReference", true, 1000, Runnable::run);
 
 
  // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
@@ -92,6 +45,7 @@ public class WeakTimelyReference<E>
  private WeakReference<E> weakReference=null;
  private long millisToWeak;
  private AtomicLong weakAtMillis=new AtomicLong(0);
+ private TimerWheel.Timeout timeout=null;
 
 
  public WeakTimelyReference(E referent, long millisToWeak)
@@ -100,9 +54,12 @@ public class WeakTimelyReference<E>
   this.millisToWeak=millisToWeak;
   restart();
 
-  synchronized (monitored)
+  if (referent!=null)
   {
-   monitored.add(this);
+   synchronized (this)
+   {
+    timeout=weaker.schedule(millisToWeak, this::expire);
+   }
   }
  }
 
@@ -120,13 +77,33 @@ public class WeakTimelyReference<E>
  }
 
 
- public void dispose()
+ public synchronized void dispose()
  {
-  synchronized (monitored)
+  if (timeout!=null)
   {
-   monitored.remove(this);
-   referent=null;
-   weakReference=null;
+   timeout.cancel();
+   timeout=null;
+  }
+
+  referent=null;
+  weakReference=null;
+ }
+
+
+ private synchronized void expire()
+ {
+  timeout=null;
+
+  if (referent!=null)
+  {
+   long delay=weakAtMillis.get()-System.currentTimeMillis();
+
+   if (delay>0) timeout=weaker.schedule(delay, this::expire);
+   else
+   {
+    weakReference=new WeakReference<>(referent);
+    referent=null;
+   }
   }
  }
 